@@ -0,0 +1,55 @@
+package edu.columbia.irt.netserv.core.bench;
+
+import edu.columbia.irt.netserv.core.backbone.PacketConduit;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One PacketConduit dispatched into by several injector threads at once,
+ * as with several native queues, to show contention on the shared chain
+ * and statistics.  Run with -t to vary the number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ContendedDispatchBenchmark {
+
+    @Param({"8"})
+    public int chainLength;
+    @Param({"false", "true"})
+    public boolean stats;
+    PacketConduit conduit;
+
+    @State(Scope.Thread)
+    public static class Injector {
+
+        ByteBuffer packet;
+
+        @Setup
+        public void setup() {
+            packet = Packets.udpPacket(Packets.bytes(Packets.SIP_INVITE), 5060);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        Logger.getLogger("edu.columbia.irt.netserv.controller.core.service").setLevel(Level.WARNING);
+        conduit = new PacketConduit();
+        conduit.setStatsEnabled(stats);
+        for (int i = 0; i < chainLength; i++) {
+            conduit.addProcessor(new DispatchBenchmark.PortFilter(i));
+        }
+    }
+
+    @Benchmark
+    public int dispatchPacket(Injector injector) {
+        return conduit.dispatchPacket(injector.packet);
+    }
+}
@@ -0,0 +1,94 @@
+package edu.columbia.irt.netserv.core.bench;
+
+import edu.columbia.irt.netserv.core.backbone.PacketConduit;
+import edu.columbia.irt.netserv.core.backbone.PacketFilter;
+import edu.columbia.irt.netserv.core.backbone.PacketHeader;
+import edu.columbia.irt.netserv.core.backbone.PacketInterest;
+import edu.columbia.irt.netserv.core.backbone.PacketVerdict;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * PacketConduit dispatch throughput and latency against the length of the
+ * processor chain, with and without statistics and packet interests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    static final int BATCH = 32;
+    @Param({"1", "4", "16", "64"})
+    public int chainLength;
+    @Param({"false", "true"})
+    public boolean stats;
+    // if true, every other processor only wants TCP, which the packet isn't
+    @Param({"false", "true"})
+    public boolean interests;
+    PacketConduit conduit;
+    ByteBuffer packet;
+    ByteBuffer[] batch;
+    int[] verdicts;
+
+    @Setup
+    public void setup() {
+        Logger.getLogger("edu.columbia.irt.netserv.controller.core.service").setLevel(Level.WARNING);
+        conduit = new PacketConduit();
+        conduit.setStatsEnabled(stats);
+        for (int i = 0; i < chainLength; i++) {
+            PacketInterest interest = interests && (i & 1) == 1
+                    ? new PacketInterest().setProtocol(PacketHeader.TCP) : null;
+            conduit.addProcessor(new PortFilter(i), interest);
+        }
+        packet = Packets.udpPacket(Packets.bytes(Packets.SIP_INVITE), 5060);
+        batch = new ByteBuffer[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            batch[i] = Packets.udpPacket(Packets.bytes(Packets.SIP_INVITE), 1024 + i);
+        }
+        verdicts = new int[BATCH];
+    }
+
+    @Benchmark
+    public int dispatchPacket() {
+        return conduit.dispatchPacket(packet);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int[] dispatchPackets() {
+        conduit.dispatchPackets(batch, verdicts, BATCH);
+        return verdicts;
+    }
+
+    /**
+     * Looks at the destination port, as a typical filter module does.
+     */
+    static final class PortFilter implements PacketFilter {
+
+        private final int order;
+
+        PortFilter(int order) {
+            this.order = order;
+        }
+
+        @Override
+        public int filterPacket(ByteBuffer buf, PacketHeader hdr) {
+            return hdr.dstPort() == 9 ? PacketVerdict.DROP : PacketVerdict.CONTINUE;
+        }
+
+        @Override
+        public void processPacket(ByteBuffer buf) {
+        }
+
+        @Override
+        public int relativeOrder() {
+            return order;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package edu.columbia.irt.netserv.core.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Payloads and packets shared by the benchmarks.
+ */
+final class Packets {
+
+    static final String SIP_INVITE =
+            "INVITE sip:bob@biloxi.example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP pc33.atlanta.example.com;branch=z9hG4bKnashds8\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "To: Bob <sip:bob@biloxi.example.com>\r\n"
+            + "From: Alice <sip:alice@atlanta.example.com>;tag=1928301774\r\n"
+            + "Call-ID: a84b4c76e66710@pc33.atlanta.example.com\r\n"
+            + "CSeq: 314159 INVITE\r\n"
+            + "Subject: lunch\r\n"
+            + "  tomorrow\r\n"
+            + "Contact: <sip:alice@pc33.atlanta.example.com>\r\n"
+            + "Content-Type: application/sdp\r\n"
+            + "Content-Length: 142\r\n"
+            + "\r\n"
+            + "v=0\r\no=alice 2890844526 2890844526 IN IP4 pc33.atlanta.example.com\r\n"
+            + "s=-\r\nc=IN IP4 pc33.atlanta.example.com\r\nt=0 0\r\n"
+            + "m=audio 49172 RTP/AVP 0\r\na=rtpmap:0 PCMU/8000\r\n";
+    static final String HTTP_GET =
+            "GET /index.html HTTP/1.1\r\n"
+            + "Host: www.example.com\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:60.0) Gecko/20100101 Firefox/60.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n";
+
+    static byte[] bytes(String s) {
+        return s.getBytes(Charset.forName("US-ASCII"));
+    }
+
+    static ByteBuffer direct(byte[] b) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(b.length);
+        buf.put(b);
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Returns a direct buffer holding an IPv4/UDP packet to port 5060
+     * carrying payload, as the native code would pass it in.
+     */
+    static ByteBuffer udpPacket(byte[] payload, int srcPort) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(28 + payload.length);
+        buf.put((byte) 0x45).put((byte) 0);
+        buf.putShort((short) (28 + payload.length));
+        buf.putInt(0);
+        buf.put((byte) 64).put((byte) 17).putShort((short) 0);
+        buf.put(new byte[]{10, 0, 0, 1});
+        buf.put(new byte[]{10, 0, 0, 2});
+        buf.putShort((short) srcPort).putShort((short) 5060);
+        buf.putShort((short) (8 + payload.length)).putShort((short) 0);
+        buf.put(payload);
+        buf.clear();
+        return buf;
+    }
+
+    private Packets() {
+    }
+}
@@ -0,0 +1,94 @@
+package edu.columbia.irt.netserv.core.bench;
+
+import edu.columbia.irt.netserv.core.backbone.Util;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The Util line and header helpers on SIP and HTTP payloads, over heap
+ * arrays and direct buffers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+
+    @Param({"sip", "http"})
+    public String payload;
+    byte[] array;
+    ByteBuffer direct;
+    byte[] name;
+    byte[] folded;
+    // compareSpaceCaseBytes() counts only the bytes it compares
+    int foldedLength;
+    int nameOffset;
+    int foldedOffset;
+
+    @Setup
+    public void setup() {
+        boolean sip = payload.equals("sip");
+        String text = sip ? Packets.SIP_INVITE : Packets.HTTP_GET;
+        array = Packets.bytes(text);
+        direct = Packets.direct(array);
+        // the last header before the body, so lookups walk the whole block
+        String last = sip ? "content-length" : "connection";
+        name = Packets.bytes(last);
+        nameOffset = text.toLowerCase().indexOf(last + ":");
+        folded = Packets.bytes(sip ? "subject : lunch" : "accept-encoding : gzip, deflate");
+        foldedOffset = text.indexOf(sip ? "Subject:" : "Accept-Encoding:");
+        for (byte b : folded) {
+            if (b != ' ') {
+                foldedLength++;
+            }
+        }
+    }
+
+    @Benchmark
+    public int findEndOfLineArray() {
+        int n = 0;
+        int p = 0;
+        int e;
+        while ((e = Util.findEndOfLine(array, p, array.length - p)) >= 0) {
+            p = e + 1;
+            n++;
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int findEndOfLineDirect() {
+        int n = 0;
+        int p = 0;
+        int len = direct.limit();
+        int e;
+        while ((e = Util.findEndOfLine(direct, p, len - p)) >= 0) {
+            p = e + 1;
+            n++;
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int compareCaseBytesArray() {
+        return Util.compareCaseBytes(array, nameOffset, name, 0, name.length);
+    }
+
+    @Benchmark
+    public int compareCaseBytesDirect() {
+        return Util.compareCaseBytes(direct, nameOffset, name, 0, name.length);
+    }
+
+    @Benchmark
+    public int compareSpaceCaseBytesArray() {
+        return Util.compareSpaceCaseBytes(array, foldedOffset, folded, 0, foldedLength);
+    }
+
+    @Benchmark
+    public int compareSpaceCaseBytesDirect() {
+        return Util.compareSpaceCaseBytes(direct, foldedOffset, folded, 0, foldedLength);
+    }
+}
@@ -0,0 +1,71 @@
+package edu.columbia.irt.netserv.core.bench;
+
+import edu.columbia.irt.netserv.core.backbone.TXTRecordBuilder;
+import edu.columbia.irt.netserv.core.backbone.TXTRecordCursor;
+import edu.columbia.irt.netserv.core.backbone.Util;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Building and walking TXT records of a service announcement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TXTRecordBenchmark {
+
+    @Param({"8", "64"})
+    public int items;
+    String[] keys;
+    String[] values;
+    TXTRecordBuilder builder;
+    TXTRecordCursor cursor;
+    byte[] record;
+    byte[] lastKey;
+
+    @Setup
+    public void setup() {
+        keys = new String[items];
+        values = new String[items];
+        for (int i = 0; i < items; i++) {
+            keys[i] = "key" + i;
+            values[i] = "value-" + i + "-of-the-service";
+        }
+        builder = new TXTRecordBuilder();
+        cursor = new TXTRecordCursor();
+        record = appendToTXTRecord();
+        lastKey = Packets.bytes(keys[items - 1]);
+    }
+
+    @Benchmark
+    public byte[] appendToTXTRecord() {
+        byte[] txt = null;
+        for (int i = 0; i < items; i++) {
+            txt = Util.appendToTXTRecord(txt, keys[i], values[i]);
+        }
+        return txt;
+    }
+
+    @Benchmark
+    public byte[] builder() {
+        builder.reset();
+        for (int i = 0; i < items; i++) {
+            builder.append(keys[i], values[i]);
+        }
+        return builder.toByteArray();
+    }
+
+    @Benchmark
+    public int cursor() {
+        cursor.reset(record, 0, record.length);
+        while (cursor.next()) {
+            if (cursor.keyEquals(lastKey)) {
+                return cursor.valueOffset();
+            }
+        }
+        return -1;
+    }
+}
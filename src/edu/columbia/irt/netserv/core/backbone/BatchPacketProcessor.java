@@ -0,0 +1,23 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A PacketProcessor that can take a whole vector of packets in one call.
+ * PacketDispatcher.dispatchPackets() hands the batch to processPackets()
+ * instead of calling processPacket() once per packet.
+ */
+public interface BatchPacketProcessor extends PacketProcessor {
+
+    /**
+     * Process bufs[0] through bufs[count - 1], in that order.  hdrs[i] is
+     * the parsed view of bufs[i]'s headers.  verdicts[i]
+     * holds the verdict reached so far for bufs[i]; packets whose verdict
+     * is already terminal (see {@link PacketVerdict#isTerminal}) must be
+     * skipped, and a new verdict is recorded with
+     * verdicts[i] = PacketVerdict.merge(verdicts[i], v).  The arrays belong
+     * to the dispatcher and must not be kept after returning.
+     */
+    public void processPackets(ByteBuffer[] bufs, PacketHeader[] hdrs,
+            int[] verdicts, int count);
+}
@@ -0,0 +1,126 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of one processor with respect to its LatencyBudget.  CLOSED is
+ * normal operation, OPEN means the processor is bypassed, and PROBING means
+ * one packet has been let through after the cooldown to see whether the
+ * processor has recovered.
+ */
+final class CircuitBreaker {
+
+    static final int CLOSED = 0;
+    static final int OPEN = 1;
+    static final int PROBING = 2;
+    // results of completed()
+    static final int UNCHANGED = 0;
+    static final int TRIPPED = 1;
+    static final int RESTORED = 2;
+    final PacketProcessor processor;
+    // the budget set for this processor, or null to use the default
+    LatencyBudget own;
+    // the budget in effect, or null for none
+    volatile LatencyBudget budget;
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    private final AtomicInteger violations = new AtomicInteger();
+    private final AtomicLong bypassed = new AtomicLong();
+    private volatile long openedAt;
+
+    CircuitBreaker(PacketProcessor processor) {
+        this.processor = processor;
+    }
+
+    /**
+     * Called before the processor gets a packet.
+     * @param b The budget in effect, read once by the caller.
+     * @return True if the processor must be skipped.
+     */
+    boolean bypass(LatencyBudget b, long now) {
+        int s = state.get();
+        if (s == CLOSED) {
+            return false;
+        }
+        if (s == OPEN && now - openedAt >= b.cooldownNanos()
+                && state.compareAndSet(OPEN, PROBING)) {
+            // this packet is the probe
+            return false;
+        }
+        bypassed.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Called after the processor has handled a packet.
+     * @param elapsed Time per packet, in nanoseconds.
+     * @return TRIPPED, RESTORED or UNCHANGED.
+     */
+    int completed(LatencyBudget b, long elapsed) {
+        if (state.get() == PROBING) {
+            if (elapsed <= b.budgetNanos()) {
+                violations.set(0);
+                state.set(CLOSED);
+                return RESTORED;
+            }
+            openedAt = System.nanoTime();
+            state.set(OPEN);
+            return UNCHANGED;
+        }
+        if (elapsed > b.budgetNanos()) {
+            if (violations.incrementAndGet() >= b.tripAfter() && trip()) {
+                return TRIPPED;
+            }
+        } else if (violations.get() != 0) {
+            violations.set(0);
+        }
+        return UNCHANGED;
+    }
+
+    /**
+     * Called instead of completed() when the processor threw, or a probe
+     * let through by bypass() found no packet to handle.  A probe that
+     * threw has failed, and the cooldown starts over; one that wasn't made
+     * is made on the next packet.
+     * @param threw True if the processor threw.
+     */
+    void abandoned(boolean threw) {
+        if (state.get() != PROBING) {
+            return;
+        }
+        if (threw) {
+            openedAt = System.nanoTime();
+        }
+        state.set(OPEN);
+    }
+
+    /**
+     * Bypasses the processor, unless it already is.
+     * @return True if the state changed.
+     */
+    boolean trip() {
+        if (!state.compareAndSet(CLOSED, OPEN)) {
+            // already bypassed; its cooldown runs on
+            return false;
+        }
+        openedAt = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Puts the processor back in the chain, e.g. when its budget is removed.
+     * @return True if the state changed.
+     */
+    boolean reset() {
+        violations.set(0);
+        return state.getAndSet(CLOSED) != CLOSED;
+    }
+
+    int state() {
+        return state.get();
+    }
+
+    long bypassed() {
+        return bypassed.get();
+    }
+}
@@ -0,0 +1,201 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.*;
+
+/**
+ * A PacketDispatcher that spreads packets over a fixed number of worker
+ * lanes, each running the processor chain of the target dispatcher on its
+ * own thread.  The lane is chosen by hashing the IPv4/IPv6 5-tuple, so all
+ * packets of a flow go through the same lane in arrival order while
+ * different flows are processed in parallel.
+ *
+ * dispatchPacket() copies the packet into a buffer owned by the lane, so the
+ * caller may reuse its buffer as soon as the call returns.  Packets in
+ * buffers from the PacketBufferPool are not copied; the lane retains the
+ * pool buffer instead and releases it when the chain is done.  When a lane's
+ * queue is full the caller blocks until the lane catches up.  Since the
+ * chain runs after dispatchPacket() has returned, the verdict handed back
+ * is always CONTINUE.  PacketConduit therefore refuses PacketFilters and
+ * fail-closed latency budgets while a FlowDispatcher is its dispatcher;
+ * verdicts set by BatchPacketProcessors on a lane only cut the walk down
+ * the chain short.
+ */
+public class FlowDispatcher implements PacketDispatcher {
+
+    static final Logger logger = PacketConduit.logger;
+    // initial size of the lane buffers; bigger packets get bigger buffers
+    static final int MIN_BUFFER_SIZE = 2048;
+    // most packets a lane hands to the target in one dispatchPackets() call
+    static final int MAX_BATCH = 32;
+    private final PacketDispatcher target;
+    private final Lane[] lanes;
+    private volatile PacketBufferPool pool;
+    // header views of the injecting threads, for hashing
+    private final ThreadLocal<PacketHeader> headers = new ThreadLocal<PacketHeader>() {
+
+        @Override
+        protected PacketHeader initialValue() {
+            return new PacketHeader();
+        }
+    };
+
+    /**
+     * @param target The dispatcher whose processor chain the lanes run.
+     * @param laneCount Number of worker lanes (threads).
+     * @param queueDepth Number of packets each lane can hold before
+     * dispatchPacket() blocks.
+     */
+    public FlowDispatcher(PacketDispatcher target, int laneCount, int queueDepth) {
+        if (laneCount < 1 || queueDepth < 1) {
+            throw new IllegalArgumentException(
+                    "laneCount and queueDepth must be positive");
+        }
+        this.target = target;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(i, queueDepth);
+            lanes[i].start();
+        }
+    }
+
+    @Override
+    public int dispatchPacket(ByteBuffer buf) {
+        PacketHeader hdr = headers.get();
+        hdr.parse(buf);
+        int h = hdr.flowHash();
+        lanes[(h & 0x7fffffff) % lanes.length].enqueue(buf);
+        return PacketVerdict.CONTINUE;
+    }
+
+    @Override
+    public void dispatchPackets(ByteBuffer[] bufs, int[] verdicts, int count) {
+        for (int i = 0; i < count; i++) {
+            verdicts[i] = dispatchPacket(bufs[i]);
+        }
+    }
+
+    @Override
+    public void addProcessor(PacketProcessor processor) {
+        target.addProcessor(processor);
+    }
+
+    @Override
+    public void addProcessor(PacketProcessor processor, PacketInterest interest) {
+        target.addProcessor(processor, interest);
+    }
+
+    @Override
+    public void removeProcessor(PacketProcessor processor) {
+        target.removeProcessor(processor);
+    }
+
+    /**
+     * Sets the pool whose buffers are handed to the lanes without copying.
+     */
+    public void setBufferPool(PacketBufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Stops all lanes.  Packets still queued are discarded.  If the target
+     * is a PacketConduit that dispatches through this, it dispatches
+     * packets itself again, so that none is queued to a stopped lane.
+     */
+    public void shutdown() {
+        if (target instanceof PacketConduit) {
+            ((PacketConduit) target).resetDispatch(this);
+        }
+        for (Lane l : lanes) {
+            l.interrupt();
+        }
+    }
+
+    /**
+     * A worker thread with its own packet queue.  Buffers cycle between
+     * the filled queue and the free queue, so once the lane has warmed up
+     * no buffers are allocated.  Whatever has queued up while the lane was
+     * busy is dispatched as one batch.
+     */
+    private class Lane extends Thread {
+
+        private final BlockingQueue<ByteBuffer> filled;
+        private final BlockingQueue<ByteBuffer> free;
+        private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+        private final int[] verdicts = new int[MAX_BATCH];
+
+        Lane(int index, int queueDepth) {
+            super("flow lane " + index);
+            setDaemon(true);
+            filled = new ArrayBlockingQueue<ByteBuffer>(queueDepth);
+            // room for every queued buffer and a whole batch being
+            // processed, so that none is dropped on its way back
+            free = new ArrayBlockingQueue<ByteBuffer>(queueDepth + MAX_BATCH);
+        }
+
+        void enqueue(ByteBuffer buf) {
+            PacketBufferPool p = pool;
+            PacketBuffer pb = p != null ? p.find(buf) : null;
+            ByteBuffer copy;
+            if (pb != null) {
+                pb.retain();
+                copy = buf;
+            } else {
+                int len = buf.remaining();
+                copy = free.poll();
+                if (copy == null || copy.capacity() < len) {
+                    copy = ByteBuffer.allocateDirect(Math.max(len, MIN_BUFFER_SIZE));
+                }
+                int pos = buf.position();
+                copy.clear();
+                copy.put(buf);
+                copy.flip();
+                buf.position(pos);
+            }
+            try {
+                filled.put(copy);
+            } catch (InterruptedException ex) {
+                // the packet is dropped; let the caller see the interrupt
+                if (pb != null) {
+                    pb.release();
+                }
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    int n = 0;
+                    batch[n++] = filled.take();
+                    ByteBuffer buf;
+                    while (n < MAX_BATCH && (buf = filled.poll()) != null) {
+                        batch[n++] = buf;
+                    }
+                    try {
+                        target.dispatchPackets(batch, verdicts, n);
+                    } catch (Throwable ex) {
+                        // Errors too, as enqueue() would block for good
+                        // once the lane is gone
+                        logger.log(Level.WARNING, getName() + ": processor failed", ex);
+                    }
+                    PacketBufferPool p = pool;
+                    for (int i = 0; i < n; i++) {
+                        PacketBuffer pb = p != null ? p.find(batch[i]) : null;
+                        if (pb != null) {
+                            pb.release();
+                        } else {
+                            free.offer(batch[i]);
+                        }
+                        batch[i] = null;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                logger.log(Level.INFO, "{0} stopped", getName());
+            }
+        }
+    }
+}
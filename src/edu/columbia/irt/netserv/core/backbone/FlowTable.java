@@ -0,0 +1,411 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.*;
+
+/**
+ * A hash table of flows, keyed by 5-tuple, kept in direct (off-heap) memory
+ * so that millions of flows put no load on the garbage collector.  Every
+ * flow gets a fixed-size state area that modules read and write through
+ * the get/put methods.  Flows that have not been looked up for longer than
+ * the idle timeout are evicted by a background timer.
+ *
+ * The table is split into segments, each an open-addressed (linear
+ * probing) table in its own direct buffer, guarded by its own lock.
+ * Deletion shifts the following entries back instead of leaving
+ * tombstones, so probe sequences stay short without rehashing.
+ *
+ * lookup() and lookupOrInsert() return a handle to the flow.  A handle is
+ * only good until its flow is removed, expires, or is moved by the removal
+ * of another flow, after which the accessors throw IllegalStateException;
+ * take a fresh handle for every packet instead of keeping it.
+ */
+public class FlowTable {
+
+    static final Logger logger = PacketConduit.logger;
+    public static final long NOT_FOUND = -1;
+    // slot layout
+    static final int GENERATION = 0;        // int
+    static final int STATUS = 4;            // byte: 0 empty, 1 used
+    static final int PROTOCOL = 5;          // byte
+    static final int ADDRESS_LENGTH = 6;    // byte: 4 or 16
+    static final int LAST_SEEN = 8;         // long, millis
+    static final int HASH = 16;             // int
+    static final int PORTS = 20;            // int: src port << 16 | dst port
+    static final int SRC_ADDRESS = 24;      // 16 bytes
+    static final int DST_ADDRESS = 40;      // 16 bytes
+    static final int STATE = 56;
+    static final int MAX_SEGMENTS = 64;
+    // slots scanned per lock acquisition when expiring flows
+    static final int EXPIRE_CHUNK = 1024;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int stateSize;
+    private final int slotSize;
+    private final long idleTimeout;
+    private Timer timer;
+
+    /**
+     * @param capacity The number of flows the table must be able to hold.
+     * @param stateSize Bytes of module state per flow.
+     * @param idleTimeout Milliseconds after which an unused flow is evicted.
+     */
+    public FlowTable(int capacity, int stateSize, long idleTimeout) {
+        if (capacity < 1 || stateSize < 0 || idleTimeout <= 0) {
+            throw new IllegalArgumentException("bad flow table parameters");
+        }
+        this.stateSize = stateSize;
+        this.slotSize = STATE + ((stateSize + 7) & ~7);
+        this.idleTimeout = idleTimeout;
+        int n = 1;
+        while (n < MAX_SEGMENTS && n * 1024 < capacity) {
+            n <<= 1;
+        }
+        // keep every segment at most 3/4 full
+        int perSegment = (capacity + n - 1) / n;
+        int slots = Integer.highestOneBit(
+                (int) Math.max((long) perSegment * 4 / 3, 16) - 1) << 1;
+        if (slots > 1 << 24 || (long) slots * slotSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("flow table too large");
+        }
+        segments = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment(slots, perSegment);
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(n);
+    }
+
+    /**
+     * Starts the timer that evicts idle flows.
+     */
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        timer = new Timer("flow table expiry", true);
+        long period = Math.max(100, Math.min(idleTimeout / 4, 10000));
+        timer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                int n = expire(System.currentTimeMillis());
+                if (n > 0 && logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, "{0} idle flows expired", n);
+                }
+            }
+        }, period, period);
+    }
+
+    public synchronized void shutdown() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    public int stateSize() {
+        return stateSize;
+    }
+
+    /**
+     * Number of flows in the table.
+     */
+    public int size() {
+        int n = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                n += s.count;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Finds the flow of the packet parsed by hdr and marks it as seen.
+     * @return A handle to the flow, or NOT_FOUND.
+     */
+    public long lookup(PacketHeader hdr) {
+        return find(hdr, false);
+    }
+
+    /**
+     * Like lookup(), but creates the flow, with its state zeroed, if it
+     * isn't in the table yet.
+     * @return A handle to the flow, or NOT_FOUND if the packet isn't IP
+     * or the table is full.
+     */
+    public long lookupOrInsert(PacketHeader hdr) {
+        return find(hdr, true);
+    }
+
+    private long find(PacketHeader hdr, boolean insert) {
+        if (hdr.version() == 0) {
+            return NOT_FOUND;
+        }
+        int hash = hdr.flowHash();
+        int seg = segmentShift == 32 ? 0 : hash >>> segmentShift;
+        Segment s = segments[seg];
+        ByteBuffer buf = hdr.buffer();
+        int addrLen = hdr.addressLength();
+        int ports = !hdr.isFragment() && hdr.hasPorts() ? buf.getInt(hdr.l4Offset()) : 0;
+        long now = System.currentTimeMillis();
+        synchronized (s) {
+            ByteBuffer m = s.memory;
+            int mask = s.slots - 1;
+            for (int i = hash & mask, probes = 0; probes < s.slots; i = (i + 1) & mask, probes++) {
+                int base = i * slotSize;
+                if (m.get(base + STATUS) == 0) {
+                    if (!insert || s.count >= s.limit) {
+                        return NOT_FOUND;
+                    }
+                    // claim the empty slot
+                    m.put(base + STATUS, (byte) 1);
+                    m.put(base + PROTOCOL, (byte) hdr.protocol());
+                    m.put(base + ADDRESS_LENGTH, (byte) addrLen);
+                    m.putLong(base + LAST_SEEN, now);
+                    m.putInt(base + HASH, hash);
+                    m.putInt(base + PORTS, ports);
+                    int src = hdr.srcAddressOffset();
+                    int dst = hdr.dstAddressOffset();
+                    for (int k = 0; k < addrLen; k++) {
+                        m.put(base + SRC_ADDRESS + k, buf.get(src + k));
+                        m.put(base + DST_ADDRESS + k, buf.get(dst + k));
+                    }
+                    for (int k = STATE; k < slotSize; k += 8) {
+                        m.putLong(base + k, 0);
+                    }
+                    s.count++;
+                    return handle(m.getInt(base + GENERATION), seg, i);
+                }
+                if (m.getInt(base + HASH) == hash && m.getInt(base + PORTS) == ports
+                        && m.get(base + PROTOCOL) == (byte) hdr.protocol()
+                        && m.get(base + ADDRESS_LENGTH) == addrLen
+                        && sameAddress(m, base + SRC_ADDRESS, buf, hdr.srcAddressOffset(), addrLen)
+                        && sameAddress(m, base + DST_ADDRESS, buf, hdr.dstAddressOffset(), addrLen)) {
+                    m.putLong(base + LAST_SEEN, now);
+                    return handle(m.getInt(base + GENERATION), seg, i);
+                }
+            }
+            return NOT_FOUND;
+        }
+    }
+
+    /**
+     * Removes the flow.
+     * @return false if the handle was stale.
+     */
+    public boolean remove(long handle) {
+        if (segment(handle) >= segments.length) {
+            return false;
+        }
+        Segment s = segments[segment(handle)];
+        synchronized (s) {
+            int base = slotBase(s, handle, false);
+            if (base < 0) {
+                return false;
+            }
+            s.delete(slot(handle));
+            return true;
+        }
+    }
+
+    public int getInt(long handle, int offset) {
+        Segment s = segmentOf(handle);
+        synchronized (s) {
+            return s.memory.getInt(stateBase(s, handle, offset, 4));
+        }
+    }
+
+    public void putInt(long handle, int offset, int value) {
+        Segment s = segmentOf(handle);
+        synchronized (s) {
+            s.memory.putInt(stateBase(s, handle, offset, 4), value);
+        }
+    }
+
+    public long getLong(long handle, int offset) {
+        Segment s = segmentOf(handle);
+        synchronized (s) {
+            return s.memory.getLong(stateBase(s, handle, offset, 8));
+        }
+    }
+
+    public void putLong(long handle, int offset, long value) {
+        Segment s = segmentOf(handle);
+        synchronized (s) {
+            s.memory.putLong(stateBase(s, handle, offset, 8), value);
+        }
+    }
+
+    /**
+     * Atomically adds delta to the long at offset and returns the new value.
+     */
+    public long addLong(long handle, int offset, long delta) {
+        Segment s = segmentOf(handle);
+        synchronized (s) {
+            int p = stateBase(s, handle, offset, 8);
+            long v = s.memory.getLong(p) + delta;
+            s.memory.putLong(p, v);
+            return v;
+        }
+    }
+
+    /**
+     * Copies length bytes of state at offset into dst at dstOffset.
+     */
+    public void getBytes(long handle, int offset, byte[] dst, int dstOffset, int length) {
+        Segment s = segmentOf(handle);
+        synchronized (s) {
+            int p = stateBase(s, handle, offset, length);
+            for (int i = 0; i < length; i++) {
+                dst[dstOffset + i] = s.memory.get(p + i);
+            }
+        }
+    }
+
+    /**
+     * Copies length bytes from src at srcOffset into the state at offset.
+     */
+    public void putBytes(long handle, int offset, byte[] src, int srcOffset, int length) {
+        Segment s = segmentOf(handle);
+        synchronized (s) {
+            int p = stateBase(s, handle, offset, length);
+            for (int i = 0; i < length; i++) {
+                s.memory.put(p + i, src[srcOffset + i]);
+            }
+        }
+    }
+
+    /**
+     * Evicts all flows last seen more than the idle timeout before now.
+     * @return The number of flows evicted.
+     */
+    public int expire(long now) {
+        int n = 0;
+        long cutoff = now - idleTimeout;
+        for (Segment s : segments) {
+            for (int from = 0; from < s.slots; from += EXPIRE_CHUNK) {
+                synchronized (s) {
+                    ByteBuffer m = s.memory;
+                    int to = Math.min(from + EXPIRE_CHUNK, s.slots);
+                    for (int i = from; i < to;) {
+                        int base = i * slotSize;
+                        if (m.get(base + STATUS) != 0 && m.getLong(base + LAST_SEEN) < cutoff) {
+                            // another entry may move into slot i; look again
+                            s.delete(i);
+                            n++;
+                        } else {
+                            i++;
+                        }
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    private static long handle(int generation, int segment, int slot) {
+        return ((long) generation << 32) | ((long) segment << 24) | slot;
+    }
+
+    private static int segment(long handle) {
+        return (int) (handle >>> 24) & 0xff;
+    }
+
+    private static int slot(long handle) {
+        return (int) handle & 0xffffff;
+    }
+
+    private Segment segmentOf(long handle) {
+        if (segment(handle) >= segments.length) {
+            throw new IllegalStateException("invalid flow handle");
+        }
+        return segments[segment(handle)];
+    }
+
+    private int slotBase(Segment s, long handle, boolean check) {
+        int base = slot(handle) * slotSize;
+        if (slot(handle) >= s.slots || s.memory.get(base + STATUS) == 0
+                || s.memory.getInt(base + GENERATION) != (int) (handle >>> 32)) {
+            if (check) {
+                throw new IllegalStateException("stale flow handle");
+            }
+            return -1;
+        }
+        return base;
+    }
+
+    private int stateBase(Segment s, long handle, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > stateSize) {
+            throw new IndexOutOfBoundsException("state offset " + offset);
+        }
+        return slotBase(s, handle, true) + STATE + offset;
+    }
+
+    private static boolean sameAddress(ByteBuffer m, int p, ByteBuffer buf, int q, int len) {
+        for (int i = 0; i < len; i += 4) {
+            if (m.getInt(p + i) != buf.getInt(q + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * One lock stripe: a linear probing table in its own direct buffer.
+     */
+    private final class Segment {
+
+        final int slots;
+        final int limit;
+        final ByteBuffer memory;
+        int count;
+
+        Segment(int slots, int limit) {
+            this.slots = slots;
+            this.limit = limit;
+            this.memory = ByteBuffer.allocateDirect(slots * slotSize);
+        }
+
+        /**
+         * Empties slot i and shifts back the entries of the probe sequence
+         * behind it, so no tombstones are needed.
+         */
+        void delete(int i) {
+            int mask = slots - 1;
+            int j = i;
+            for (;;) {
+                j = (j + 1) & mask;
+                int base = j * slotSize;
+                if (memory.get(base + STATUS) == 0) {
+                    break;
+                }
+                int home = memory.getInt(base + HASH) & mask;
+                // the entry at j can fill the hole at i unless its home
+                // lies cyclically in (i, j]
+                boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (!stays) {
+                    move(j, i);
+                    i = j;
+                }
+            }
+            int base = i * slotSize;
+            memory.put(base + STATUS, (byte) 0);
+            memory.putInt(base + GENERATION, memory.getInt(base + GENERATION) + 1);
+            count--;
+        }
+
+        private void move(int from, int to) {
+            int src = from * slotSize;
+            int dst = to * slotSize;
+            int generation = memory.getInt(dst + GENERATION) + 1;
+            for (int k = 0; k < slotSize; k += 8) {
+                memory.putLong(dst + k, memory.getLong(src + k));
+            }
+            memory.putInt(dst + GENERATION, generation);
+            memory.putInt(src + GENERATION, memory.getInt(src + GENERATION) + 1);
+        }
+    }
+}
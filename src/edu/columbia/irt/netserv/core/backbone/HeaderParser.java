@@ -0,0 +1,381 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Indexes the start line and header fields of a SIP or HTTP message as
+ * offset/length pairs into the packet, so modules can inspect headers
+ * without creating Strings.
+ *
+ * parse() returns INCOMPLETE if the header block doesn't end in the bytes
+ * given; the rest of the message is then passed to further parse() calls.
+ * Since the packet buffer may be reused once the module returns, the
+ * parser keeps its own copy of the message from that point on, and the
+ * offsets refer to buffer() rather than to the packet.  Header fields that
+ * are folded over several lines are indexed as one value, which still
+ * contains the line breaks; Util.compareSpaceCaseBytes() and
+ * getFieldValue() skip them.
+ *
+ * A parser is reused for the next message after reset(); it isn't safe for
+ * use by more than one thread at a time.
+ */
+public final class HeaderParser {
+
+    public static final int INCOMPLETE = 0;
+    public static final int COMPLETE = 1;
+    public static final int ERROR = -1;
+    private static final int START_LINE = 0;
+    private static final int HEADERS = 1;
+    private static final int DONE = 2;
+    private static final int FAILED = 3;
+    private final int maxHeaderBytes;
+    private final int maxFields;
+    private int phase = START_LINE;
+    // the buffer the offsets refer to: the packet, or acc
+    private ByteBuffer src = null;
+    private int msgStart;
+    private int end;
+    // start of the line to parse next
+    private int pos;
+    private int startLineOffset;
+    private int startLineLength;
+    private int bodyOffset;
+    // four ints per field: name offset, name length, value offset and
+    // value length
+    private int[] fields = new int[4 * 16];
+    private int fieldCount = 0;
+    // holds a message that spans packets
+    private ByteBuffer acc = null;
+
+    /**
+     * Creates a parser that gives up on header blocks over 64 KB or with
+     * more than 256 fields.
+     */
+    public HeaderParser() {
+        this(65536, 256);
+    }
+
+    public HeaderParser(int maxHeaderBytes, int maxFields) {
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxFields = maxFields;
+    }
+
+    /**
+     * Forgets the current message.
+     */
+    public void reset() {
+        phase = START_LINE;
+        src = null;
+        fieldCount = 0;
+    }
+
+    /**
+     * Parses length bytes of buf starting at offset, the beginning or, if
+     * the last call returned INCOMPLETE, the continuation of a message.
+     * The buffer's position and limit are not used or changed.
+     * @return COMPLETE once the empty line ending the header block has been
+     * seen, INCOMPLETE if more bytes are needed, or ERROR if the message
+     * is malformed or too big.  Once COMPLETE or ERROR, further calls
+     * return the same until reset().
+     */
+    public int parse(ByteBuffer buf, int offset, int length) {
+        if (phase == DONE) {
+            return COMPLETE;
+        }
+        if (phase == FAILED) {
+            return ERROR;
+        }
+        if (src == null) {
+            src = buf;
+            msgStart = offset;
+            pos = offset;
+            end = offset + length;
+        } else {
+            append(buf, offset, length);
+        }
+        int r = run();
+        if (r == INCOMPLETE) {
+            if (end - msgStart > maxHeaderBytes) {
+                phase = FAILED;
+                return ERROR;
+            }
+            if (src != acc) {
+                keep();
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Returns the buffer the offsets refer to: the packet passed to
+     * parse() if the header block was complete in it, otherwise the
+     * parser's own copy of the message.
+     */
+    public ByteBuffer buffer() {
+        return src;
+    }
+
+    public int startLineOffset() {
+        return startLineOffset;
+    }
+
+    public int startLineLength() {
+        return startLineLength;
+    }
+
+    /**
+     * Returns the offset of the first byte after the header block.  The
+     * body bytes that came with the last parse() follow it in buffer(), up
+     * to bodyEnd().
+     */
+    public int bodyOffset() {
+        return bodyOffset;
+    }
+
+    public int bodyEnd() {
+        return end;
+    }
+
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    public int fieldNameOffset(int i) {
+        return fields[4 * i];
+    }
+
+    public int fieldNameLength(int i) {
+        return fields[4 * i + 1];
+    }
+
+    public int fieldValueOffset(int i) {
+        return fields[4 * i + 2];
+    }
+
+    public int fieldValueLength(int i) {
+        return fields[4 * i + 3];
+    }
+
+    /**
+     * Returns the index of the first field called name, ignoring case, or
+     * -1 if there is none.
+     */
+    public int findField(byte[] name) {
+        return findField(name, 0);
+    }
+
+    /**
+     * Returns the index of the first field called name at or after index
+     * from, ignoring case, or -1 if there is none.  This is how repeated
+     * fields such as Via are walked.
+     */
+    public int findField(byte[] name, int from) {
+        for (int i = from; i < fieldCount; i++) {
+            if (fields[4 * i + 1] == name.length
+                    && Util.compareCaseBytes(src, fields[4 * i], name, 0, name.length) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value of field i as a number, or -1 if it isn't a
+     * non-negative decimal number, e.g. for Content-Length.
+     */
+    public long getFieldValueAsLong(int i) {
+        int off = fields[4 * i + 2];
+        int len = fields[4 * i + 3];
+        if (len == 0 || len > 18) {
+            return -1;
+        }
+        long n = 0;
+        for (int j = off; j < off + len; j++) {
+            int c = src.get(j);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            n = n * 10 + c - '0';
+        }
+        return n;
+    }
+
+    /**
+     * Returns the value of field i as a String, with each line break of a
+     * folded value and the white space around it replaced by one space.
+     * This allocates; the offsets are there to avoid it.
+     */
+    public String getFieldValue(int i) {
+        int off = fields[4 * i + 2];
+        int len = fields[4 * i + 3];
+        byte[] b = new byte[len];
+        int n = 0;
+        for (int j = off; j < off + len; j++) {
+            byte c = src.get(j);
+            if (c == '\r' || c == '\n') {
+                while (n > 0 && (b[n - 1] == ' ' || b[n - 1] == '\t')) {
+                    n--;
+                }
+                while (j + 1 < off + len && isSpace(src.get(j + 1))) {
+                    j++;
+                }
+                b[n++] = ' ';
+            } else {
+                b[n++] = c;
+            }
+        }
+        return new String(b, 0, n, Charset.forName(Util.UTF8));
+    }
+
+    private int run() {
+        ByteBuffer b = src;
+        if (phase == START_LINE) {
+            // tolerate empty lines before the start line, such as SIP
+            // keep-alives
+            while (pos < end && isLineBreak(b.get(pos))) {
+                pos++;
+            }
+            msgStart = pos;
+            int e = Util.findEndOfLine(b, pos, end - pos);
+            if (e < 0) {
+                return INCOMPLETE;
+            }
+            int next = skipLineBreak(b, e);
+            if (next < 0) {
+                return INCOMPLETE;
+            }
+            startLineOffset = pos;
+            startLineLength = e - pos;
+            pos = next;
+            phase = HEADERS;
+        }
+        while (pos < end) {
+            byte c = b.get(pos);
+            if (isLineBreak(c)) {
+                int next = skipLineBreak(b, pos);
+                if (next < 0) {
+                    return INCOMPLETE;
+                }
+                bodyOffset = next;
+                phase = DONE;
+                return COMPLETE;
+            }
+            if (c == ' ' || c == '\t') {
+                // a continuation line without a field
+                phase = FAILED;
+                return ERROR;
+            }
+            // the field ends at the first line break not followed by
+            // white space, which has to be seen before the field is known
+            // to be complete
+            int s = pos;
+            int e;
+            int next;
+            for (;;) {
+                e = Util.findEndOfLine(b, s, end - s);
+                if (e < 0) {
+                    return INCOMPLETE;
+                }
+                next = skipLineBreak(b, e);
+                if (next < 0 || next >= end) {
+                    return INCOMPLETE;
+                }
+                if (!isSpace(b.get(next))) {
+                    break;
+                }
+                s = next;
+            }
+            int colon = Util.findFirstByte((byte) ':', b, pos, e - pos);
+            if (colon < 0 || !addField(b, pos, colon, e)) {
+                phase = FAILED;
+                return ERROR;
+            }
+            pos = next;
+        }
+        return INCOMPLETE;
+    }
+
+    private boolean addField(ByteBuffer b, int start, int colon, int e) {
+        if (fieldCount == maxFields) {
+            return false;
+        }
+        if (fields.length < 4 * (fieldCount + 1)) {
+            fields = Arrays.copyOf(fields, 2 * fields.length);
+        }
+        int nameEnd = colon;
+        while (nameEnd > start && isSpace(b.get(nameEnd - 1))) {
+            nameEnd--;
+        }
+        int v = colon + 1;
+        while (v < e && (isSpace(b.get(v)) || isLineBreak(b.get(v)))) {
+            v++;
+        }
+        int ve = e;
+        while (ve > v && isSpace(b.get(ve - 1))) {
+            ve--;
+        }
+        int i = 4 * fieldCount++;
+        fields[i] = start;
+        fields[i + 1] = nameEnd - start;
+        fields[i + 2] = v;
+        fields[i + 3] = ve - v;
+        return true;
+    }
+
+    // Returns the offset after the line break at e, or -1 if it's a CR at
+    // the end of the data so far, which may yet be followed by a LF.
+    private int skipLineBreak(ByteBuffer b, int e) {
+        if (b.get(e) == '\n') {
+            return e + 1;
+        }
+        if (e + 1 == end) {
+            return -1;
+        }
+        return b.get(e + 1) == '\n' ? e + 2 : e + 1;
+    }
+
+    // Copies the message so far out of the packet and moves all offsets
+    // along with it.
+    private void keep() {
+        int n = end - msgStart;
+        if (acc == null || acc.capacity() < n) {
+            acc = ByteBuffer.allocate(Math.max(n, 2048));
+        }
+        for (int i = 0; i < n; i++) {
+            acc.put(i, src.get(msgStart + i));
+        }
+        int d = msgStart;
+        for (int i = 0; i < fieldCount; i++) {
+            fields[4 * i] -= d;
+            fields[4 * i + 2] -= d;
+        }
+        startLineOffset -= d;
+        pos -= d;
+        end = n;
+        msgStart = 0;
+        src = acc;
+    }
+
+    private void append(ByteBuffer buf, int offset, int length) {
+        if (acc.capacity() < end + length) {
+            ByteBuffer a = ByteBuffer.allocate(Math.max(end + length, 2 * acc.capacity()));
+            System.arraycopy(acc.array(), 0, a.array(), 0, end);
+            acc = a;
+            src = a;
+        }
+        for (int i = 0; i < length; i++) {
+            acc.put(end + i, buf.get(offset + i));
+        }
+        end += length;
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static boolean isLineBreak(byte c) {
+        return c == '\r' || c == '\n';
+    }
+}
@@ -0,0 +1,66 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+/**
+ * How long a PacketProcessor may take per packet before PacketConduit
+ * bypasses it.  A processor that exceeds the budget tripAfter times in a row
+ * (or is stuck in a single call for tripAfter times the budget) is tripped:
+ * for the cooldown period it is skipped, and the packets either pass on to
+ * the rest of the chain (fail-open) or are dropped (fail-closed).  After
+ * the cooldown one packet is let through as a probe; if the processor
+ * handles it within budget it is back in the chain, otherwise the cooldown
+ * starts over.
+ */
+public final class LatencyBudget {
+
+    private final long budgetNanos;
+    private final int tripAfter;
+    private final long cooldownNanos;
+    private final boolean failOpen;
+
+    /**
+     * @param budgetNanos Time allowed per packet, in nanoseconds.
+     * @param tripAfter Consecutive violations that trip the processor.
+     * @param cooldownMillis How long a tripped processor is bypassed
+     * before it is probed again.
+     * @param failOpen True to pass packets on while the processor is
+     * bypassed, false to drop them.
+     */
+    public LatencyBudget(long budgetNanos, int tripAfter, long cooldownMillis,
+            boolean failOpen) {
+        if (budgetNanos <= 0 || tripAfter < 1 || cooldownMillis < 0) {
+            throw new IllegalArgumentException("bad latency budget");
+        }
+        this.budgetNanos = budgetNanos;
+        this.tripAfter = tripAfter;
+        this.cooldownNanos = cooldownMillis * 1000000L;
+        this.failOpen = failOpen;
+    }
+
+    public long budgetNanos() {
+        return budgetNanos;
+    }
+
+    public int tripAfter() {
+        return tripAfter;
+    }
+
+    public long cooldownMillis() {
+        return cooldownNanos / 1000000L;
+    }
+
+    long cooldownNanos() {
+        return cooldownNanos;
+    }
+
+    public boolean isFailOpen() {
+        return failOpen;
+    }
+
+    @Override
+    public String toString() {
+        return "budget=" + LatencyHistogram.formatNanos(budgetNanos)
+                + " tripAfter=" + tripAfter
+                + " cooldown=" + cooldownMillis() + "ms"
+                + (failOpen ? " fail-open" : " fail-closed");
+    }
+}
@@ -0,0 +1,117 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds with power-of-two buckets:
+ * bucket b counts values in [2^(b-1), 2^b), bucket 0 counts 0.  Recording
+ * is a single atomic add.  Writers are spread over stripes, each on its own
+ * cache lines, so threads recording concurrently don't contend; readers
+ * sum the stripes.
+ */
+public final class LatencyHistogram {
+
+    public static final int BUCKETS = 48;
+    static final int STRIPES;
+    // longs per stripe: the buckets plus padding to keep stripes apart
+    static final int STRIDE = BUCKETS + 8;
+
+    static {
+        int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        STRIPES = Math.min(n, 64);
+    }
+    private final AtomicLongArray cells;
+
+    public LatencyHistogram() {
+        cells = new AtomicLongArray(STRIPES * STRIDE);
+    }
+
+    /**
+     * Records count values of nanos each.
+     * @param stripe Any int, preferably distinct per thread.
+     */
+    public void record(int stripe, long nanos, int count) {
+        int b = nanos <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+        cells.addAndGet((stripe & (STRIPES - 1)) * STRIDE + b, count);
+    }
+
+    public void record(long nanos) {
+        record(0, nanos, 1);
+    }
+
+    /**
+     * Sums the stripes into counts, which must have BUCKETS entries.
+     * @return The total count.
+     */
+    public long snapshot(long[] counts) {
+        long total = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            long n = 0;
+            for (int s = 0; s < STRIPES; s++) {
+                n += cells.get(s * STRIDE + b);
+            }
+            counts[b] = n;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Upper bound of the bucket containing the q-quantile, in nanoseconds.
+     * @param q Between 0 and 1, e.g. 0.99.
+     * @return 0 if nothing was recorded.
+     */
+    public long percentile(double q) {
+        long[] counts = new long[BUCKETS];
+        long total = snapshot(counts);
+        return percentile(counts, total, q);
+    }
+
+    static long percentile(long[] counts, long total, double q) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long n = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            n += counts[b];
+            if (n >= rank && counts[b] > 0) {
+                return b == 0 ? 0 : 1L << b;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    public long count() {
+        return snapshot(new long[BUCKETS]);
+    }
+
+    /**
+     * Formats count and the 50th, 90th, 99th and 99.9th percentiles.
+     */
+    public void format(StringBuilder s) {
+        long[] counts = new long[BUCKETS];
+        long total = snapshot(counts);
+        s.append("n=").append(total);
+        s.append(" p50=").append(formatNanos(percentile(counts, total, 0.5)));
+        s.append(" p90=").append(formatNanos(percentile(counts, total, 0.9)));
+        s.append(" p99=").append(formatNanos(percentile(counts, total, 0.99)));
+        s.append(" p999=").append(formatNanos(percentile(counts, total, 0.999)));
+    }
+
+    static String formatNanos(long nanos) {
+        if (nanos < 10000) {
+            return nanos + "ns";
+        } else if (nanos < 10000000) {
+            return (nanos / 1000) + "us";
+        } else {
+            return (nanos / 1000000) + "ms";
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < cells.length(); i++) {
+            cells.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Finds any number of byte patterns in a single pass over a payload
+ * (Aho-Corasick), instead of one Util.compareBytes() scan per pattern.
+ *
+ * The patterns are compiled into a table indexed by state and byte class,
+ * where bytes that occur in no pattern share one class, so the table stays
+ * small.  A matcher is immutable and can be shared by any number of
+ * threads; a module whose pattern set changes simply builds a new one.
+ *
+ * A scan can be continued in the next packet of a stream by passing in the
+ * state the previous scan returned, so patterns that straddle packets are
+ * found too.
+ */
+public final class MultiPatternMatcher {
+
+    /**
+     * Receives the matches found by scan().
+     */
+    public interface MatchListener {
+
+        /**
+         * @param pattern Index of the pattern, in the order given to the
+         * constructor.
+         * @param end Buffer index just past the last byte of the match.  In
+         * a continued scan the match may have started in an earlier packet,
+         * so end - patternLength(pattern) can be before the scanned region.
+         * @return True to go on scanning, false to stop.
+         */
+        boolean match(int pattern, int end);
+    }
+    /** The state to start a scan in. */
+    public static final int INITIAL = 0;
+    private final boolean ignoreCase;
+    private final int[] lengths;
+    // byte value -> byte class
+    private final int[] classes = new int[256];
+    private final int classCount;
+    // next state for state s and class c is delta[s * classCount + c]
+    private final int[] delta;
+    // the patterns that end in state s are
+    // outPatterns[outStart[s]] .. outPatterns[outStart[s + 1] - 1]
+    private final int[] outStart;
+    private final int[] outPatterns;
+
+    /**
+     * @param patterns The patterns; must not be empty.
+     * @param ignoreCase If true, ASCII letters match regardless of case.
+     */
+    public MultiPatternMatcher(byte[][] patterns, boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        this.lengths = new int[patterns.length];
+        int total = 0;
+        for (int p = 0; p < patterns.length; p++) {
+            if (patterns[p].length == 0) {
+                throw new IllegalArgumentException("empty pattern " + p);
+            }
+            lengths[p] = patterns[p].length;
+            total += patterns[p].length;
+        }
+
+        // one class per distinct byte, and class 0 for all the others
+        int k = 1;
+        for (byte[] pattern : patterns) {
+            for (byte b : pattern) {
+                int c = fold(b);
+                if (classes[c] == 0) {
+                    classes[c] = k++;
+                }
+            }
+        }
+        if (ignoreCase) {
+            for (int c = 'A'; c <= 'Z'; c++) {
+                classes[c] = classes[c + 32];
+            }
+        }
+        classCount = k;
+
+        // the trie; -1 for no edge
+        int[] trie = new int[(total + 1) * k];
+        Arrays.fill(trie, -1);
+        int[] terminal = new int[total + 1];
+        Arrays.fill(terminal, -1);
+        // patterns that end in the same state, chained by index
+        int[] sameEnd = new int[patterns.length];
+        int states = 1;
+        for (int p = 0; p < patterns.length; p++) {
+            int s = 0;
+            for (byte b : patterns[p]) {
+                int i = s * k + classes[b & 0xff];
+                if (trie[i] < 0) {
+                    trie[i] = states++;
+                }
+                s = trie[i];
+            }
+            sameEnd[p] = terminal[s];
+            terminal[s] = p;
+        }
+
+        // breadth first, so a state's failure state is complete before it
+        delta = new int[states * k];
+        int[] fail = new int[states];
+        int[] queue = new int[states];
+        int[][] out = new int[states][];
+        int head = 0;
+        int tail = 0;
+        out[0] = own(terminal[0], sameEnd, new int[0]);
+        for (int c = 0; c < k; c++) {
+            int t = trie[c];
+            if (t < 0) {
+                delta[c] = 0;
+            } else {
+                delta[c] = t;
+                fail[t] = 0;
+                queue[tail++] = t;
+            }
+        }
+        int outCount = 0;
+        while (head < tail) {
+            int s = queue[head++];
+            out[s] = own(terminal[s], sameEnd, out[fail[s]]);
+            outCount += out[s].length;
+            for (int c = 0; c < k; c++) {
+                int t = trie[s * k + c];
+                if (t < 0) {
+                    delta[s * k + c] = delta[fail[s] * k + c];
+                } else {
+                    delta[s * k + c] = t;
+                    fail[t] = delta[fail[s] * k + c];
+                    queue[tail++] = t;
+                }
+            }
+        }
+
+        outStart = new int[states + 1];
+        outPatterns = new int[outCount];
+        int n = 0;
+        for (int s = 0; s < states; s++) {
+            outStart[s] = n;
+            for (int p : out[s]) {
+                outPatterns[n++] = p;
+            }
+        }
+        outStart[states] = n;
+    }
+
+    /**
+     * Same as above, with the patterns encoded in UTF-8.
+     */
+    public MultiPatternMatcher(String[] patterns, boolean ignoreCase) {
+        this(encode(patterns), ignoreCase);
+    }
+
+    public int patternCount() {
+        return lengths.length;
+    }
+
+    public int patternLength(int pattern) {
+        return lengths[pattern];
+    }
+
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    /**
+     * Reports every match in length bytes of buf starting at offset,
+     * including overlapping ones, in the order they end.  The buffer's
+     * position and limit are not used or changed.
+     * @param state INITIAL, or what the scan of the previous packet of the
+     * same stream returned.
+     * @return The state to continue the stream with, or -1 if the listener
+     * stopped the scan.
+     */
+    public int scan(ByteBuffer buf, int offset, int length, int state,
+            MatchListener listener) {
+        int[] cls = classes;
+        int[] next = delta;
+        int[] start = outStart;
+        int k = classCount;
+        int s = state;
+        int end = offset + length;
+        if (buf.hasArray()) {
+            byte[] a = buf.array();
+            int base = buf.arrayOffset();
+            for (int i = offset; i < end; i++) {
+                s = next[s * k + cls[a[base + i] & 0xff]];
+                if (start[s] != start[s + 1] && !report(s, i + 1, listener)) {
+                    return -1;
+                }
+            }
+        } else {
+            for (int i = offset; i < end; i++) {
+                s = next[s * k + cls[buf.get(i) & 0xff]];
+                if (start[s] != start[s + 1] && !report(s, i + 1, listener)) {
+                    return -1;
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Returns the pattern of the first match in length bytes of buf
+     * starting at offset, or -1 if there is none.  If several patterns end
+     * at the same byte, the longest is returned.
+     */
+    public int findFirst(ByteBuffer buf, int offset, int length) {
+        int[] cls = classes;
+        int[] next = delta;
+        int[] start = outStart;
+        int k = classCount;
+        int s = INITIAL;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            s = next[s * k + cls[buf.get(i) & 0xff]];
+            if (start[s] != start[s + 1]) {
+                return outPatterns[start[s]];
+            }
+        }
+        return -1;
+    }
+
+    private boolean report(int s, int end, MatchListener listener) {
+        for (int i = outStart[s]; i < outStart[s + 1]; i++) {
+            if (!listener.match(outPatterns[i], end)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int fold(byte b) {
+        int c = b & 0xff;
+        return ignoreCase && c >= 'A' && c <= 'Z' ? c + 32 : c;
+    }
+
+    // the patterns chained from p, followed by those of the failure state,
+    // which are shorter
+    private static int[] own(int p, int[] sameEnd, int[] inherited) {
+        int n = 0;
+        for (int q = p; q >= 0; q = sameEnd[q]) {
+            n++;
+        }
+        if (n == 0) {
+            return inherited;
+        }
+        int[] out = new int[n + inherited.length];
+        int i = 0;
+        for (int q = p; q >= 0; q = sameEnd[q]) {
+            out[i++] = q;
+        }
+        System.arraycopy(inherited, 0, out, n, inherited.length);
+        return out;
+    }
+
+    private static byte[][] encode(String[] patterns) {
+        Charset utf8 = Charset.forName(Util.UTF8);
+        byte[][] b = new byte[patterns.length][];
+        for (int i = 0; i < patterns.length; i++) {
+            b[i] = patterns[i].getBytes(utf8);
+        }
+        return b;
+    }
+}
@@ -0,0 +1,16 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A Netserv-Service that writes its output to a channel rather than to a
+ * stream, so it can hand over direct buffers or file content without
+ * copying it through byte arrays, e.g. with FileChannel.transferTo().
+ * The Controller uses it instead of NetServService when the class
+ * implements it, or has an execute() method of the same signature.
+ */
+public interface NetServChannelService {
+    // used in server mode; out is the control connection itself, or a
+    // buffer for a framed response, and must not be closed
+    public void execute(GatheringByteChannel out, Object param) throws ServiceException;
+}
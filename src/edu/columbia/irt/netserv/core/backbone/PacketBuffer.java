@@ -0,0 +1,78 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A packet buffer from a {@link PacketBufferPool}.  The buffer goes back to
+ * the pool when its reference count drops to zero.  The native code owns
+ * the first reference while it fills the buffer; PacketConduit gives that
+ * reference up once the processor chain has returned.  A processor that
+ * wants to keep the packet beyond that must call retain() during dispatch
+ * and release() when it is done with it.
+ */
+public final class PacketBuffer {
+
+    private final PacketBufferPool pool;
+    private final int id;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refs = new AtomicInteger();
+
+    PacketBuffer(PacketBufferPool pool, int id, ByteBuffer buffer) {
+        this.pool = pool;
+        this.id = id;
+        this.buffer = buffer;
+    }
+
+    /**
+     * The pool-wide index of this buffer, as used by the native code.
+     */
+    public int id() {
+        return id;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int refCount() {
+        return refs.get();
+    }
+
+    /**
+     * Takes another reference to the buffer.
+     * @throws IllegalStateException if the buffer is back in the pool.
+     */
+    public PacketBuffer retain() {
+        for (;;) {
+            int n = refs.get();
+            if (n <= 0) {
+                throw new IllegalStateException("buffer " + id + " is not in use");
+            }
+            if (refs.compareAndSet(n, n + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Gives up a reference; the last one returns the buffer to the pool.
+     */
+    public void release() {
+        int n = refs.decrementAndGet();
+        if (n == 0) {
+            buffer.clear();
+            pool.free(this);
+        } else if (n < 0) {
+            refs.incrementAndGet();
+            throw new IllegalStateException("buffer " + id + " released too often");
+        }
+    }
+
+    /**
+     * Called by the pool when it hands the buffer out.
+     */
+    void acquired() {
+        refs.set(1);
+    }
+}
@@ -0,0 +1,138 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed pool of equally sized direct packet buffers, carved out of a few
+ * large direct buffers (slabs).  All memory is allocated up front, so the
+ * native code can register the slabs once and then fill buffers in place,
+ * referring to them by ID; nothing is allocated or freed per packet.
+ *
+ * Buffer i lives in slab i / buffersPerSlab() at byte offset
+ * (i % buffersPerSlab()) * bufferSize().  Free buffers are kept on a
+ * lock-free stack.
+ */
+public class PacketBufferPool {
+
+    private final int bufferSize;
+    private final int buffersPerSlab;
+    private final ByteBuffer[] slabs;
+    private final PacketBuffer[] buffers;
+    // read-only after construction
+    private final IdentityHashMap<ByteBuffer, PacketBuffer> byBuffer;
+    // free stack: head holds a modification count in the upper 32 bits
+    // against ABA, and the top buffer's index + 1 (0 when empty) below
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicIntegerArray next;
+
+    /**
+     * @param bufferSize Size of each buffer; the largest packet it can take.
+     * @param buffersPerSlab Number of buffers per slab.
+     * @param slabCount Number of slabs.
+     */
+    public PacketBufferPool(int bufferSize, int buffersPerSlab, int slabCount) {
+        if (bufferSize < 1 || buffersPerSlab < 1 || slabCount < 1
+                || (long) bufferSize * buffersPerSlab > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("bad buffer pool parameters");
+        }
+        this.bufferSize = bufferSize;
+        this.buffersPerSlab = buffersPerSlab;
+        int total = buffersPerSlab * slabCount;
+        slabs = new ByteBuffer[slabCount];
+        buffers = new PacketBuffer[total];
+        byBuffer = new IdentityHashMap<ByteBuffer, PacketBuffer>(total);
+        next = new AtomicIntegerArray(total);
+        for (int s = 0; s < slabCount; s++) {
+            slabs[s] = ByteBuffer.allocateDirect(bufferSize * buffersPerSlab);
+            for (int i = 0; i < buffersPerSlab; i++) {
+                ByteBuffer slab = slabs[s].duplicate();
+                slab.position(i * bufferSize);
+                slab.limit((i + 1) * bufferSize);
+                int id = s * buffersPerSlab + i;
+                buffers[id] = new PacketBuffer(this, id, slab.slice());
+                byBuffer.put(buffers[id].buffer(), buffers[id]);
+            }
+        }
+        for (int id = total - 1; id >= 0; id--) {
+            free(buffers[id]);
+        }
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public int buffersPerSlab() {
+        return buffersPerSlab;
+    }
+
+    /**
+     * The slabs, for the native code to register.
+     */
+    public ByteBuffer[] slabs() {
+        return slabs.clone();
+    }
+
+    /**
+     * Takes a buffer out of the pool, with a reference count of 1.
+     * @return The buffer, or null if the pool is exhausted.
+     */
+    public PacketBuffer acquire() {
+        for (;;) {
+            long h = head.get();
+            int top = (int) h;
+            if (top == 0) {
+                return null;
+            }
+            long h2 = ((h >>> 32) + 1) << 32 | (next.get(top - 1) & 0xffffffffL);
+            if (head.compareAndSet(h, h2)) {
+                PacketBuffer b = buffers[top - 1];
+                b.acquired();
+                return b;
+            }
+        }
+    }
+
+    /**
+     * Returns the buffer with the given ID.
+     */
+    public PacketBuffer get(int id) {
+        return buffers[id];
+    }
+
+    /**
+     * Returns the pool buffer whose ByteBuffer is buf, or null if buf
+     * doesn't come from this pool.
+     */
+    public PacketBuffer find(ByteBuffer buf) {
+        return byBuffer.get(buf);
+    }
+
+    /**
+     * Number of buffers currently in the pool.
+     */
+    public int available() {
+        int n = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i].refCount() == 0) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    void free(PacketBuffer b) {
+        int id = b.id();
+        for (;;) {
+            long h = head.get();
+            next.set(id, (int) h);
+            long h2 = ((h >>> 32) + 1) << 32 | (id + 1);
+            if (head.compareAndSet(h, h2)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.*;
+
+/**
+ * Copies the packets PacketConduit dispatches, or those matching a
+ * PacketInterest, into pcap files, to see what the modules were given.
+ *
+ * Dispatching threads copy packets into a ring of fixed-size slots
+ * without taking locks; a writer thread drains the ring into memory-mapped
+ * files of a fixed size, starting a new file when one is full and deleting
+ * the oldest beyond a given number.  If the writer falls behind and the
+ * ring fills up, packets are dropped and counted, never waited for.
+ * Packets are written from their IP header on (LINKTYPE_RAW) with
+ * nanosecond timestamps.
+ */
+public final class PacketCapture {
+
+    static final Logger logger = Logger.getLogger("edu.columbia.irt.netserv.controller.core.service");
+
+    static {
+        Util.setupConsoleLogging(logger, Level.INFO);
+    }
+    private final File dir;
+    private final String prefix;
+    private final PacketInterest filter;
+    private final PacketClassifier classifier;
+    private final int snapLen;
+    private final long fileSize;
+    private final int maxFiles;
+    // the ring: slot i holds capLens[i] bytes of data from i * snapLen
+    private final int slots;
+    private final byte[] data;
+    private final int[] capLens;
+    private final int[] origLens;
+    private final long[] stamps;
+    // slot i may be claimed by the producer of sequence number t when
+    // seq[i] == t, and read by the writer at sequence number h when
+    // seq[i] == h + 1
+    private final AtomicLongArray seq;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // writer state
+    private long head = 0;
+    private volatile long written = 0;
+    private int fileNumber = 0;
+    private final LinkedList<File> files = new LinkedList<File>();
+    private RandomAccessFile file = null;
+    private MappedByteBuffer out = null;
+    private volatile boolean running = false;
+    private volatile String error = null;
+    private Thread writer = null;
+    // turns System.nanoTime() into wall clock time
+    private final long clockBase = System.currentTimeMillis() * 1000000L - System.nanoTime();
+
+    /**
+     * @param dir Directory to write the files to.
+     * @param prefix Files are named prefix-1.pcap, prefix-2.pcap and so on.
+     * @param filter Packets to capture, or null for all.
+     * @param snapLen Most bytes to keep of a packet.
+     * @param ringSlots Packets the ring holds; rounded up to a power of 2.
+     * @param fileSize Size of each file, in bytes.
+     * @param maxFiles Files to keep; 0 keeps all.
+     */
+    public PacketCapture(File dir, String prefix, PacketInterest filter,
+            int snapLen, int ringSlots, long fileSize, int maxFiles) {
+        if (snapLen < 1 || ringSlots < 1
+                || (long) ringSlots * snapLen > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("bad capture ring size");
+        }
+        this.dir = dir;
+        this.prefix = prefix;
+        this.filter = filter;
+        this.classifier = filter == null ? null
+                : new PacketClassifier(new PacketInterest[]{filter});
+        this.snapLen = snapLen;
+        int n = 1;
+        while (n < ringSlots) {
+            n <<= 1;
+        }
+        this.slots = n;
+        this.fileSize = Math.max(fileSize,
+                Pcap.FILE_HEADER_LENGTH + Pcap.RECORD_HEADER_LENGTH + snapLen);
+        this.maxFiles = maxFiles;
+        this.data = new byte[slots * snapLen];
+        this.capLens = new int[slots];
+        this.origLens = new int[slots];
+        this.stamps = new long[slots];
+        this.seq = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            seq.set(i, i);
+        }
+    }
+
+    /**
+     * Builds a capture from the headers of a CAPTURE START request:
+     * capture-dir (required), capture-prefix, capture-snaplen,
+     * capture-ring, capture-filesize and capture-files, and the filter-ipv4,
+     * filter-proto and filter-port headers also used by SETUP.
+     * @throws IllegalArgumentException if a header can't be parsed.
+     */
+    public static PacketCapture fromHeaders(Map<String, String> headers) {
+        String d = headers.get("capture-dir");
+        if (d == null) {
+            throw new IllegalArgumentException("capture-dir missing");
+        }
+        String prefix = headers.get("capture-prefix");
+        return new PacketCapture(new File(d),
+                prefix == null ? "capture" : prefix,
+                PacketInterest.fromHeaders(headers),
+                intHeader(headers, "capture-snaplen", 2048),
+                intHeader(headers, "capture-ring", 8192),
+                intHeader(headers, "capture-filesize", 64 << 20),
+                intHeader(headers, "capture-files", 8));
+    }
+
+    private static int intHeader(Map<String, String> headers, String name, int def) {
+        String v = headers.get(name);
+        if (v == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + ": " + v);
+        }
+    }
+
+    /**
+     * Returns whether offer() needs the parsed headers of packets.
+     */
+    boolean needsHeader() {
+        return classifier != null;
+    }
+
+    /**
+     * Called by dispatching threads for every packet.  Copies the packet
+     * into the ring if it matches the filter, or counts it as dropped if
+     * the ring is full.  The buffer's position is restored.
+     * @param hdr The parsed headers if needsHeader(), otherwise ignored.
+     */
+    void offer(ByteBuffer buf, PacketHeader hdr) {
+        if (classifier != null && classifier.match(hdr, 0) == 0) {
+            return;
+        }
+        long t;
+        int slot;
+        for (;;) {
+            t = tail.get();
+            slot = (int) t & (slots - 1);
+            long s = seq.get(slot);
+            if (s == t) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    break;
+                }
+            } else if (s < t) {
+                // still holds a packet from the last round
+                dropped.incrementAndGet();
+                return;
+            }
+            // else another thread took t first
+        }
+        int len = buf.remaining();
+        int cap = Math.min(len, snapLen);
+        int p = buf.position();
+        buf.get(data, slot * snapLen, cap);
+        buf.position(p);
+        capLens[slot] = cap;
+        origLens[slot] = len;
+        stamps[slot] = clockBase + System.nanoTime();
+        seq.set(slot, t + 1);
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public synchronized void start() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create " + dir);
+        }
+        running = true;
+        writer = new Thread("packet capture writer") {
+
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        logger.log(Level.INFO, "capturing packets into {0}", dir);
+    }
+
+    /**
+     * Writes out what is in the ring, closes the last file and stops the
+     * writer thread.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+        logger.log(Level.INFO, "packet capture stopped: {0}", getStatus());
+    }
+
+    public long captured() {
+        return tail.get();
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    public long written() {
+        return written;
+    }
+
+    /**
+     * Returns "dir/prefix-n.pcap filter=... captured=n dropped=n written=n
+     * files=n" and the writer's error, if any.
+     */
+    public StringBuilder getStatus() {
+        StringBuilder s = new StringBuilder();
+        s.append(fileNumber == 0 ? dir.getPath()
+                : new File(dir, prefix + "-" + fileNumber + ".pcap").getPath());
+        s.append(" filter=").append(filter == null ? "all" : filter.toString());
+        s.append(" captured=").append(captured());
+        s.append(" dropped=").append(dropped());
+        s.append(" written=").append(written);
+        s.append(" files=").append(fileNumber);
+        if (error != null) {
+            s.append(" error=").append(error);
+        }
+        return s;
+    }
+
+    private void drain() {
+        try {
+            for (;;) {
+                int slot = (int) head & (slots - 1);
+                if (seq.get(slot) != head + 1) {
+                    if (!running) {
+                        break;
+                    }
+                    LockSupport.parkNanos(1000000);
+                    continue;
+                }
+                write(slot);
+                seq.set(slot, head + slots);
+                head++;
+            }
+            close();
+        } catch (IOException x) {
+            // packets are dropped from now on, as the ring stays full
+            error = x.toString();
+            logger.log(Level.SEVERE, "packet capture failed", x);
+        }
+    }
+
+    private void write(int slot) throws IOException {
+        int cap = capLens[slot];
+        if (out == null || out.remaining() < Pcap.RECORD_HEADER_LENGTH + cap) {
+            rotate();
+        }
+        long ts = stamps[slot];
+        out.putInt((int) (ts / 1000000000L));
+        out.putInt((int) (ts % 1000000000L));
+        out.putInt(cap);
+        out.putInt(origLens[slot]);
+        out.put(data, slot * snapLen, cap);
+        written++;
+    }
+
+    private void rotate() throws IOException {
+        close();
+        File f = new File(dir, prefix + "-" + (++fileNumber) + ".pcap");
+        file = new RandomAccessFile(f, "rw");
+        file.setLength(0);
+        out = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        out.putInt(Pcap.MAGIC_NANOS);
+        out.putShort((short) Pcap.VERSION_MAJOR);
+        out.putShort((short) Pcap.VERSION_MINOR);
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(snapLen);
+        out.putInt(Pcap.LINKTYPE_RAW);
+        files.add(f);
+        while (maxFiles > 0 && files.size() > maxFiles) {
+            File old = files.removeFirst();
+            if (!old.delete()) {
+                logger.log(Level.WARNING, "can't delete {0}", old);
+            }
+        }
+    }
+
+    // Cuts the current file down to what has been written.
+    private void close() throws IOException {
+        if (file == null) {
+            return;
+        }
+        int n = out.position();
+        out.force();
+        out = null;
+        try {
+            file.getChannel().truncate(n);
+        } finally {
+            file.close();
+            file = null;
+        }
+    }
+}
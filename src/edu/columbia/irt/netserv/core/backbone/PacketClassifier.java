@@ -0,0 +1,245 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * The PacketInterests of a processor chain compiled into lookup tables.
+ * Processor i of the chain is bit (i & 63) of word (i >> 6); match()
+ * returns the word of processors that want to see a packet.  Processors
+ * without an interest are always included.
+ *
+ * Each criterion is a table lookup: a row of masks per IP protocol, and for
+ * destination addresses and ports the value range is cut into elementary
+ * intervals, each with the mask of the interests covering it, found by
+ * binary search.  So the cost of a lookup grows with the log of the number
+ * of distinct ranges, not with the number of processors.  IPv6 prefixes and
+ * payload prefixes are rare and checked one by one.
+ */
+final class PacketClassifier {
+
+    final int words;
+    private final boolean active;
+    private final long[] wildcard;
+    private final long[] protoMasks;
+    private final long[] v4Starts;
+    private final long[] v4Masks;
+    private final long[] v6Any;
+    private final byte[][] v6Prefixes;
+    private final int[] v6Lengths;
+    private final int[] v6Bits;
+    private final long[] portStarts;
+    private final long[] portMasks;
+    private final long[] noPorts;
+    private final long[] payloadCheck;
+    private final byte[][] payloadPrefixes;
+
+    /**
+     * @param interests interests[i] belongs to processor i of the chain;
+     * null if the processor wants every packet.
+     */
+    PacketClassifier(PacketInterest[] interests) {
+        int n = interests.length;
+        words = Math.max(1, (n + 63) >>> 6);
+        wildcard = new long[words];
+        protoMasks = new long[256 * words];
+        v6Any = new long[words];
+        noPorts = new long[words];
+        payloadCheck = new long[words];
+        payloadPrefixes = new byte[n][];
+
+        boolean any = false;
+        int v6Count = 0;
+        TreeSet<Long> v4Bounds = new TreeSet<Long>();
+        TreeSet<Long> portBounds = new TreeSet<Long>();
+        v4Bounds.add(0L);
+        portBounds.add(0L);
+        for (int i = 0; i < n; i++) {
+            PacketInterest in = interests[i];
+            if (in == null) {
+                setBit(wildcard, 0, i);
+                continue;
+            }
+            any = true;
+            for (int proto = 0; proto < 256; proto++) {
+                if (in.protocol() == PacketInterest.ANY || in.protocol() == proto) {
+                    setBit(protoMasks, proto * words, i);
+                }
+            }
+            byte[] dst = in.dstAddress();
+            if (dst == null) {
+                setBit(v6Any, 0, i);
+            } else if (dst.length == 4) {
+                long[] r = v4Range(dst, in.dstPrefixLength());
+                v4Bounds.add(r[0]);
+                v4Bounds.add(r[1] + 1);
+            } else {
+                v6Count++;
+            }
+            int[] ports = in.portRanges();
+            if (ports.length == 0) {
+                setBit(noPorts, 0, i);
+            }
+            for (int k = 0; k < ports.length; k += 2) {
+                portBounds.add((long) ports[k]);
+                portBounds.add((long) ports[k + 1] + 1);
+            }
+            if (in.payloadPrefix() != null) {
+                setBit(payloadCheck, 0, i);
+                payloadPrefixes[i] = in.payloadPrefix();
+            }
+        }
+        active = any;
+
+        v4Starts = toArray(v4Bounds, 1L << 32);
+        v4Masks = new long[v4Starts.length * words];
+        portStarts = toArray(portBounds, 1L << 16);
+        portMasks = new long[portStarts.length * words];
+        v6Prefixes = new byte[v6Count][];
+        v6Lengths = new int[v6Count];
+        v6Bits = new int[v6Count];
+        v6Count = 0;
+        for (int i = 0; i < n; i++) {
+            PacketInterest in = interests[i];
+            if (in == null) {
+                continue;
+            }
+            byte[] dst = in.dstAddress();
+            if (dst == null || dst.length == 4) {
+                long[] r = dst == null ? new long[]{0, (1L << 32) - 1}
+                        : v4Range(dst, in.dstPrefixLength());
+                for (int k = 0; k < v4Starts.length; k++) {
+                    if (v4Starts[k] >= r[0] && v4Starts[k] <= r[1]) {
+                        setBit(v4Masks, k * words, i);
+                    }
+                }
+            } else {
+                v6Prefixes[v6Count] = dst;
+                v6Lengths[v6Count] = in.dstPrefixLength();
+                v6Bits[v6Count] = i;
+                v6Count++;
+            }
+            int[] ports = in.portRanges();
+            for (int k = 0; k < portStarts.length; k++) {
+                for (int j = 0; j < ports.length; j += 2) {
+                    if (portStarts[k] >= ports[j] && portStarts[k] <= ports[j + 1]) {
+                        setBit(portMasks, k * words, i);
+                    }
+                }
+                if (ports.length == 0) {
+                    setBit(portMasks, k * words, i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns false if no processor has an interest, in which case every
+     * processor gets every packet.
+     */
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Returns word w of the set of processors that want the packet whose
+     * headers h has parsed.  Non-IP packets only go to the processors
+     * without an interest.
+     */
+    long match(PacketHeader h, int w) {
+        if (!active) {
+            return wildcard[w];
+        }
+        if (h.version() == 0) {
+            return wildcard[w];
+        }
+        ByteBuffer buf = h.buffer();
+        long m = protoMasks[h.protocol() * words + w];
+        if (m == 0) {
+            return wildcard[w];
+        }
+        if (h.isIPv4()) {
+            m &= v4Masks[search(v4Starts, h.dstAddressV4() & 0xffffffffL) * words + w];
+        } else {
+            long a = v6Any[w];
+            for (int k = 0; k < v6Bits.length; k++) {
+                if ((v6Bits[k] >>> 6) == w && prefixMatches(buf,
+                        h.dstAddressOffset(), v6Prefixes[k], v6Lengths[k])) {
+                    a |= 1L << (v6Bits[k] & 63);
+                }
+            }
+            m &= a;
+        }
+        if (h.hasPorts()) {
+            m &= portMasks[search(portStarts, h.dstPort()) * words + w];
+        } else {
+            m &= noPorts[w];
+        }
+
+        long check = m & payloadCheck[w];
+        while (check != 0) {
+            int b = Long.numberOfTrailingZeros(check);
+            check &= check - 1;
+            byte[] prefix = payloadPrefixes[(w << 6) + b];
+            if (h.payloadLength() < prefix.length
+                    || !startsWith(buf, h.payloadOffset(), prefix)) {
+                m &= ~(1L << b);
+            }
+        }
+        return m | wildcard[w];
+    }
+    private static void setBit(long[] masks, int base, int i) {
+        masks[base + (i >>> 6)] |= 1L << (i & 63);
+    }
+
+    private static long[] v4Range(byte[] addr, int prefixLength) {
+        long a = ((addr[0] & 0xffL) << 24) | ((addr[1] & 0xffL) << 16)
+                | ((addr[2] & 0xffL) << 8) | (addr[3] & 0xffL);
+        long size = 1L << (32 - prefixLength);
+        long low = a & ~(size - 1) & 0xffffffffL;
+        return new long[]{low, low + size - 1};
+    }
+
+    private static long[] toArray(TreeSet<Long> bounds, long limit) {
+        long[] a = new long[bounds.size()];
+        int n = 0;
+        for (long b : bounds) {
+            if (b < limit) {
+                a[n++] = b;
+            }
+        }
+        return Arrays.copyOf(a, n);
+    }
+
+    /**
+     * Index of the interval containing v, i.e. the last start <= v.
+     */
+    private static int search(long[] starts, long v) {
+        int i = Arrays.binarySearch(starts, v);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    private static boolean prefixMatches(ByteBuffer buf, int off, byte[] prefix, int bits) {
+        int i = 0;
+        for (; bits >= 8; bits -= 8, i++) {
+            if (buf.get(off + i) != prefix[i]) {
+                return false;
+            }
+        }
+        if (bits > 0) {
+            int mask = 0xff00 >>> bits;
+            return ((buf.get(off + i) ^ prefix[i]) & mask) == 0;
+        }
+        return true;
+    }
+
+    private static boolean startsWith(ByteBuffer buf, int off, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf.get(off + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,9 +1,21 @@
 package edu.columbia.irt.netserv.core.backbone;
 
 import java.util.logging.*;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PacketConduit implements PacketDispatcher {
 
@@ -12,55 +24,1103 @@ public class PacketConduit implements PacketDispatcher {
     static {
         Util.setupConsoleLogging(logger, Level.INFO);
     }
-    private final ArrayList<PacketProcessor> processors =
-            new ArrayList<PacketProcessor>();
-    private static PacketDispatcher dispatcher = null;
+    // The processor chain, sorted by relativeOrder().  A Chain is never
+    // modified once published; addProcessor() and removeProcessor() build
+    // a new one and swap it in, so dispatchPacket() needs no lock.
+    private volatile Chain chain =
+            new Chain(new PacketProcessor[0], new PacketInterest[0],
+            new ProcessorStats[0], new CircuitBreaker[0]);
+    // serializes chain modifications; never taken on the dispatch path
+    private final Object chainLock = new Object();
+    // processors held back from the chain, by the class loader that
+    // defines them (see standBy())
+    private final HashMap<ClassLoader, Standby> standby =
+            new HashMap<ClassLoader, Standby>();
+    private volatile boolean statsEnabled = true;
+    // latency budget of processors that have none of their own, or null
+    private LatencyBudget defaultBudget = null;
+    // true while any processor has a latency budget
+    private volatile boolean guarded = false;
+    // scans for processors stuck in a single call; runs while guarded
+    private Timer watchdog = null;
+    private volatile ServiceListener listener = null;
+    // copies dispatched packets to pcap files; null when not capturing
+    private volatile PacketCapture capture = null;
+    // serializes capture changes; may be held while waiting for
+    // dispatches, so never taken on the dispatch path
+    private final Object captureLock = new Object();
+    // most milliseconds setCapture() waits for dispatches that may still
+    // offer packets to the previous capture
+    private static final long CAPTURE_DRAIN = 1000;
+    // delivers bypass events off the dispatch path
+    private final ExecutorService notifier =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
 
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "packet watchdog events");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    // how often the watchdog looks at the dispatching threads, in ms
+    private static final long WATCHDOG_PERIOD = 10;
+    // hands out statistics stripes to dispatching threads
+    private static final AtomicInteger nextStripe = new AtomicInteger();
+    // numbers the chains, so later ones have higher numbers
+    private static final AtomicLong nextVersion = new AtomicLong();
+    private static volatile PacketDispatcher dispatcher = null;
+    private static volatile PacketBufferPool bufferPool = null;
+    // per-thread header views and working arrays
+    private static final ThreadLocal<DispatchContext> contexts =
+            new ThreadLocal<DispatchContext>() {
+
+                @Override
+                protected DispatchContext initialValue() {
+                    DispatchContext ctx = new DispatchContext();
+                    pruneContexts();
+                    allContexts.add(ctx);
+                    return ctx;
+                }
+            };
+    // every live thread's context, for the watchdog and awaitQuiescence()
+    private static final CopyOnWriteArrayList<DispatchContext> allContexts =
+            new CopyOnWriteArrayList<DispatchContext>();
+
+    /**
+     * Sets the dispatcher the native code hands packets to.
+     * @throws IllegalStateException if d is a FlowDispatcher and a
+     * processor or budget is there that FlowDispatcher can't serve (see
+     * addProcessor()).
+     */
     public void setDispatch(PacketDispatcher d) {
-        PacketConduit.dispatcher = d;
+        synchronized (chainLock) {
+            if (d instanceof FlowDispatcher) {
+                checkVerdicts(d, null, defaultBudget);
+                for (CircuitBreaker br : chain.breakers) {
+                    checkVerdicts(d, br.processor, br.own);
+                }
+                for (Standby s : standby.values()) {
+                    for (CircuitBreaker br : s.breakers) {
+                        checkVerdicts(d, br.processor, br.own);
+                    }
+                }
+            }
+            PacketConduit.dispatcher = d;
+        }
+    }
+
+    /**
+     * Makes the conduit dispatch packets itself again if d is the
+     * dispatcher, as d is shutting down.
+     */
+    void resetDispatch(PacketDispatcher d) {
+        synchronized (chainLock) {
+            if (dispatcher == d) {
+                dispatcher = this;
+            }
+        }
+    }
+
+    /**
+     * Sets the pool whose buffers the native code fills and passes in
+     * through injectBuffer().
+     */
+    public void setBufferPool(PacketBufferPool pool) {
+        PacketConduit.bufferPool = pool;
+    }
+
+    /**
+     * Returns the pool of native packet buffers, or null if there is none.
+     * A processor that wants to keep a packet after returning looks it up
+     * with getBufferPool().find(buf) and retains it; if find() returns
+     * null the packet isn't pooled and must be copied instead.
+     */
+    public PacketBufferPool getBufferPool() {
+        return bufferPool;
     }
 
     @Override
     public void addProcessor(PacketProcessor p) {
-        synchronized (processors) {
-            processors.add(p);
-            Collections.sort(processors, PacketProcessor.comparator);
+        addProcessor(p, null);
+    }
+
+    /**
+     * Adds a processor that only gets the packets matching interest, or
+     * all packets if interest is null.
+     * @throws IllegalStateException if p is a PacketFilter and a
+     * FlowDispatcher is the dispatcher: it hands back CONTINUE for every
+     * packet before the chain has run, so no verdict would reach the
+     * queue.
+     */
+    @Override
+    public void addProcessor(PacketProcessor p, PacketInterest interest) {
+        synchronized (chainLock) {
+            checkVerdicts(dispatcher, p, null);
+            CircuitBreaker br = new CircuitBreaker(p);
+            br.budget = defaultBudget;
+            Standby s = standby.isEmpty() ? null
+                    : standby.get(p.getClass().getClassLoader());
+            if (s != null) {
+                s.processors.add(p);
+                s.interests.add(interest);
+                s.breakers.add(br);
+                logger.log(Level.INFO, "processor {0} on standby", p);
+                return;
+            }
+            PacketProcessor[] old = chain.processors;
+            int i = position(old, p);
+            chain = new Chain(insert(old, i, p),
+                    insert(chain.interests, i, interest),
+                    insert(chain.stats, i, new ProcessorStats()),
+                    insert(chain.breakers, i, br));
+            // a default budget set before any processor was added must
+            // still turn on the guarded path and the watchdog
+            updateBudgets();
         }
         logProcessorList();
     }
 
     @Override
     public void removeProcessor(PacketProcessor p) {
-        synchronized (processors) {
-            processors.remove(p);
+        synchronized (chainLock) {
+            for (Standby s : standby.values()) {
+                int i = s.processors.indexOf(p);
+                if (i >= 0) {
+                    s.processors.remove(i);
+                    s.interests.remove(i);
+                    s.breakers.remove(i);
+                    return;
+                }
+            }
+            PacketProcessor[] old = chain.processors;
+            int i = 0;
+            while (i < old.length && !old[i].equals(p)) {
+                i++;
+            }
+            if (i < old.length) {
+                chain = new Chain(delete(old, i), delete(chain.interests, i),
+                        delete(chain.stats, i), delete(chain.breakers, i));
+                updateBudgets();
+            }
         }
         logProcessorList();
     }
 
+    /**
+     * Holds back the processors added from now on whose classes loader
+     * defines, instead of putting them in the chain, until
+     * swapProcessors() or discardStandby() is called for loader.  This
+     * lets a new version of a module start, and add its processors, while
+     * the old version still handles the packets.
+     */
+    public void standBy(ClassLoader loader) {
+        synchronized (chainLock) {
+            if (!standby.containsKey(loader)) {
+                standby.put(loader, new Standby());
+            }
+        }
+    }
+
+    /**
+     * Drops the processors held back for loader, and stops holding back
+     * any more of them.
+     */
+    public void discardStandby(ClassLoader loader) {
+        synchronized (chainLock) {
+            standby.remove(loader);
+        }
+    }
+
+    /**
+     * Replaces the processors whose classes oldLoader defines with those
+     * held back for newLoader, in a single chain update, so every packet
+     * goes through either the old processors or the new ones.  Processors
+     * added for newLoader from now on go straight into the chain.  Either
+     * loader may be null, for no processors.  Call awaitQuiescence()
+     * before shutting down the old processors.
+     * @return The number of processors put in.
+     */
+    public int swapProcessors(ClassLoader oldLoader, ClassLoader newLoader) {
+        int n = 0;
+        synchronized (chainLock) {
+            Standby s = newLoader == null ? null : standby.remove(newLoader);
+            Chain c = chain;
+            PacketProcessor[] processors = c.processors;
+            PacketInterest[] interests = c.interests;
+            ProcessorStats[] stats = c.stats;
+            CircuitBreaker[] breakers = c.breakers;
+            for (int i = processors.length - 1; oldLoader != null && i >= 0; i--) {
+                if (processors[i].getClass().getClassLoader() == oldLoader) {
+                    processors = delete(processors, i);
+                    interests = delete(interests, i);
+                    stats = delete(stats, i);
+                    breakers = delete(breakers, i);
+                }
+            }
+            if (s != null) {
+                n = s.processors.size();
+                for (int j = 0; j < n; j++) {
+                    PacketProcessor p = s.processors.get(j);
+                    int i = position(processors, p);
+                    processors = insert(processors, i, p);
+                    interests = insert(interests, i, s.interests.get(j));
+                    stats = insert(stats, i, new ProcessorStats());
+                    breakers = insert(breakers, i, s.breakers.get(j));
+                }
+            }
+            chain = new Chain(processors, interests, stats, breakers);
+            updateBudgets();
+        }
+        logProcessorList();
+        return n;
+    }
+
+    /**
+     * Waits until no thread is inside a dispatch that began with a chain
+     * older than the current one, so that none of them is still in a
+     * processor removed before this call.  Threads that aren't
+     * dispatching, or have started on the current chain, aren't waited
+     * for.
+     * @return False if the timeout passed first, or the calling thread was
+     * interrupted.
+     */
+    public boolean awaitQuiescence(long timeoutMillis) {
+        try {
+            long version = chain.version;
+            long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+            for (DispatchContext ctx : allContexts) {
+                for (;;) {
+                    long v = ctx.active;
+                    if (v == 0 || v >= version || !ctx.thread.isAlive()) {
+                        break;
+                    }
+                    if (deadline - System.nanoTime() <= 0) {
+                        return false;
+                    }
+                    Thread.sleep(1);
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            pruneContexts();
+        }
+    }
+
+    // Marks ctx as dispatching with the current chain, and returns that
+    // chain.  The chain is read again after the mark, so that either
+    // awaitQuiescence() sees the mark or this thread sees the chain that
+    // awaitQuiescence() waits for the others to move on to.
+    private Chain enter(DispatchContext ctx) {
+        for (;;) {
+            Chain c = chain;
+            ctx.active = c.version;
+            if (chain == c) {
+                return c;
+            }
+        }
+    }
+
+    // Returns the calling thread's first context not in use by a dispatch,
+    // creating it if need be.  A processor that dispatches again gets the
+    // context nested in the one its own dispatch is using, so the outer
+    // dispatch keeps its header, working arrays and marks.
+    private static DispatchContext idleContext() {
+        DispatchContext ctx = contexts.get();
+        while (ctx.busy) {
+            if (ctx.nested == null) {
+                ctx.nested = new DispatchContext();
+                allContexts.add(ctx.nested);
+            }
+            ctx = ctx.nested;
+        }
+        return ctx;
+    }
+
+    private static DispatchContext acquireContext() {
+        DispatchContext ctx = idleContext();
+        ctx.busy = true;
+        return ctx;
+    }
+
+    // Refuses a PacketFilter or a fail-closed budget if d is a
+    // FlowDispatcher, which hands back CONTINUE for every packet before
+    // the chain runs, so their verdicts would never reach the queue.
+    // Either p or b may be null.  Called with chainLock held.
+    private static void checkVerdicts(PacketDispatcher d, PacketProcessor p, LatencyBudget b) {
+        if (!(d instanceof FlowDispatcher)) {
+            return;
+        }
+        if (p instanceof PacketFilter) {
+            throw new IllegalStateException(p + " is a PacketFilter,"
+                    + " but flow lanes don't pass verdicts on");
+        }
+        if (b != null && !b.isFailOpen()) {
+            throw new IllegalStateException(b + " is fail-closed,"
+                    + " but flow lanes don't pass verdicts on");
+        }
+    }
+
+    // Forgets the contexts of threads that have died.
+    private static void pruneContexts() {
+        for (DispatchContext ctx : allContexts) {
+            if (!ctx.thread.isAlive()) {
+                allContexts.remove(ctx);
+            }
+        }
+    }
+
+    /**
+     * Sets the latency budget of the processors that have none of their
+     * own; null (the default) lets them take as long as they like.
+     * @throws IllegalStateException if the budget is fail-closed and a
+     * FlowDispatcher is the dispatcher.
+     */
+    public void setDefaultLatencyBudget(LatencyBudget budget) {
+        synchronized (chainLock) {
+            checkVerdicts(dispatcher, null, budget);
+            defaultBudget = budget;
+            updateBudgets();
+        }
+        logger.log(Level.INFO, "default latency budget: {0}", budget);
+    }
+
+    /**
+     * Sets the latency budget of processor p; null makes it use the
+     * default again.
+     * @throws IllegalStateException if the budget is fail-closed and a
+     * FlowDispatcher is the dispatcher.
+     */
+    public void setLatencyBudget(PacketProcessor p, LatencyBudget budget) {
+        synchronized (chainLock) {
+            checkVerdicts(dispatcher, null, budget);
+            for (CircuitBreaker br : chain.breakers) {
+                if (br.processor.equals(p)) {
+                    br.own = budget;
+                }
+            }
+            for (Standby s : standby.values()) {
+                for (CircuitBreaker br : s.breakers) {
+                    if (br.processor.equals(p)) {
+                        br.own = budget;
+                        br.budget = budget != null ? budget : defaultBudget;
+                    }
+                }
+            }
+            updateBudgets();
+        }
+        logger.log(Level.INFO, "latency budget of {0}: {1}", new Object[]{p, budget});
+    }
+
+    /**
+     * Sets the listener told about processors the watchdog bypasses and
+     * restores.  It is called on a thread of its own, never on the
+     * dispatch path.  Its events add and remove no modules, and their
+     * resultingModuleList names the processors left running in the chain,
+     * as the conduit knows no modules.
+     */
+    public void setServiceListener(ServiceListener l) {
+        listener = l;
+    }
+
+    /**
+     * Starts copying dispatched packets to pcap files, as described by the
+     * headers of a CAPTURE START request (see PacketCapture.fromHeaders()),
+     * after stopping any capture already running, whose files the new
+     * one may overwrite.
+     * @return The status of the new capture.
+     */
+    public StringBuilder startCapture(Map<String, String> headers) throws IOException {
+        PacketCapture cap = PacketCapture.fromHeaders(headers);
+        synchronized (captureLock) {
+            setCapture(null);
+            cap.start();
+            setCapture(cap);
+        }
+        return cap.getStatus();
+    }
+
+    /**
+     * Stops capturing packets, if it was.
+     * @return The final status of the capture, or nothing.
+     */
+    public StringBuilder stopCapture() {
+        PacketCapture cap = setCapture(null);
+        return cap == null ? new StringBuilder() : cap.getStatus();
+    }
+
+    /**
+     * Returns the status of the running capture, or nothing.
+     */
+    public StringBuilder getCaptureStatus() {
+        PacketCapture cap = capture;
+        return cap == null ? new StringBuilder() : cap.getStatus();
+    }
+
+    /**
+     * Sets the capture that dispatched packets are offered to, or null to
+     * stop capturing.  The previous capture, if any, is stopped once no
+     * dispatch that may still offer it packets is under way, as for
+     * awaitQuiescence(), or after CAPTURE_DRAIN milliseconds.
+     * @return The previous capture.
+     */
+    public PacketCapture setCapture(PacketCapture cap) {
+        PacketCapture old;
+        synchronized (captureLock) {
+            synchronized (chainLock) {
+                old = capture;
+                capture = cap;
+                if (old != null) {
+                    // a later version, which the dispatches that read
+                    // capture before the change didn't start with
+                    Chain c = chain;
+                    chain = new Chain(c.processors, c.interests, c.stats, c.breakers);
+                }
+            }
+            if (old != null) {
+                if (!awaitQuiescence(CAPTURE_DRAIN)) {
+                    logger.log(Level.INFO, "stopping packet capture while it may still be offered packets");
+                }
+                old.stop();
+            }
+        }
+        return old;
+    }
+
+    /**
+     * Stops the watchdog, the event thread and any capture.
+     */
+    public void shutdown() {
+        synchronized (chainLock) {
+            if (watchdog != null) {
+                watchdog.cancel();
+                watchdog = null;
+            }
+        }
+        notifier.shutdown();
+        setCapture(null);
+    }
+
+    // Brings every breaker's budget in line with its own and the default
+    // one, and starts or stops the watchdog.  Called with chainLock held.
+    private void updateBudgets() {
+        boolean any = false;
+        for (CircuitBreaker br : chain.breakers) {
+            LatencyBudget b = br.own != null ? br.own : defaultBudget;
+            br.budget = b;
+            if (b != null) {
+                any = true;
+            } else if (br.reset()) {
+                restored(br);
+            }
+        }
+        guarded = any;
+        if (any && watchdog == null) {
+            watchdog = new Timer("packet watchdog", true);
+            watchdog.schedule(new TimerTask() {
+
+                @Override
+                public void run() {
+                    scanContexts();
+                }
+            }, WATCHDOG_PERIOD, WATCHDOG_PERIOD);
+        } else if (!any && watchdog != null) {
+            watchdog.cancel();
+            watchdog = null;
+        }
+    }
+
+    // Trips processors that have been inside a single call for longer than
+    // tripAfter times their budget.  Such a processor still holds up the
+    // thread it is blocking, but no longer the others.
+    private void scanContexts() {
+        long now = System.nanoTime();
+        pruneContexts();
+        for (DispatchContext ctx : allContexts) {
+            CircuitBreaker br = ctx.current;
+            if (br == null) {
+                continue;
+            }
+            LatencyBudget b = br.budget;
+            if (b != null && now - ctx.since > b.budgetNanos() * b.tripAfter()
+                    && ctx.current == br && br.trip()) {
+                tripped(br);
+            }
+        }
+    }
+
+    private void completed(CircuitBreaker br, LatencyBudget b, long elapsed) {
+        int r = br.completed(b, elapsed);
+        if (r == CircuitBreaker.TRIPPED) {
+            tripped(br);
+        } else if (r == CircuitBreaker.RESTORED) {
+            restored(br);
+        }
+    }
+
+    private void tripped(CircuitBreaker br) {
+        logger.log(Level.WARNING, "bypassing slow processor {0} ({1})",
+                new Object[]{br.processor, br.budget});
+        notify(new String[]{br.processor.toString()}, new String[0]);
+    }
+
+    private void restored(CircuitBreaker br) {
+        logger.log(Level.INFO, "processor {0} is back in the chain", br.processor);
+        notify(new String[0], new String[]{br.processor.toString()});
+    }
+
+    private void notify(String[] bypassed, String[] restored) {
+        final ServiceListener l = listener;
+        if (l == null) {
+            return;
+        }
+        ArrayList<String> running = new ArrayList<String>();
+        Chain c = chain;
+        for (int i = 0; i < c.processors.length; i++) {
+            if (c.breakers[i].state() != CircuitBreaker.OPEN) {
+                running.add(c.processors[i].toString());
+            }
+        }
+        final ServiceEvent event = new ServiceEvent(new String[0], new String[0],
+                running.toArray(new String[0]), bypassed, restored);
+        try {
+            notifier.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    l.serviceChanged(event);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shut down
+        }
+    }
+
+    @Override
+    public int dispatchPacket(ByteBuffer buf) {
+        boolean stats = statsEnabled;
+        boolean guard = guarded;
+        // marked even when nothing else needs it, for awaitQuiescence()
+        DispatchContext ctx = acquireContext();
+        Chain c = enter(ctx);
+        // read after enter(), so setCapture() can wait for those who saw
+        // the previous one
+        PacketCapture cap = capture;
+        try {
+            return dispatchPacket(buf, c, ctx, stats, guard, cap);
+        } finally {
+            ctx.release();
+        }
+    }
+
+    private int dispatchPacket(ByteBuffer buf, Chain c, DispatchContext ctx,
+            boolean stats, boolean guard, PacketCapture cap) {
+        PacketProcessor[] processors = c.processors;
+        PacketFilter[] filters = c.filters;
+        PacketClassifier classifier = c.classifier;
+        boolean timed = stats || guard;
+        PacketHeader hdr = null;
+        if (c.needsHeader) {
+            hdr = ctx.header;
+            hdr.parse(buf);
+        }
+        if (cap != null) {
+            if (hdr == null && cap.needsHeader()) {
+                hdr = ctx.header;
+                hdr.parse(buf);
+            }
+            cap.offer(buf, hdr);
+        }
+        int bytes = buf.remaining();
+        long t0 = timed ? System.nanoTime() : 0;
+        int verdict = PacketVerdict.CONTINUE;
+        for (int w = 0; w < classifier.words; w++) {
+            long m = classifier.match(hdr, w);
+            while (m != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(m);
+                m &= m - 1;
+                int v = PacketVerdict.CONTINUE;
+                CircuitBreaker br = c.breakers[i];
+                LatencyBudget b = guard ? br.budget : null;
+                if (b != null && br.bypass(b, t0)) {
+                    if (!b.isFailOpen()) {
+                        v = PacketVerdict.DROP;
+                    }
+                } else {
+                    if (b != null) {
+                        ctx.since = t0;
+                        ctx.current = br;
+                    }
+                    boolean threw = true;
+                    try {
+                        if (filters[i] != null) {
+                            v = filters[i].filterPacket(buf, hdr);
+                        } else {
+                            processors[i].processPacket(buf);
+                        }
+                        threw = false;
+                    } finally {
+                        if (b != null) {
+                            ctx.current = null;
+                            if (threw) {
+                                br.abandoned(true);
+                            }
+                        }
+                    }
+                    if (timed) {
+                        long t1 = System.nanoTime();
+                        if (stats) {
+                            c.stats[i].record(ctx.stripe, 1, bytes, t1 - t0);
+                            if (v != PacketVerdict.CONTINUE) {
+                                c.stats[i].recordVerdict(ctx.stripe, v);
+                            }
+                        }
+                        if (b != null) {
+                            completed(br, b, t1 - t0);
+                        }
+                        t0 = t1;
+                    }
+                }
+                verdict = PacketVerdict.merge(verdict, v);
+                if (PacketVerdict.isTerminal(verdict)) {
+                    return verdict;
+                }
+            }
+        }
+        return verdict;
+    }
+
     @Override
-    public void dispatchPacket(ByteBuffer buf) {
-        synchronized (processors) {
-            for (PacketProcessor p : processors) {
-                p.processPacket(buf);
+    public void dispatchPackets(ByteBuffer[] bufs, int[] verdicts, int count) {
+        DispatchContext ctx = acquireContext();
+        Chain c = enter(ctx);
+        try {
+            dispatchPackets(bufs, verdicts, count, c, ctx);
+        } finally {
+            ctx.release();
+        }
+    }
+
+    private void dispatchPackets(ByteBuffer[] bufs, int[] verdicts, int count,
+            Chain c, DispatchContext ctx) {
+        PacketProcessor[] processors = c.processors;
+        PacketFilter[] filters = c.filters;
+        BatchPacketProcessor[] batch = c.batch;
+        PacketClassifier classifier = c.classifier;
+        boolean stats = statsEnabled;
+        boolean guard = guarded;
+        boolean timed = stats || guard;
+        Arrays.fill(verdicts, 0, count, PacketVerdict.CONTINUE);
+        int words = classifier.words;
+        ctx.ensureCapacity(count, words);
+        PacketHeader[] hdrs = ctx.headers;
+        long[] masks = ctx.masks;
+        if (c.needsHeader) {
+            // parse and classify every packet once
+            for (int j = 0; j < count; j++) {
+                hdrs[j].parse(bufs[j]);
+                for (int w = 0; w < words; w++) {
+                    masks[j * words + w] = classifier.match(hdrs[j], w);
+                }
+            }
+        } else {
+            // plain processors only, which want all packets
+            Arrays.fill(masks, 0, count * words, -1L);
+        }
+        PacketCapture cap = capture;
+        if (cap != null) {
+            for (int j = 0; j < count; j++) {
+                if (!c.needsHeader && cap.needsHeader()) {
+                    hdrs[j].parse(bufs[j]);
+                }
+                cap.offer(bufs[j], hdrs[j]);
             }
         }
+
+        // number of packets whose verdict is already terminal
+        int done = 0;
+        for (int i = 0; i < processors.length && done < count; i++) {
+            int w = i >>> 6;
+            long bit = 1L << (i & 63);
+            long t0 = timed ? System.nanoTime() : 0;
+            CircuitBreaker br = c.breakers[i];
+            LatencyBudget b = guard ? br.budget : null;
+            if (b != null && br.bypass(b, t0)) {
+                if (!b.isFailOpen()) {
+                    for (int j = 0; j < count; j++) {
+                        if ((masks[j * words + w] & bit) != 0
+                                && !PacketVerdict.isTerminal(verdicts[j])) {
+                            verdicts[j] = PacketVerdict.merge(verdicts[j], PacketVerdict.DROP);
+                            done++;
+                        }
+                    }
+                }
+                continue;
+            }
+            if (b != null) {
+                ctx.since = t0;
+                ctx.current = br;
+            }
+            int n = 0;
+            long bytes = 0;
+            boolean threw = true;
+            try {
+                if (batch[i] != null) {
+                    // hand over only the undecided packets that match the interest
+                    for (int j = 0; j < count; j++) {
+                        if ((masks[j * words + w] & bit) != 0
+                                && !PacketVerdict.isTerminal(verdicts[j])) {
+                            ctx.bufs[n] = bufs[j];
+                            ctx.subHeaders[n] = hdrs[j];
+                            ctx.verdicts[n] = verdicts[j];
+                            ctx.index[n++] = j;
+                        }
+                    }
+                    if (n > 0) {
+                        batch[i].processPackets(ctx.bufs, ctx.subHeaders, ctx.verdicts, n);
+                        for (int k = 0; k < n; k++) {
+                            int j = ctx.index[k];
+                            if (stats) {
+                                bytes += bufs[j].remaining();
+                                if (ctx.verdicts[k] != verdicts[j]) {
+                                    c.stats[i].recordVerdict(ctx.stripe, ctx.verdicts[k]);
+                                }
+                            }
+                            verdicts[j] = ctx.verdicts[k];
+                            if (PacketVerdict.isTerminal(verdicts[j])) {
+                                done++;
+                            }
+                            ctx.bufs[k] = null;
+                        }
+                    }
+                } else {
+                    PacketFilter f = filters[i];
+                    PacketProcessor p = processors[i];
+                    for (int j = 0; j < count; j++) {
+                        if (PacketVerdict.isTerminal(verdicts[j])
+                                || (masks[j * words + w] & bit) == 0) {
+                            continue;
+                        }
+                        n++;
+                        if (stats) {
+                            bytes += bufs[j].remaining();
+                        }
+                        if (f != null) {
+                            int v = f.filterPacket(bufs[j], hdrs[j]);
+                            if (stats && v != PacketVerdict.CONTINUE) {
+                                c.stats[i].recordVerdict(ctx.stripe, v);
+                            }
+                            verdicts[j] = PacketVerdict.merge(verdicts[j], v);
+                            if (PacketVerdict.isTerminal(verdicts[j])) {
+                                done++;
+                            }
+                        } else {
+                            p.processPacket(bufs[j]);
+                        }
+                    }
+                }
+                threw = false;
+            } finally {
+                if (b != null) {
+                    ctx.current = null;
+                    if (threw || n == 0) {
+                        br.abandoned(threw);
+                    }
+                }
+            }
+            if (timed && n > 0) {
+                long elapsed = System.nanoTime() - t0;
+                if (stats) {
+                    c.stats[i].record(ctx.stripe, n, bytes, elapsed);
+                }
+                if (b != null) {
+                    // the budget is per packet
+                    completed(br, b, elapsed / n);
+                }
+            }
+        }
+    }
+
+    /**
+     * Turns the per-processor statistics on or off.  They are on by
+     * default; off saves a clock read and a few atomic adds per
+     * processor and packet.
+     */
+    public void setStatsEnabled(boolean enabled) {
+        statsEnabled = enabled;
+    }
+
+    public boolean isStatsEnabled() {
+        return statsEnabled;
+    }
+
+    /**
+     * Returns one line per processor, in chain order:
+     * "order: processor packets=n bytes=n ... p99=t p999=t\n"
+     */
+    public StringBuilder getProcessorStats() {
+        StringBuilder s = new StringBuilder();
+        Chain c = chain;
+        for (int i = 0; i < c.processors.length; i++) {
+            s.append(c.processors[i].relativeOrder()).append(": ");
+            s.append(c.processors[i]).append(' ');
+            c.stats[i].format(s);
+            CircuitBreaker br = c.breakers[i];
+            if (br.budget != null) {
+                s.append(" state=").append(br.state() == CircuitBreaker.CLOSED ? "closed"
+                        : br.state() == CircuitBreaker.OPEN ? "bypassed" : "probing");
+                s.append(" bypassed=").append(br.bypassed());
+            }
+            s.append('\n');
+        }
+        return s;
+    }
+
+    public void resetProcessorStats() {
+        for (ProcessorStats st : chain.stats) {
+            st.reset();
+        }
     }
 
     public void logProcessorList() {
         StringBuilder s = new StringBuilder("PktProcessor list:");
-        synchronized (processors) {
-            for (PacketProcessor p : processors) {
-                s.append("\n  ").append(p.relativeOrder()).append(": ").append(p);
+        Chain c = chain;
+        for (int i = 0; i < c.processors.length; i++) {
+            PacketProcessor p = c.processors[i];
+            s.append("\n  ").append(p.relativeOrder()).append(": ").append(p);
+            if (c.interests[i] != null) {
+                s.append(' ').append(c.interests[i]);
+            }
+            if (c.breakers[i].budget != null) {
+                s.append(' ').append(c.breakers[i].budget);
             }
         }
         logger.info(s.toString());
     }
+
+    // Where p goes in processors: after all processors of lower or equal
+    // order, so processors of equal order keep insertion order.
+    private static int position(PacketProcessor[] processors, PacketProcessor p) {
+        int i = 0;
+        while (i < processors.length
+                && PacketProcessor.comparator.compare(processors[i], p) <= 0) {
+            i++;
+        }
+        return i;
+    }
+
+    private static <T> T[] insert(T[] a, int i, T e) {
+        T[] b = Arrays.copyOf(a, a.length + 1);
+        System.arraycopy(a, i, b, i + 1, a.length - i);
+        b[i] = e;
+        return b;
+    }
+
+    private static <T> T[] delete(T[] a, int i) {
+        T[] b = Arrays.copyOf(a, a.length - 1);
+        System.arraycopy(a, i + 1, b, i, b.length - i);
+        return b;
+    }
     
     /**
      * This method is called by native C++ code
      * @param buf 
+     * @return The {@link PacketVerdict} to apply to the queued packet.
      */
-    private static void injectPacket(ByteBuffer buf) {
-        dispatcher.dispatchPacket(buf);
+    private static int injectPacket(ByteBuffer buf) {
+        return dispatcher.dispatchPacket(buf);
+    }
+
+    /**
+     * This method is called by native C++ code to hand over several
+     * packets with a single upcall.
+     * @param bufs
+     * @param verdicts Receives the {@link PacketVerdict} of each packet.
+     * @param count Number of valid entries in bufs.
+     */
+    private static void injectPackets(ByteBuffer[] bufs, int[] verdicts, int count) {
+        dispatcher.dispatchPackets(bufs, verdicts, count);
+    }
+
+    /**
+     * This method is called by native C++ code to fill its cache of free
+     * pool buffers.
+     * @param ids Receives the IDs of the buffers taken from the pool.
+     * @param max Most buffers to take.
+     * @return The number of buffers taken; 0 if the pool is exhausted or
+     * there is none, in which case packets come through injectPacket().
+     */
+    private static int acquireBuffers(int[] ids, int max) {
+        PacketBufferPool pool = bufferPool;
+        int n = 0;
+        PacketBuffer b;
+        while (pool != null && n < max && (b = pool.acquire()) != null) {
+            ids[n++] = b.id();
+        }
+        return n;
+    }
+
+    /**
+     * This method is called by native C++ code after it has copied a packet
+     * into pool buffer id.  The native reference to the buffer is released
+     * once the chain has run; processors that keep the packet retain it.
+     * @param id
+     * @param length Length of the packet.
+     * @return The {@link PacketVerdict} to apply to the queued packet.
+     */
+    private static int injectBuffer(int id, int length) {
+        PacketBuffer b = bufferPool.get(id);
+        ByteBuffer buf = b.buffer();
+        buf.clear();
+        buf.limit(length);
+        try {
+            return dispatcher.dispatchPacket(buf);
+        } finally {
+            b.release();
+        }
+    }
+
+    /**
+     * The batch version of injectBuffer().
+     * @param ids
+     * @param lengths
+     * @param verdicts Receives the {@link PacketVerdict} of each packet.
+     * @param count Number of valid entries in ids and lengths.
+     */
+    private static void injectBuffers(int[] ids, int[] lengths, int[] verdicts, int count) {
+        PacketBufferPool pool = bufferPool;
+        // the context dispatchPackets() is about to take
+        DispatchContext ctx = idleContext();
+        ctx.ensureCapacity(count, 1);
+        ByteBuffer[] bufs = ctx.pooled;
+        for (int i = 0; i < count; i++) {
+            bufs[i] = pool.get(ids[i]).buffer();
+            bufs[i].clear();
+            bufs[i].limit(lengths[i]);
+        }
+        try {
+            dispatcher.dispatchPackets(bufs, verdicts, count);
+        } finally {
+            for (int i = 0; i < count; i++) {
+                bufs[i] = null;
+                pool.get(ids[i]).release();
+            }
+        }
+    }
+
+    /**
+     * An immutable snapshot of the processor chain.  filters[i] and
+     * batch[i] are processors[i] if it implements PacketFilter or
+     * BatchPacketProcessor respectively, and null otherwise, so
+     * dispatching doesn't need instanceof checks.  interests[i] is the
+     * interest processors[i] was added with, compiled into classifier,
+     * and stats[i] and breakers[i] its statistics and latency budget
+     * state, which carry over to later snapshots.
+     * needsHeader is false if no processor looks at parsed headers, in
+     * which case packets aren't parsed at all.  version is higher for
+     * later snapshots.
+     */
+    private static final class Chain {
+
+        final PacketProcessor[] processors;
+        final PacketInterest[] interests;
+        final ProcessorStats[] stats;
+        final CircuitBreaker[] breakers;
+        final PacketFilter[] filters;
+        final BatchPacketProcessor[] batch;
+        final PacketClassifier classifier;
+        final boolean needsHeader;
+        final long version = nextVersion.incrementAndGet();
+
+        Chain(PacketProcessor[] processors, PacketInterest[] interests,
+                ProcessorStats[] stats, CircuitBreaker[] breakers) {
+            this.processors = processors;
+            this.interests = interests;
+            this.stats = stats;
+            this.breakers = breakers;
+            this.filters = new PacketFilter[processors.length];
+            this.batch = new BatchPacketProcessor[processors.length];
+            boolean headers = false;
+            for (int i = 0; i < processors.length; i++) {
+                if (processors[i] instanceof PacketFilter) {
+                    filters[i] = (PacketFilter) processors[i];
+                    headers = true;
+                }
+                if (processors[i] instanceof BatchPacketProcessor) {
+                    batch[i] = (BatchPacketProcessor) processors[i];
+                    headers = true;
+                }
+            }
+            this.classifier = new PacketClassifier(interests);
+            this.needsHeader = headers || classifier.isActive();
+        }
+    }
+
+    /**
+     * Processors held back from the chain by standBy(), with the interests
+     * they were added with and their breakers.
+     */
+    private static final class Standby {
+
+        final ArrayList<PacketProcessor> processors = new ArrayList<PacketProcessor>();
+        final ArrayList<PacketInterest> interests = new ArrayList<PacketInterest>();
+        final ArrayList<CircuitBreaker> breakers = new ArrayList<CircuitBreaker>();
+    }
+
+    /**
+     * The header views and working arrays of one dispatching thread,
+     * grown as needed.  A dispatch from within a processor uses the
+     * nested context, so a thread has one context per level of dispatch
+     * it has ever reached.
+     */
+    private static final class DispatchContext {
+
+        // created by the thread it belongs to
+        final Thread thread = Thread.currentThread();
+        final int stripe = nextStripe.getAndIncrement();
+        final PacketHeader header = new PacketHeader();
+        PacketHeader[] headers = new PacketHeader[0];
+        long[] masks = new long[0];
+        ByteBuffer[] bufs = new ByteBuffer[0];
+        PacketHeader[] subHeaders = new PacketHeader[0];
+        ByteBuffer[] pooled = new ByteBuffer[0];
+        int[] verdicts = new int[0];
+        int[] index = new int[0];
+        // the guarded processor this thread is in, and since when
+        volatile CircuitBreaker current = null;
+        volatile long since;
+        // version of the chain the thread is dispatching with, 0 when it
+        // isn't dispatching
+        volatile long active = 0;
+        // true while a dispatch uses this context; only its thread looks
+        boolean busy = false;
+        // the context of a dispatch made from within this one, or null
+        DispatchContext nested = null;
+
+        void release() {
+            active = 0;
+            busy = false;
+        }
+
+        void ensureCapacity(int count, int words) {
+            if (masks.length < count * words) {
+                masks = new long[count * words];
+            }
+            if (headers.length < count) {
+                int n = headers.length;
+                headers = Arrays.copyOf(headers, count);
+                for (int i = n; i < count; i++) {
+                    headers[i] = new PacketHeader();
+                }
+                bufs = new ByteBuffer[count];
+                pooled = new ByteBuffer[count];
+                subHeaders = new PacketHeader[count];
+                verdicts = new int[count];
+                index = new int[count];
+            }
+        }
     }
 }
\ No newline at end of file
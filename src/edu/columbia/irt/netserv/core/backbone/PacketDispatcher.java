@@ -4,9 +4,25 @@ import java.nio.ByteBuffer;
 
 public interface PacketDispatcher {
 
-    public void dispatchPacket(ByteBuffer buf);
+    /**
+     * @return The {@link PacketVerdict} for the packet.
+     */
+    public int dispatchPacket(ByteBuffer buf);
+
+    /**
+     * Dispatch bufs[0] through bufs[count - 1] and store their verdicts in
+     * verdicts[0] through verdicts[count - 1].  Each processor sees the
+     * packets in array order; BatchPacketProcessors get them in one call.
+     */
+    public void dispatchPackets(ByteBuffer[] bufs, int[] verdicts, int count);
 
     public void addProcessor(PacketProcessor processor);
 
+    /**
+     * Add a processor that only gets the packets matching interest.
+     * A null interest means all packets, like addProcessor(processor).
+     */
+    public void addProcessor(PacketProcessor processor, PacketInterest interest);
+
     public void removeProcessor(PacketProcessor processor);
 }
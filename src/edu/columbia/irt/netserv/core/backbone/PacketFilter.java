@@ -0,0 +1,19 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A PacketProcessor that returns a verdict for each packet.  PacketConduit
+ * calls filterPacket() instead of processPacket() for these, and stops
+ * walking the chain as soon as a filter returns a terminal verdict, so a
+ * filter with a low relativeOrder() can spare the rest of the chain.
+ */
+public interface PacketFilter extends PacketProcessor {
+
+    /**
+     * @param buf The packet.
+     * @param hdr The packet's parsed headers; only valid during the call.
+     * @return One of the {@link PacketVerdict} values.
+     */
+    public int filterPacket(ByteBuffer buf, PacketHeader hdr);
+}
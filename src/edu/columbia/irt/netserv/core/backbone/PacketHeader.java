@@ -0,0 +1,321 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable view of the L3/L4 headers of an IPv4 or IPv6 packet.
+ * parse() records where everything is in the buffer; the accessors read
+ * the fields from there, so nothing is allocated per packet.
+ *
+ * PacketConduit parses each packet once and passes the view to
+ * PacketFilters and BatchPacketProcessors alongside the buffer.  The view
+ * is reused for the next packet, so it must not be kept after returning.
+ * A filter that rewrites header fields should call parse() again before
+ * returning so the rest of the chain sees the new values.
+ */
+public final class PacketHeader {
+
+    public static final int ICMP = 1;
+    public static final int TCP = 6;
+    public static final int UDP = 17;
+    public static final int ICMPV6 = 58;
+    public static final int SCTP = 132;
+    public static final int UDPLITE = 136;
+    private ByteBuffer buf;
+    private int version;
+    private int l3Offset;
+    private int protocol;
+    private int l4Offset;
+    private int payloadOffset;
+    private int end;
+    private boolean fragment;
+
+    /**
+     * Parses the packet between buf's position and limit.  Extension
+     * headers of IPv6 are skipped to find the transport protocol.
+     * @return false if it isn't a well-formed IPv4/IPv6 packet, in which
+     * case version() is 0 and the other accessors must not be used.
+     */
+    public boolean parse(ByteBuffer buf) {
+        this.buf = buf;
+        version = 0;
+        l3Offset = buf.position();
+        end = buf.limit();
+        int p = l3Offset;
+        if (end - p < 20) {
+            return false;
+        }
+        int l4;
+        int v = (buf.get(p) & 0xff) >>> 4;
+        if (v == 4) {
+            int ihl = (buf.get(p) & 0x0f) << 2;
+            if (ihl < 20 || end - p < ihl) {
+                return false;
+            }
+            // trust the total length only if it is sane; segmentation
+            // offload can leave it at 0
+            int total = buf.getShort(p + 2) & 0xffff;
+            if (total >= ihl) {
+                end = Math.min(end, p + total);
+            }
+            protocol = buf.get(p + 9) & 0xff;
+            // a non-zero fragment offset means there is no L4 header
+            fragment = (buf.getShort(p + 6) & 0x3fff) != 0;
+            l4 = (buf.getShort(p + 6) & 0x1fff) != 0 ? -1 : p + ihl;
+        } else if (v == 6) {
+            if (end - p < 40) {
+                return false;
+            }
+            // a payload length of 0 is used by jumbograms
+            int payload = buf.getShort(p + 4) & 0xffff;
+            if (payload > 0) {
+                end = Math.min(end, p + 40 + payload);
+            }
+            protocol = buf.get(p + 6) & 0xff;
+            fragment = false;
+            l4 = p + 40;
+            while (l4 >= 0 && end - l4 >= 8) {
+                if (protocol == 0 || protocol == 43 || protocol == 60) {
+                    protocol = buf.get(l4) & 0xff;
+                    l4 += ((buf.get(l4 + 1) & 0xff) + 1) << 3;
+                } else if (protocol == 51) {
+                    protocol = buf.get(l4) & 0xff;
+                    l4 += ((buf.get(l4 + 1) & 0xff) + 2) << 2;
+                } else if (protocol == 44) {
+                    protocol = buf.get(l4) & 0xff;
+                    fragment = true;
+                    l4 = (buf.getShort(l4 + 2) & 0xfff8) != 0 ? -1 : l4 + 8;
+                } else {
+                    break;
+                }
+            }
+            if (l4 > end) {
+                l4 = -1;
+            }
+        } else {
+            return false;
+        }
+        version = v;
+        l4Offset = -1;
+        payloadOffset = -1;
+        if (l4 >= 0) {
+            int len = l4HeaderLength(l4);
+            // leave both at -1 if the transport header is cut off
+            if (len >= 0 && end - l4 >= len) {
+                l4Offset = l4;
+                payloadOffset = l4 + len;
+            }
+        }
+        return true;
+    }
+
+    private int l4HeaderLength(int l4) {
+        switch (protocol) {
+            case TCP:
+                if (end - l4 < 20) {
+                    return -1;
+                }
+                return Math.max(20, ((buf.get(l4 + 12) & 0xff) >>> 4) << 2);
+            case UDP:
+            case UDPLITE:
+            case ICMP:
+            case ICMPV6:
+                return 8;
+            case SCTP:
+                return 12;
+            default:
+                return 0;
+        }
+    }
+
+    public ByteBuffer buffer() {
+        return buf;
+    }
+
+    /**
+     * @return 4, 6, or 0 if the last parse() failed.
+     */
+    public int version() {
+        return version;
+    }
+
+    public boolean isIPv4() {
+        return version == 4;
+    }
+
+    public boolean isIPv6() {
+        return version == 6;
+    }
+
+    /**
+     * Offset of the IP header in the buffer.
+     */
+    public int l3Offset() {
+        return l3Offset;
+    }
+
+    /**
+     * The transport protocol; for IPv6, the header following the last
+     * extension header.
+     */
+    public int protocol() {
+        return protocol;
+    }
+
+    /**
+     * True for any fragment, including the first one.
+     */
+    public boolean isFragment() {
+        return fragment;
+    }
+
+    /**
+     * Offset of the transport header, or -1 if the packet is a non-first
+     * fragment or the header is cut off.
+     */
+    public int l4Offset() {
+        return l4Offset;
+    }
+
+    /**
+     * True for TCP, UDP, UDP-Lite and SCTP packets that have their
+     * transport header.
+     */
+    public boolean hasPorts() {
+        return l4Offset >= 0 && (protocol == TCP || protocol == UDP
+                || protocol == SCTP || protocol == UDPLITE);
+    }
+
+    /**
+     * @return The source port, or -1 if !hasPorts().
+     */
+    public int srcPort() {
+        return hasPorts() ? buf.getShort(l4Offset) & 0xffff : -1;
+    }
+
+    /**
+     * @return The destination port, or -1 if !hasPorts().
+     */
+    public int dstPort() {
+        return hasPorts() ? buf.getShort(l4Offset + 2) & 0xffff : -1;
+    }
+
+    /**
+     * @return The TCP flags byte, or -1 if this isn't a TCP packet.
+     */
+    public int tcpFlags() {
+        return l4Offset >= 0 && protocol == TCP ? buf.get(l4Offset + 13) & 0xff : -1;
+    }
+
+    /**
+     * @return The ICMP or ICMPv6 type, or -1 for other packets.
+     */
+    public int icmpType() {
+        return l4Offset >= 0 && (protocol == ICMP || protocol == ICMPV6)
+                ? buf.get(l4Offset) & 0xff : -1;
+    }
+
+    /**
+     * @return The ICMP or ICMPv6 code, or -1 for other packets.
+     */
+    public int icmpCode() {
+        return l4Offset >= 0 && (protocol == ICMP || protocol == ICMPV6)
+                ? buf.get(l4Offset + 1) & 0xff : -1;
+    }
+
+    /**
+     * Offset of the transport payload, or -1 if it can't be located.  For
+     * protocols other than TCP, UDP, UDP-Lite, SCTP and ICMP this is the
+     * offset of the transport header itself.
+     */
+    public int payloadOffset() {
+        return payloadOffset;
+    }
+
+    /**
+     * Length of the transport payload; 0 if it can't be located.
+     */
+    public int payloadLength() {
+        return payloadOffset < 0 ? 0 : end - payloadOffset;
+    }
+
+    /**
+     * Offset just past the end of the packet: the buffer's limit or the end
+     * given by the IP length field, whichever comes first.
+     */
+    public int end() {
+        return end;
+    }
+
+    /**
+     * Length of the addresses in bytes: 4 or 16.
+     */
+    public int addressLength() {
+        return version == 6 ? 16 : 4;
+    }
+
+    public int srcAddressOffset() {
+        return l3Offset + (version == 6 ? 8 : 12);
+    }
+
+    public int dstAddressOffset() {
+        return l3Offset + (version == 6 ? 24 : 16);
+    }
+
+    /**
+     * IPv4 source address in network order; only valid for isIPv4().
+     */
+    public int srcAddressV4() {
+        return buf.getInt(l3Offset + 12);
+    }
+
+    /**
+     * IPv4 destination address in network order; only valid for isIPv4().
+     */
+    public int dstAddressV4() {
+        return buf.getInt(l3Offset + 16);
+    }
+
+    /**
+     * Copies the source address into dst at off; addressLength() bytes.
+     */
+    public void getSrcAddress(byte[] dst, int off) {
+        copy(srcAddressOffset(), dst, off);
+    }
+
+    /**
+     * Copies the destination address into dst at off; addressLength() bytes.
+     */
+    public void getDstAddress(byte[] dst, int off) {
+        copy(dstAddressOffset(), dst, off);
+    }
+
+    private void copy(int from, byte[] dst, int off) {
+        for (int i = 0; i < addressLength(); i++) {
+            dst[off + i] = buf.get(from + i);
+        }
+    }
+
+    /**
+     * Hashes the 5-tuple.  Ports only go in for packets that have them and
+     * aren't fragmented, so all fragments of a datagram hash alike.  A
+     * packet that didn't parse hashes to 0.
+     */
+    public int flowHash() {
+        if (version == 0) {
+            return 0;
+        }
+        int h = 0;
+        int words = addressLength() >>> 1;
+        for (int i = 0, p = srcAddressOffset(); i < words; i++, p += 4) {
+            h = h * 31 + buf.getInt(p);
+        }
+        h = h * 31 + protocol;
+        if (!fragment && hasPorts()) {
+            h = h * 31 + buf.getInt(l4Offset);
+        }
+        // spread the bits so that a modulo picks up all of them
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+}
@@ -0,0 +1,232 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Describes which packets a PacketProcessor wants to see: a destination
+ * address prefix, an IP protocol, destination port ranges and a payload
+ * prefix.  Every criterion left unset matches anything; the ones that are
+ * set must all match.  A processor registered with an interest only gets
+ * IPv4/IPv6 packets that match it.
+ *
+ * The setters return this, so an interest can be built in one expression:
+ * <pre>
+ *     new PacketInterest().setProtocol("udp").setPorts("5060:5061")
+ * </pre>
+ */
+public class PacketInterest implements Cloneable {
+
+    static final int ANY = -1;
+    private int protocol = ANY;
+    // 4 or 16 bytes, or null for any destination
+    private byte[] dstAddress;
+    private int dstPrefixLength;
+    // inclusive ranges: low0, high0, low1, high1, ...
+    private int[] portRanges = new int[0];
+    private byte[] payloadPrefix;
+
+    /**
+     * Only match packets carrying the given IP protocol number.
+     */
+    public PacketInterest setProtocol(int protocol) {
+        if (protocol < 0 || protocol > 255) {
+            throw new IllegalArgumentException("bad protocol number: " + protocol);
+        }
+        this.protocol = protocol;
+        return this;
+    }
+
+    /**
+     * Takes the protocol names iptables accepts for -p, or a number.
+     * "all" clears the criterion.
+     */
+    public PacketInterest setProtocol(String name) {
+        String s = name.trim().toLowerCase(Locale.US);
+        if (s.equals("all")) {
+            protocol = ANY;
+            return this;
+        }
+        String[] names = {"icmp", "tcp", "udp", "gre", "esp", "ah",
+            "icmpv6", "ipv6-icmp", "sctp", "udplite"};
+        int[] numbers = {1, 6, 17, 47, 50, 51, 58, 58, 132, 136};
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(s)) {
+                return setProtocol(numbers[i]);
+            }
+        }
+        try {
+            return setProtocol(Integer.parseInt(s));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("unknown protocol: " + name);
+        }
+    }
+
+    /**
+     * Only match packets whose destination lies in the given prefix.
+     * An IPv4 prefix never matches IPv6 packets and vice versa.
+     */
+    public PacketInterest setDestination(InetAddress addr, int prefixLength) {
+        byte[] a = addr.getAddress();
+        if (prefixLength < 0 || prefixLength > a.length * 8) {
+            throw new IllegalArgumentException("bad prefix length: " + prefixLength);
+        }
+        dstAddress = a;
+        dstPrefixLength = prefixLength;
+        return this;
+    }
+
+    /**
+     * Takes "address[/prefixLength]" as iptables does for --dst.
+     */
+    public PacketInterest setDestination(String cidr) {
+        String[] a = cidr.trim().split("/", 2);
+        try {
+            InetAddress addr = InetAddress.getByName(a[0]);
+            int len = addr.getAddress().length * 8;
+            if (a.length > 1) {
+                len = Integer.parseInt(a[1]);
+            }
+            return setDestination(addr, len);
+        } catch (UnknownHostException ex) {
+            throw new IllegalArgumentException("bad destination: " + cidr);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("bad destination: " + cidr);
+        }
+    }
+
+    /**
+     * Match packets whose destination port lies between low and high,
+     * inclusive.  Can be called several times to add more ranges.
+     */
+    public PacketInterest addPortRange(int low, int high) {
+        if (low < 0 || high > 0xffff || low > high) {
+            throw new IllegalArgumentException("bad port range: " + low + ":" + high);
+        }
+        portRanges = Arrays.copyOf(portRanges, portRanges.length + 2);
+        portRanges[portRanges.length - 2] = low;
+        portRanges[portRanges.length - 1] = high;
+        return this;
+    }
+
+    /**
+     * Takes a comma-separated list of ports and iptables-style "low:high"
+     * ranges, e.g. "80,443,8000:8099".
+     */
+    public PacketInterest setPorts(String spec) {
+        portRanges = new int[0];
+        try {
+            for (String s : spec.split(",", 0)) {
+                String[] a = s.trim().split(":", 2);
+                int low = a[0].length() > 0 ? Integer.parseInt(a[0].trim()) : 0;
+                int high = low;
+                if (a.length > 1) {
+                    high = a[1].length() > 0 ? Integer.parseInt(a[1].trim()) : 0xffff;
+                }
+                addPortRange(low, high);
+            }
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("bad port list: " + spec);
+        }
+        return this;
+    }
+
+    /**
+     * Only match packets whose transport payload starts with the given
+     * bytes.
+     */
+    public PacketInterest setPayloadPrefix(byte[] prefix) {
+        payloadPrefix = prefix == null || prefix.length == 0 ? null : prefix.clone();
+        return this;
+    }
+
+    /**
+     * Builds an interest from the filter-ipv4, filter-proto and
+     * filter-port headers of a SETUP request, the same ones that go into
+     * the module's iptables rule.
+     * @return The interest, or null if none of the headers is present.
+     * @throws IllegalArgumentException if a header can't be parsed.
+     */
+    public static PacketInterest fromHeaders(Map<String, String> headers) {
+        String ipv4 = headers.get("filter-ipv4");
+        String proto = headers.get("filter-proto");
+        String port = headers.get("filter-port");
+        if (ipv4 == null && proto == null) {
+            return null;
+        }
+        PacketInterest interest = new PacketInterest();
+        if (ipv4 != null) {
+            interest.setDestination(ipv4);
+        }
+        if (proto != null) {
+            interest.setProtocol(proto);
+            // iptables only takes --dport together with -p
+            if (port != null) {
+                interest.setPorts(port);
+            }
+        }
+        return interest;
+    }
+
+    /**
+     * Returns a copy, which can be changed without changing this one.
+     */
+    @Override
+    public PacketInterest clone() {
+        try {
+            // the arrays are replaced, never written to, so can be shared
+            return (PacketInterest) super.clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    int protocol() {
+        return protocol;
+    }
+
+    byte[] dstAddress() {
+        return dstAddress;
+    }
+
+    int dstPrefixLength() {
+        return dstPrefixLength;
+    }
+
+    int[] portRanges() {
+        return portRanges;
+    }
+
+    byte[] payloadPrefix() {
+        return payloadPrefix;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("[");
+        if (dstAddress != null) {
+            try {
+                s.append(" dst=").append(InetAddress.getByAddress(dstAddress).getHostAddress());
+            } catch (UnknownHostException ex) {
+                // not reached - the length was checked when it was set
+            }
+            s.append('/').append(dstPrefixLength);
+        }
+        if (protocol != ANY) {
+            s.append(" proto=").append(protocol);
+        }
+        for (int i = 0; i < portRanges.length; i += 2) {
+            s.append(i == 0 ? " ports=" : ",").append(portRanges[i]);
+            if (portRanges[i + 1] != portRanges[i]) {
+                s.append(':').append(portRanges[i + 1]);
+            }
+        }
+        if (payloadPrefix != null) {
+            s.append(" payload=").append(payloadPrefix.length).append("B");
+        }
+        return s.append(" ]").toString();
+    }
+}
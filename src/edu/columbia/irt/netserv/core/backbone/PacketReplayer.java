@@ -0,0 +1,206 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds the packets of a PacketSource to a PacketDispatcher, the way the
+ * native code would, so module performance can be measured without it.
+ * Packets are replayed at their original pace, faster or slower by a
+ * factor, or as fast as possible, one at a time or in batches through
+ * dispatchPackets().  Afterwards getReport() gives the packets per second
+ * achieved and the distribution of the time each packet took to dispatch.
+ *
+ * <pre>
+ * PacketConduit pc = new PacketConduit();
+ * pc.addProcessor(module);
+ * PacketReplayer r = new PacketReplayer(new PcapPacketSource(file), pc);
+ * r.setSpeed(PacketReplayer.AS_FAST_AS_POSSIBLE);
+ * r.run();
+ * System.out.print(r.getReport());
+ * </pre>
+ *
+ * A FlowDispatcher only queues the packet on the injecting thread, so
+ * replaying into one measures queueing, not processing; the processors'
+ * own statistics are in PacketConduit.getProcessorStats().
+ */
+public final class PacketReplayer {
+
+    /** Speed at which packets aren't paced at all. */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+    // sleep rather than spin when a packet is due later than this
+    private static final long SLEEP_THRESHOLD = 2000000;
+    private final PacketSource source;
+    private final PacketDispatcher dispatcher;
+    private double speed = 1;
+    private int batchSize = 1;
+    private int bufferSize = 65535;
+    private volatile boolean stopped = false;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final long[] verdicts = new long[PacketVerdict.ACTION_MASK + 1];
+    private long packets = 0;
+    private long bytes = 0;
+    private long elapsed = 0;
+
+    public PacketReplayer(PacketSource source, PacketDispatcher dispatcher) {
+        this.source = source;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * @param speed 1 (the default) for the pace at which the packets were
+     * captured, 2 for twice as fast, and so on, or AS_FAST_AS_POSSIBLE.
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("speed " + speed);
+        }
+        this.speed = speed;
+    }
+
+    /**
+     * Sets the most packets to dispatch with one dispatchPackets() call;
+     * 1 (the default) uses dispatchPacket().  When paced, a batch only
+     * holds packets that are already due.
+     */
+    public void setBatchSize(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("batch size " + n);
+        }
+        batchSize = n;
+    }
+
+    /**
+     * Sets the size of the direct buffers packets are copied into; longer
+     * packets are cut short.
+     */
+    public void setBufferSize(int n) {
+        bufferSize = n;
+    }
+
+    /**
+     * Makes run() return after the current batch.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Replays the source until it ends or stop() is called.  The source is
+     * not closed.
+     */
+    public void run() throws IOException {
+        ByteBuffer[] bufs = new ByteBuffer[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            bufs[i] = ByteBuffer.allocateDirect(bufferSize);
+        }
+        int[] results = new int[batchSize];
+        long start = System.nanoTime();
+        long first = 0;
+        int n = 0;
+        while (!stopped && source.nextPacket(bufs[n])) {
+            if (speed > 0) {
+                if (packets + n == 0) {
+                    first = source.timestamp();
+                }
+                long due = start + (long) ((source.timestamp() - first) / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    // send what is due before waiting for this one
+                    if (n > 0) {
+                        dispatch(bufs, results, n);
+                        ByteBuffer b = bufs[0];
+                        bufs[0] = bufs[n];
+                        bufs[n] = b;
+                        n = 0;
+                    }
+                    waitUntil(due);
+                }
+            }
+            if (++n == batchSize) {
+                dispatch(bufs, results, n);
+                n = 0;
+            }
+        }
+        if (n > 0) {
+            dispatch(bufs, results, n);
+        }
+        elapsed = System.nanoTime() - start;
+    }
+
+    private void dispatch(ByteBuffer[] bufs, int[] results, int n) {
+        for (int i = 0; i < n; i++) {
+            bytes += bufs[i].remaining();
+        }
+        long t0 = System.nanoTime();
+        if (batchSize == 1) {
+            results[0] = dispatcher.dispatchPacket(bufs[0]);
+        } else {
+            dispatcher.dispatchPackets(bufs, results, n);
+        }
+        latency.record(0, (System.nanoTime() - t0) / n, n);
+        for (int i = 0; i < n; i++) {
+            verdicts[results[i] & PacketVerdict.ACTION_MASK]++;
+        }
+        packets += n;
+    }
+
+    private static void waitUntil(long due) {
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            if (wait > SLEEP_THRESHOLD) {
+                LockSupport.parkNanos(wait - SLEEP_THRESHOLD / 2);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    public long packets() {
+        return packets;
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns how long run() took, in nanoseconds.
+     */
+    public long elapsedNanos() {
+        return elapsed;
+    }
+
+    public double packetsPerSecond() {
+        return elapsed == 0 ? 0 : packets * 1e9 / elapsed;
+    }
+
+    /**
+     * Returns the distribution of dispatch times per packet; for a batch,
+     * each packet counts as taking an equal share.
+     */
+    public LatencyHistogram latency() {
+        return latency;
+    }
+
+    /**
+     * Returns "packets=n bytes=n time=t pps=n continue=n accept=n drop=n
+     * stolen=n n=n p50=t p90=t p99=t p999=t\n".
+     */
+    public StringBuilder getReport() {
+        StringBuilder s = new StringBuilder();
+        s.append("packets=").append(packets);
+        s.append(" bytes=").append(bytes);
+        s.append(" time=").append(LatencyHistogram.formatNanos(elapsed));
+        s.append(" pps=").append(Math.round(packetsPerSecond()));
+        for (int v = 0; v < verdicts.length; v++) {
+            s.append(' ').append(PacketVerdict.toString(v).toLowerCase(Locale.ENGLISH)).append('=').append(verdicts[v]);
+        }
+        s.append(' ');
+        latency.format(s);
+        s.append('\n');
+        return s;
+    }
+}
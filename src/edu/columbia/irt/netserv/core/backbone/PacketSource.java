@@ -0,0 +1,27 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Something other than the native code that packets can come from, such
+ * as a capture file.  PacketReplayer feeds the packets of a source to a
+ * PacketDispatcher.
+ */
+public interface PacketSource extends Closeable {
+
+    /**
+     * Copies the next IP packet, from its IP header on, into dst, which is
+     * cleared first and left with position 0 and the packet's length as
+     * its limit.  A packet longer than dst is cut short.
+     * @return False at the end of the source.
+     */
+    boolean nextPacket(ByteBuffer dst) throws IOException;
+
+    /**
+     * Returns the capture time of the packet nextPacket() last returned, in
+     * nanoseconds since the epoch.
+     */
+    long timestamp();
+}
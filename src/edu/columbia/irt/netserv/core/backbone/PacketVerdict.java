@@ -0,0 +1,60 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+/**
+ * Verdicts returned by PacketFilters and passed back to the native NFQUEUE
+ * code by PacketConduit.injectPacket().  The low two bits are the action;
+ * MODIFIED is a flag that can be combined with any of them.
+ */
+public final class PacketVerdict {
+
+    /** Undecided; the packet goes on to the next processor in the chain. */
+    public static final int CONTINUE = 0;
+    /** Let the packet through without running the rest of the chain. */
+    public static final int ACCEPT = 1;
+    /** Drop the packet without running the rest of the chain. */
+    public static final int DROP = 2;
+    /** A processor has taken over the packet; the kernel forgets it. */
+    public static final int STOLEN = 3;
+    /**
+     * The packet was changed in place and has to be reinjected with its
+     * new contents.  On its own it does not end the chain.
+     */
+    public static final int MODIFIED = 4;
+    static final int ACTION_MASK = 3;
+
+    private PacketVerdict() {
+    }
+
+    /**
+     * Returns true if the verdict ends the walk down the chain.
+     */
+    public static boolean isTerminal(int verdict) {
+        return (verdict & ACTION_MASK) != CONTINUE;
+    }
+
+    /**
+     * Combines the verdict reached so far (which must not be terminal)
+     * with the one a processor has just returned.
+     */
+    public static int merge(int current, int verdict) {
+        return current | (verdict & (ACTION_MASK | MODIFIED));
+    }
+
+    public static String toString(int verdict) {
+        String s;
+        switch (verdict & ACTION_MASK) {
+            case ACCEPT:
+                s = "ACCEPT";
+                break;
+            case DROP:
+                s = "DROP";
+                break;
+            case STOLEN:
+                s = "STOLEN";
+                break;
+            default:
+                s = "CONTINUE";
+        }
+        return (verdict & MODIFIED) != 0 ? s + "|MODIFIED" : s;
+    }
+}
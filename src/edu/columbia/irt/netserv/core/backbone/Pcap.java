@@ -0,0 +1,42 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+/**
+ * Constants of the pcap and pcapng capture file formats.
+ */
+final class Pcap {
+
+    // pcap file header magic numbers, as read in big-endian order
+    static final int MAGIC_MICROS = 0xa1b2c3d4;
+    static final int MAGIC_MICROS_SWAPPED = 0xd4c3b2a1;
+    static final int MAGIC_NANOS = 0xa1b23c4d;
+    static final int MAGIC_NANOS_SWAPPED = 0x4d3cb2a1;
+    static final int VERSION_MAJOR = 2;
+    static final int VERSION_MINOR = 4;
+    static final int FILE_HEADER_LENGTH = 24;
+    static final int RECORD_HEADER_LENGTH = 16;
+    // pcapng block types
+    static final int SECTION_HEADER_BLOCK = 0x0a0d0d0a;
+    static final int INTERFACE_DESCRIPTION_BLOCK = 1;
+    static final int SIMPLE_PACKET_BLOCK = 3;
+    static final int ENHANCED_PACKET_BLOCK = 6;
+    static final int BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+    static final int OPTION_END = 0;
+    static final int OPTION_IF_TSRESOL = 9;
+    // link types
+    static final int LINKTYPE_NULL = 0;
+    static final int LINKTYPE_ETHERNET = 1;
+    static final int LINKTYPE_RAW = 101;
+    static final int LINKTYPE_LOOP = 108;
+    static final int LINKTYPE_LINUX_SLL = 113;
+    static final int LINKTYPE_IPV4 = 228;
+    static final int LINKTYPE_IPV6 = 229;
+    static final int LINKTYPE_LINUX_SLL2 = 276;
+    // ethertypes
+    static final int ETHERTYPE_IPV4 = 0x0800;
+    static final int ETHERTYPE_IPV6 = 0x86dd;
+    static final int ETHERTYPE_VLAN = 0x8100;
+    static final int ETHERTYPE_QINQ = 0x88a8;
+
+    private Pcap() {
+    }
+}
@@ -0,0 +1,323 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads the IP packets of a pcap or pcapng capture file, which is mapped
+ * into memory a window at a time rather than read through a stream.
+ * Ethernet (with VLAN tags), raw IP, Linux cooked and BSD loopback
+ * captures are understood; packets that aren't IPv4 or IPv6 are skipped.
+ */
+public final class PcapPacketSource implements PacketSource {
+
+    // how much of the file is mapped at a time
+    private static final long WINDOW = 64L << 20;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window = null;
+    // window as a buffer whose position and limit can be moved around
+    private ByteBuffer view;
+    private long windowStart;
+    private ByteOrder order;
+    private final boolean ng;
+    // pcap: nanosecond rather than microsecond timestamps, and link type
+    private boolean nanos;
+    private int linkType;
+    // pcapng: link type and timestamp ticks per second of each interface
+    private int[] ifLinkTypes = new int[4];
+    private long[] ifTicks = new long[4];
+    private int ifCount = 0;
+    // file offset of the next record or block
+    private long pos;
+    private long timestamp = 0;
+    private long packets = 0;
+    private long skipped = 0;
+    // the current packet, as found by nextRecord() or nextBlock()
+    private long packetOffset;
+    private int packetLength;
+    private int packetLinkType;
+
+    public PcapPacketSource(File f) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        channel = file.getChannel();
+        size = channel.size();
+        try {
+            if (size < Pcap.FILE_HEADER_LENGTH) {
+                throw new IOException(f + ": not a capture file");
+            }
+            ensure(0, Pcap.FILE_HEADER_LENGTH);
+            int magic = window.order(ByteOrder.BIG_ENDIAN).getInt(0);
+            if (magic == Pcap.SECTION_HEADER_BLOCK) {
+                ng = true;
+                pos = 0;
+            } else {
+                ng = false;
+                if (magic == Pcap.MAGIC_MICROS || magic == Pcap.MAGIC_NANOS) {
+                    order = ByteOrder.BIG_ENDIAN;
+                } else if (magic == Pcap.MAGIC_MICROS_SWAPPED
+                        || magic == Pcap.MAGIC_NANOS_SWAPPED) {
+                    order = ByteOrder.LITTLE_ENDIAN;
+                } else {
+                    throw new IOException(f + ": not a capture file");
+                }
+                nanos = magic == Pcap.MAGIC_NANOS || magic == Pcap.MAGIC_NANOS_SWAPPED;
+                window.order(order);
+                // the upper bits may hold FCS information
+                linkType = window.getInt(20) & 0xffff;
+                pos = Pcap.FILE_HEADER_LENGTH;
+            }
+        } catch (IOException x) {
+            file.close();
+            throw x;
+        }
+    }
+
+    @Override
+    public boolean nextPacket(ByteBuffer dst) throws IOException {
+        for (;;) {
+            if (!(ng ? nextBlock() : nextRecord())) {
+                return false;
+            }
+            int l3 = ipOffset(packetLinkType);
+            if (l3 < 0) {
+                skipped++;
+                continue;
+            }
+            int start = (int) (packetOffset - windowStart) + l3;
+            int len = Math.min(packetLength - l3, dst.capacity());
+            view.limit(start + len).position(start);
+            dst.clear();
+            dst.put(view);
+            dst.flip();
+            packets++;
+            return true;
+        }
+    }
+
+    @Override
+    public long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the number of packets returned so far.
+     */
+    public long packets() {
+        return packets;
+    }
+
+    /**
+     * Returns the number of packets skipped because they weren't IP.
+     */
+    public long skipped() {
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        view = null;
+        file.close();
+    }
+
+    private boolean nextRecord() throws IOException {
+        if (pos + Pcap.RECORD_HEADER_LENGTH > size) {
+            return false;
+        }
+        int p = ensure(pos, Pcap.RECORD_HEADER_LENGTH);
+        long sec = window.getInt(p) & 0xffffffffL;
+        long frac = window.getInt(p + 4) & 0xffffffffL;
+        int len = window.getInt(p + 8);
+        if (len < 0 || pos + Pcap.RECORD_HEADER_LENGTH + len > size) {
+            // cut short, e.g. by a capture that was still running
+            return false;
+        }
+        timestamp = sec * 1000000000L + (nanos ? frac : frac * 1000);
+        packetOffset = pos + Pcap.RECORD_HEADER_LENGTH;
+        packetLength = len;
+        packetLinkType = linkType;
+        ensure(packetOffset, len);
+        pos = packetOffset + len;
+        return true;
+    }
+
+    private boolean nextBlock() throws IOException {
+        while (pos + 12 <= size) {
+            int p = ensure(pos, 12);
+            // the type of a section header reads the same in either byte
+            // order, and its byte order magic tells which one it is
+            if (window.order(ByteOrder.BIG_ENDIAN).getInt(p) == Pcap.SECTION_HEADER_BLOCK) {
+                int bom = window.getInt(p + 8);
+                if (bom == Pcap.BYTE_ORDER_MAGIC) {
+                    order = ByteOrder.BIG_ENDIAN;
+                } else if (bom == Integer.reverseBytes(Pcap.BYTE_ORDER_MAGIC)) {
+                    order = ByteOrder.LITTLE_ENDIAN;
+                } else {
+                    throw new IOException("corrupt pcapng section header");
+                }
+                ifCount = 0;
+            }
+            window.order(order);
+            int type = window.getInt(p);
+            int len = window.getInt(p + 4);
+            if (len < 12 || (len & 3) != 0) {
+                throw new IOException("corrupt pcapng block at " + pos);
+            }
+            if (pos + len > size) {
+                // cut short, e.g. by a capture that was still running
+                return false;
+            }
+            long block = pos;
+            pos += len;
+            p = ensure(block, len);
+            if (type == Pcap.INTERFACE_DESCRIPTION_BLOCK) {
+                addInterface(p, len);
+            } else if (type == Pcap.ENHANCED_PACKET_BLOCK && len >= 32) {
+                int iface = window.getInt(p + 8);
+                long ticks = ((long) window.getInt(p + 12) << 32)
+                        | (window.getInt(p + 16) & 0xffffffffL);
+                int capLen = window.getInt(p + 20);
+                if (iface < 0 || iface >= ifCount || capLen < 0 || capLen > len - 32) {
+                    throw new IOException("corrupt pcapng packet at " + block);
+                }
+                timestamp = toNanos(ticks, ifTicks[iface]);
+                packetOffset = block + 28;
+                packetLength = capLen;
+                packetLinkType = ifLinkTypes[iface];
+                return true;
+            } else if (type == Pcap.SIMPLE_PACKET_BLOCK && len >= 16 && ifCount > 0) {
+                // no timestamp; keeps that of the previous packet
+                packetOffset = block + 12;
+                packetLength = Math.min(window.getInt(p + 8), len - 16);
+                packetLinkType = ifLinkTypes[0];
+                return true;
+            }
+            // anything else is of no interest here
+        }
+        return false;
+    }
+
+    // Converts a timestamp in ticks per second to nanoseconds.  Below a
+    // second, ticks finer than 2^-33 s are dropped first, so that the
+    // multiplication can't overflow.
+    static long toNanos(long ticks, long tps) {
+        if (tps == 1000000000L) {
+            return ticks;
+        }
+        long frac = ticks % tps;
+        long scale = tps;
+        int shift = 64 - Long.numberOfLeadingZeros(tps) - 33;
+        if (shift > 0) {
+            frac >>>= shift;
+            scale >>>= shift;
+        }
+        return ticks / tps * 1000000000L + frac * 1000000000L / scale;
+    }
+
+    private void addInterface(int p, int len) {
+        if (ifCount == ifLinkTypes.length) {
+            ifLinkTypes = Arrays.copyOf(ifLinkTypes, 2 * ifCount);
+            ifTicks = Arrays.copyOf(ifTicks, 2 * ifCount);
+        }
+        ifLinkTypes[ifCount] = window.getShort(p + 8) & 0xffff;
+        long ticks = 1000000;
+        int o = p + 16;
+        int end = p + len - 4;
+        while (o + 4 <= end) {
+            int code = window.getShort(o) & 0xffff;
+            int olen = window.getShort(o + 2) & 0xffff;
+            if (code == Pcap.OPTION_END) {
+                break;
+            }
+            if (code == Pcap.OPTION_IF_TSRESOL && olen >= 1) {
+                int r = window.get(o + 4);
+                if ((r & 0x80) != 0) {
+                    ticks = 1L << Math.min(r & 0x7f, 62);
+                } else {
+                    ticks = 1;
+                    for (int i = 0; i < Math.min(r, 18); i++) {
+                        ticks *= 10;
+                    }
+                }
+            }
+            o += 4 + ((olen + 3) & ~3);
+        }
+        ifTicks[ifCount++] = ticks;
+    }
+
+    // Returns the offset of the IP header in the current packet, or -1 if
+    // it isn't an IP packet.
+    private int ipOffset(int link) {
+        int p = (int) (packetOffset - windowStart);
+        int len = packetLength;
+        int off;
+        switch (link) {
+            case Pcap.LINKTYPE_RAW:
+            case Pcap.LINKTYPE_IPV4:
+            case Pcap.LINKTYPE_IPV6:
+                off = 0;
+                break;
+            case Pcap.LINKTYPE_NULL:
+            case Pcap.LINKTYPE_LOOP:
+                // the address family, whose values differ between systems
+                off = 4;
+                break;
+            case Pcap.LINKTYPE_ETHERNET:
+                if (len < 14) {
+                    return -1;
+                }
+                int type = u16(p + 12);
+                off = 14;
+                while ((type == Pcap.ETHERTYPE_VLAN || type == Pcap.ETHERTYPE_QINQ)
+                        && off + 4 <= len) {
+                    type = u16(p + off + 2);
+                    off += 4;
+                }
+                if (type != Pcap.ETHERTYPE_IPV4 && type != Pcap.ETHERTYPE_IPV6) {
+                    return -1;
+                }
+                break;
+            case Pcap.LINKTYPE_LINUX_SLL:
+                off = 16;
+                break;
+            case Pcap.LINKTYPE_LINUX_SLL2:
+                off = 20;
+                break;
+            default:
+                return -1;
+        }
+        if (off >= len) {
+            return -1;
+        }
+        int version = (window.get(p + off) & 0xf0) >> 4;
+        return version == 4 || version == 6 ? off : -1;
+    }
+
+    private int u16(int p) {
+        return ((window.get(p) & 0xff) << 8) | (window.get(p + 1) & 0xff);
+    }
+
+    // Maps the window so that it holds len bytes at file offset off, and
+    // returns the offset of those bytes in the window.
+    private int ensure(long off, int len) throws IOException {
+        if (window == null || off < windowStart
+                || off + len > windowStart + window.capacity()) {
+            long n = Math.min(Math.max(WINDOW, len), size - off);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, off, n);
+            if (order != null) {
+                window.order(order);
+            }
+            view = window.duplicate();
+            windowStart = off;
+        }
+        return (int) (off - windowStart);
+    }
+}
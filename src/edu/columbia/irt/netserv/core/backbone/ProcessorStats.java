@@ -0,0 +1,113 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters kept by PacketConduit for one processor of the chain: packets
+ * and bytes it was given, the verdicts it returned, the time it spent, and
+ * a histogram of its per-packet latency.  Like LatencyHistogram, the
+ * counters are striped by dispatching thread and summed when read.
+ */
+public final class ProcessorStats {
+
+    static final int PACKETS = 0;
+    static final int BYTES = 1;
+    static final int NANOS = 2;
+    // one counter per verdict action (the CONTINUE one is unused, it's
+    // whatever is left of PACKETS), plus one for MODIFIED
+    static final int VERDICTS = 3;
+    static final int MODIFIED = VERDICTS + 4;
+    // counters plus padding to keep stripes on separate cache lines
+    static final int STRIDE = 16;
+    private final AtomicLongArray cells =
+            new AtomicLongArray(LatencyHistogram.STRIPES * STRIDE);
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Records a call that handled count packets totalling bytes and took
+     * nanos.  Verdicts other than CONTINUE are added with recordVerdict().
+     */
+    void record(int stripe, int count, long bytes, long nanos) {
+        int base = (stripe & (LatencyHistogram.STRIPES - 1)) * STRIDE;
+        cells.addAndGet(base + PACKETS, count);
+        cells.addAndGet(base + BYTES, bytes);
+        cells.addAndGet(base + NANOS, nanos);
+        latency.record(stripe, count > 1 ? nanos / count : nanos, count);
+    }
+
+    void recordVerdict(int stripe, int verdict) {
+        int base = (stripe & (LatencyHistogram.STRIPES - 1)) * STRIDE;
+        cells.incrementAndGet(base + VERDICTS + (verdict & PacketVerdict.ACTION_MASK));
+        if ((verdict & PacketVerdict.MODIFIED) != 0) {
+            cells.incrementAndGet(base + MODIFIED);
+        }
+    }
+
+    private long sum(int counter) {
+        long n = 0;
+        for (int s = 0; s < LatencyHistogram.STRIPES; s++) {
+            n += cells.get(s * STRIDE + counter);
+        }
+        return n;
+    }
+
+    public long packets() {
+        return sum(PACKETS);
+    }
+
+    public long bytes() {
+        return sum(BYTES);
+    }
+
+    /**
+     * Total time spent in the processor, in nanoseconds.
+     */
+    public long nanos() {
+        return sum(NANOS);
+    }
+
+    /**
+     * Number of packets for which the processor returned the given
+     * verdict action (CONTINUE, ACCEPT, DROP or STOLEN).
+     */
+    public long verdicts(int action) {
+        action &= PacketVerdict.ACTION_MASK;
+        if (action == PacketVerdict.CONTINUE) {
+            return packets() - verdicts(PacketVerdict.ACCEPT)
+                    - verdicts(PacketVerdict.DROP) - verdicts(PacketVerdict.STOLEN);
+        }
+        return sum(VERDICTS + action);
+    }
+
+    /**
+     * Number of packets the processor flagged as MODIFIED.
+     */
+    public long modified() {
+        return sum(MODIFIED);
+    }
+
+    public LatencyHistogram latency() {
+        return latency;
+    }
+
+    public void reset() {
+        for (int i = 0; i < cells.length(); i++) {
+            cells.set(i, 0);
+        }
+        latency.reset();
+    }
+
+    /**
+     * "packets=n bytes=n accept=n drop=n stolen=n modified=n busy=t n=n p50=t ..."
+     */
+    public void format(StringBuilder s) {
+        s.append("packets=").append(packets());
+        s.append(" bytes=").append(bytes());
+        s.append(" accept=").append(verdicts(PacketVerdict.ACCEPT));
+        s.append(" drop=").append(verdicts(PacketVerdict.DROP));
+        s.append(" stolen=").append(verdicts(PacketVerdict.STOLEN));
+        s.append(" modified=").append(modified());
+        s.append(" busy=").append(LatencyHistogram.formatNanos(nanos())).append(' ');
+        latency.format(s);
+    }
+}
@@ -5,13 +5,29 @@ public class ServiceEvent {
     public final String[] moduleAdded;
     public final String[] moduleRemoved;
     public final String[] resultingModuleList;
+    // packet processors taken out of or put back into the chain by the
+    // latency watchdog
+    public final String[] processorBypassed;
+    public final String[] processorRestored;
 
     public ServiceEvent(
             String[] moduleAdded,
             String[] moduleRemoved,
             String[] resultingModuleList) {
+        this(moduleAdded, moduleRemoved, resultingModuleList,
+                new String[0], new String[0]);
+    }
+
+    public ServiceEvent(
+            String[] moduleAdded,
+            String[] moduleRemoved,
+            String[] resultingModuleList,
+            String[] processorBypassed,
+            String[] processorRestored) {
         this.moduleAdded = moduleAdded;
         this.moduleRemoved = moduleRemoved;
         this.resultingModuleList = resultingModuleList;
+        this.processorBypassed = processorBypassed;
+        this.processorRestored = processorRestored;
     }
 }
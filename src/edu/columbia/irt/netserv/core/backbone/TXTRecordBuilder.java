@@ -0,0 +1,144 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Builds a DNS TXT record, a sequence of items each preceded by its
+ * length in one byte, in a buffer that grows by doubling.  Unlike
+ * Util.appendToTXTRecord(), which copies the whole record for every item,
+ * building a record of n items takes O(n) time.  A builder can be reset()
+ * and reused.
+ */
+public final class TXTRecordBuilder {
+
+    /** The longest item a TXT record can hold. */
+    public static final int MAX_ITEM_LENGTH = 255;
+    private static final Charset ascii = Charset.forName(Util.ASCII);
+    private static final Charset utf8 = Charset.forName(Util.UTF8);
+    private byte[] buf;
+    private int length = 0;
+    private int items = 0;
+
+    public TXTRecordBuilder() {
+        this(256);
+    }
+
+    public TXTRecordBuilder(int capacity) {
+        buf = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Creates a builder that appends to an existing TXT record.
+     */
+    public TXTRecordBuilder(byte[] txt) {
+        this(txt == null ? 0 : 2 * txt.length);
+        if (txt != null && txt.length > 1) {
+            TXTRecordCursor c = new TXTRecordCursor(txt, 0, txt.length);
+            while (c.next()) {
+                append(txt, c.offset(), c.length());
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if item is longer than
+     * MAX_ITEM_LENGTH.
+     */
+    public TXTRecordBuilder append(byte[] item) {
+        return append(item, 0, item.length);
+    }
+
+    /**
+     * @throws IllegalArgumentException if len is more than
+     * MAX_ITEM_LENGTH.
+     */
+    public TXTRecordBuilder append(byte[] item, int off, int len) {
+        if (len > MAX_ITEM_LENGTH) {
+            throw new IllegalArgumentException(
+                    "TXT record item of " + len + " bytes");
+        }
+        ensureCapacity(length + 1 + len);
+        buf[length] = (byte) len;
+        System.arraycopy(item, off, buf, length + 1, len);
+        length += 1 + len;
+        items++;
+        return this;
+    }
+
+    /**
+     * Appends a key-value pair.
+     * @param key Must be a plain old ASCII string.
+     * @param value Gets encoded in UTF-8 in the TXT record.
+     * @throws IllegalArgumentException if the pair is longer than
+     * MAX_ITEM_LENGTH.
+     */
+    public TXTRecordBuilder append(String key, String value) {
+        byte[] k = key.getBytes(ascii);
+        byte[] v = value.getBytes(utf8);
+        int len = k.length + 1 + v.length;
+        if (len > MAX_ITEM_LENGTH) {
+            throw new IllegalArgumentException(
+                    "TXT record item " + key + " of " + len + " bytes");
+        }
+        ensureCapacity(length + 1 + len);
+        int p = length;
+        buf[p++] = (byte) len;
+        System.arraycopy(k, 0, buf, p, k.length);
+        p += k.length;
+        buf[p++] = '=';
+        System.arraycopy(v, 0, buf, p, v.length);
+        length += 1 + len;
+        items++;
+        return this;
+    }
+
+    /**
+     * Returns the number of bytes in the record.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns the number of items in the record.
+     */
+    public int size() {
+        return items;
+    }
+
+    public void reset() {
+        length = 0;
+        items = 0;
+    }
+
+    /**
+     * Returns a copy of the record.  A record without items is a single
+     * zero byte, as DNS requires.
+     */
+    public byte[] toByteArray() {
+        if (length == 0) {
+            return new byte[1];
+        }
+        return Arrays.copyOf(buf, length);
+    }
+
+    /**
+     * Writes the record into dst at its position, as toByteArray() would
+     * return it.
+     */
+    public void writeTo(ByteBuffer dst) {
+        if (length == 0) {
+            dst.put((byte) 0);
+        } else {
+            dst.put(buf, 0, length);
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        if (buf.length < n) {
+            buf = Arrays.copyOf(buf, Math.max(n, 2 * buf.length));
+        }
+    }
+}
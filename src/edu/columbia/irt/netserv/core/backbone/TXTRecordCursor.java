@@ -0,0 +1,160 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Walks the items of a TXT record in place, in a byte array or a
+ * ByteBuffer, without copying or allocating.  After next() returns true,
+ * offset() and length() give the current item, and keyLength(),
+ * valueOffset() and valueLength() split a "key=value" item.
+ *
+ * <pre>
+ * TXTRecordCursor c = new TXTRecordCursor(txt, 0, txt.length);
+ * while (c.next()) {
+ *     if (c.keyEquals(KEY)) ...
+ * }
+ * </pre>
+ *
+ * A cursor can be pointed at another record with reset().
+ */
+public final class TXTRecordCursor {
+
+    private byte[] array;
+    private ByteBuffer buf;
+    private int pos;
+    private int end;
+    private int offset;
+    private int length;
+    private int keyLength;
+    private boolean malformed;
+
+    public TXTRecordCursor() {
+        reset(new byte[0], 0, 0);
+    }
+
+    public TXTRecordCursor(byte[] txt, int off, int len) {
+        reset(txt, off, len);
+    }
+
+    public TXTRecordCursor(ByteBuffer txt, int off, int len) {
+        reset(txt, off, len);
+    }
+
+    public void reset(byte[] txt, int off, int len) {
+        array = txt;
+        buf = null;
+        start(off, len);
+    }
+
+    /**
+     * Points the cursor at len bytes of txt starting at off; the buffer's
+     * position and limit are not used or changed.
+     */
+    public void reset(ByteBuffer txt, int off, int len) {
+        array = null;
+        buf = txt;
+        start(off, len);
+    }
+
+    /**
+     * Moves to the next item.
+     * @return False at the end of the record, or if the next item's length
+     * runs past the end, in which case isMalformed() is true.
+     */
+    public boolean next() {
+        if (pos >= end) {
+            return false;
+        }
+        int len = get(pos) & 0xff;
+        if (pos + 1 + len > end) {
+            malformed = true;
+            pos = end;
+            return false;
+        }
+        offset = pos + 1;
+        length = len;
+        pos = offset + len;
+        keyLength = len;
+        for (int i = offset; i < pos; i++) {
+            if (get(i) == '=') {
+                keyLength = i - offset;
+                break;
+            }
+        }
+        return true;
+    }
+
+    public boolean isMalformed() {
+        return malformed;
+    }
+
+    /**
+     * Returns the offset of the current item, after its length byte.
+     */
+    public int offset() {
+        return offset;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns the length of the key: the part of the item before the
+     * first '=', or the whole item if it has none.
+     */
+    public int keyLength() {
+        return keyLength;
+    }
+
+    /**
+     * Returns whether the item has a value, possibly empty.
+     */
+    public boolean hasValue() {
+        return keyLength < length;
+    }
+
+    public int valueOffset() {
+        return offset + keyLength + 1;
+    }
+
+    /**
+     * Returns the length of the value, or -1 if the item has none.
+     */
+    public int valueLength() {
+        return hasValue() ? length - keyLength - 1 : -1;
+    }
+
+    /**
+     * Returns whether the key of the current item is key, ignoring case as
+     * DNS-SD does.
+     */
+    public boolean keyEquals(byte[] key) {
+        if (key.length != keyLength) {
+            return false;
+        }
+        for (int i = 0; i < keyLength; i++) {
+            if (lower(get(offset + i)) != lower(key[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void start(int off, int len) {
+        pos = off;
+        end = off + len;
+        offset = off;
+        length = 0;
+        keyLength = 0;
+        malformed = false;
+    }
+
+    private byte get(int i) {
+        return array != null ? array[i] : buf.get(i);
+    }
+
+    private static int lower(byte c) {
+        return c >= 'A' && c <= 'Z' ? c + 32 : c;
+    }
+}
@@ -5,6 +5,8 @@ import java.util.*;
 import java.util.logging.*;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 
 /**
  * This class collects various utility methods needed by the other classes.
@@ -40,10 +42,16 @@ public class Util {
     }
 
     /**
-     * Add an item to a TXT record.
+     * Add an item to a TXT record.  This copies the whole record; use
+     * {@link TXTRecordBuilder} to add more than a few items.
      * @return A new TXT record with the item added.
+     * @throws IllegalArgumentException if item is longer than 255 bytes.
      */
     public static byte[] appendToTXTRecord(byte[] oldTXT, byte[] item) {
+        if (item.length > TXTRecordBuilder.MAX_ITEM_LENGTH) {
+            throw new IllegalArgumentException(
+                    "TXT record item of " + item.length + " bytes");
+        }
         if (oldTXT == null || oldTXT.length <= 1) {
             byte[] newTXT = new byte[item.length + 1];
             newTXT[0] = (byte) item.length;
@@ -65,6 +73,8 @@ public class Util {
      * @param key Must be a plain old ASCII string.
      * @param value Gets encoded in UTF-8 in the TXT record.
      * @return A new TXT record with the item added.
+     * @throws IllegalArgumentException if the pair is longer than 255
+     * bytes, or US-ASCII or UTF-8 is not supported.
      */
     public static byte[] appendToTXTRecord(byte[] oldTXT,
             String key, String value) {
@@ -78,10 +88,8 @@ public class Util {
             return appendToTXTRecord(oldTXT, pair);
         } catch (UnsupportedEncodingException x) {
             // if US-ASCII and UTF-8 are not supported
-            x.printStackTrace();
-            System.exit(-1);
+            throw new IllegalArgumentException(x);
         }
-        return null; // not reached - just to make compiler happy.
     }
 
     /**
@@ -99,22 +107,15 @@ public class Util {
         if (txt == null || txt.length <= 1) {
             return;
         }
-        try {
-            int p = 0;
-            while (p < txt.length) {
-                int len = txt[p++];
-                s.append(prefix);
-                if (printLen) {
-                    s.append("(").append(len).append(")");
-                }
-                s.append(new String(txt, p, len, UTF8));
-                s.append(postfix);
-                p += len;
+        Charset utf8 = Charset.forName(UTF8);
+        TXTRecordCursor c = new TXTRecordCursor(txt, 0, txt.length);
+        while (c.next()) {
+            s.append(prefix);
+            if (printLen) {
+                s.append("(").append(c.length()).append(")");
             }
-        } catch (UnsupportedEncodingException x) {
-            // if UTF-8 is not supported, we really can't run.
-            x.printStackTrace();
-            System.exit(-1);
+            s.append(new String(txt, c.offset(), c.length(), utf8));
+            s.append(postfix);
         }
     }
 
@@ -167,8 +168,7 @@ public class Util {
             writeByteArray(o, b);
         } catch (UnsupportedEncodingException x) {
             // if UTF-8 is not supported, we really can't run.
-            x.printStackTrace();
-            System.exit(-1);
+            throw new IllegalArgumentException(x);
         }
     }
 
@@ -195,9 +195,8 @@ public class Util {
             return new String(readByteArray(in), UTF8);
         } catch (UnsupportedEncodingException x) {
             // if UTF-8 is not supported, we really can't run.
-            System.exit(-1);
+            throw new IllegalArgumentException(x);
         }
-        return null; // unreachable dummy statement to shut up compiler.
     }
 
     /**
@@ -234,12 +233,15 @@ public class Util {
      * If b is not found in ba, -1 is returned.
      */
     public static int findFirstByte(byte b, byte[] ba, int offset, int length) {
-        for (int i = offset; i < offset + length; i++) {
-            if (ba[i] == b) {
-                return i;
+        if (length < 8) {
+            for (int i = offset; i < offset + length; i++) {
+                if (ba[i] == b) {
+                    return i;
+                }
             }
+            return -1;
         }
-        return -1;
+        return findFirstByte(b, ByteBuffer.wrap(ba), offset, length);
     }
 
     /**
@@ -248,7 +250,19 @@ public class Util {
      * If b is not found in ba, -1 is returned.
      */
     public static int findFirstByte(byte b, ByteBuffer ba, int offset, int length) {
-        for (int i = offset; i < offset + length; i++) {
+        int end = offset + length;
+        int i = offset;
+        if (length >= 8) {
+            boolean bigEndian = ba.order() == ByteOrder.BIG_ENDIAN;
+            long pattern = (b & 0xffL) * ONES;
+            for (; i <= end - 8; i += 8) {
+                long m = zeroBytes(ba.getLong(i) ^ pattern);
+                if (m != 0) {
+                    return i + firstByte(m, bigEndian);
+                }
+            }
+        }
+        for (; i < end; i++) {
             if (ba.get(i) == b) {
                 return i;
             }
@@ -263,14 +277,46 @@ public class Util {
      * If b is not found in ba, -1 is returned.
      */
     public static int findFirstCaseByte(byte b, byte[] ba, int offset, int length) {
-        int otherChar = 0;
-        if (b >= 65 && b <= 90) {
-            otherChar = 32;
-        } else if (b >= 97 && b <= 122) {
-            otherChar = -32;
+        if (length < 8) {
+            int c = lower(b);
+            for (int i = offset; i < offset + length; i++) {
+                if (lower(ba[i]) == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        return findFirstCaseByte(b, ByteBuffer.wrap(ba), offset, length);
+    }
+
+    /**
+     * Return position of the first occurence of byte b in the ByteBuffer ba,
+     * ignoring case if b is an ASCII letter.
+     * Starts searching from offset for length number of chars.
+     * If b is not found in ba, -1 is returned.
+     */
+    public static int findFirstCaseByte(byte b, ByteBuffer ba, int offset, int length) {
+        int c = lower(b);
+        if (c == b && (b < 'a' || b > 'z')) {
+            // not a letter
+            return findFirstByte(b, ba, offset, length);
         }
-        for (int i = offset; i < offset + length; i++) {
-            if (ba[i] == b || ba[i] == b + otherChar) {
+        int end = offset + length;
+        int i = offset;
+        if (length >= 8) {
+            // for a letter, setting bit 5 of every byte makes only its upper
+            // and lower case equal to the lower case
+            boolean bigEndian = ba.order() == ByteOrder.BIG_ENDIAN;
+            long pattern = c * ONES;
+            for (; i <= end - 8; i += 8) {
+                long m = zeroBytes((ba.getLong(i) | CASE_BITS) ^ pattern);
+                if (m != 0) {
+                    return i + firstByte(m, bigEndian);
+                }
+            }
+        }
+        for (; i < end; i++) {
+            if (lower(ba.get(i)) == c) {
                 return i;
             }
         }
@@ -286,23 +332,15 @@ public class Util {
      * of the three values will be used instead.
      */
     public static int compareBytes(byte[] a, int a_off, byte[] b, int b_off, int length) {
-        int minLength = length;
-        if (a.length < minLength) {
-            minLength = a.length;
-        }
-        if (b.length < minLength) {
-            minLength = b.length;
-        }
-        int i = a_off;
-        int j = b_off;
-        for (int n = 0; n < minLength; n++) {
-            if (a[i] != b[j]) {
-                return a[i] - b[j];
-            }
-            i++;
-            j++;
-        }
-        return 0;
+        return compareBytes(a, a_off, b, b_off, length, false);
+    }
+
+    /**
+     * Same as above, but compares the bytes of ByteBuffer a, up to its limit,
+     * with byte array b.
+     */
+    public static int compareBytes(ByteBuffer a, int a_off, byte[] b, int b_off, int length) {
+        return compareBytes(a, a_off, ByteBuffer.wrap(b), b_off, length, false);
     }
 
     /**
@@ -316,35 +354,15 @@ public class Util {
      * of the three values will be used instead.
      */
     public static int compareCaseBytes(byte[] a, int a_off, byte[] b, int b_off, int length) {
-        int minLength = length;
-        int aCase = 0;
-        int bCase = 0;
-        if (a.length < minLength) {
-            minLength = a.length;
-        }
-        if (b.length < minLength) {
-            minLength = b.length;
-        }
-        int i = a_off;
-        int j = b_off;
-        for (int n = 0; n < minLength; n++) {
-            if (a[i] >= 65 && a[i] <= 90) {
-                aCase = 32;
-            } else if (a[i] >= 97 && a[i] <= 122) {
-                aCase = -32;
-            }
-            if (b[j] >= 65 && b[j] <= 90) {
-                bCase = 32;
-            } else if (b[j] >= 97 && b[j] <= 122) {
-                bCase = -32;
-            }
-            if ((a[i] != b[j]) && (a[i] + aCase != b[j]) && (a[i] != b[j] + bCase)) {
-                return a[i] - b[j];
-            }
-            i++;
-            j++;
-        }
-        return 0;
+        return compareBytes(a, a_off, b, b_off, length, true);
+    }
+
+    /**
+     * Same as above, but compares the bytes of ByteBuffer a, up to its limit,
+     * with byte array b.
+     */
+    public static int compareCaseBytes(ByteBuffer a, int a_off, byte[] b, int b_off, int length) {
+        return compareBytes(a, a_off, ByteBuffer.wrap(b), b_off, length, true);
     }
 
     /**
@@ -359,41 +377,88 @@ public class Util {
      * of the three values will be used instead.
      */
     public static int compareSpaceCaseBytes(byte[] a, int a_off, byte[] b, int b_off, int length) {
-        int minLength = length;
-        int aCase = 0;
-        int bCase = 0;
-        if (a.length < minLength) {
-            minLength = a.length;
-        }
-        if (b.length < minLength) {
-            minLength = b.length;
-        }
+        int aLen = a.length;
+        int bLen = b.length;
+        int minLength = Math.min(length, Math.min(aLen, bLen));
         int i = a_off;
         int j = b_off;
         for (int n = 0; n < minLength; n++) {
-            if (a[i] >= 65 && a[i] <= 90) {
-                aCase = 32;
-            } else if (a[i] >= 97 && a[i] <= 122) {
-                aCase = -32;
+            byte ai = a[i];
+            byte bj = b[j];
+            if (ai == ' ' || ai == '\t') {
+                i++;
+                n--;
+                continue;
             }
-            if (b[j] >= 65 && b[j] <= 90) {
-                bCase = 32;
-            } else if (b[j] >= 97 && b[j] <= 122) {
-                bCase = -32;
+            if (bj == ' ' || bj == '\t') {
+                j++;
+                n--;
+                continue;
             }
-            if (a[i] == ' ' || a[i] == '\t') {
+            if (ai == '\n' || ai == '\r') {
+                if (i + 1 < aLen) {
+                    byte next = a[i + 1];
+                    if (next == ' ' || next == '\t') {
+                        i += 2;
+                        n--;
+                        continue;
+                    }
+                } else {
+                    return -1;
+                }
+            }
+            if (bj == '\n' || bj == '\r') {
+                if (j + 1 < bLen) {
+                    byte next = b[j + 1];
+                    if (next == ' ' || next == '\t') {
+                        j += 2;
+                        n--;
+                        continue;
+                    }
+                } else {
+                    return 1;
+                }
+            }
+            if (lower(ai) != lower(bj)) {
+                return ai - bj;
+            }
+            i++;
+            j++;
+        }
+        return 0;
+    }
+
+    /**
+     * Same as above, but compares the bytes of ByteBuffer a, up to its limit,
+     * with byte array b.
+     */
+    public static int compareSpaceCaseBytes(ByteBuffer a, int a_off, byte[] b, int b_off, int length) {
+        return compareSpaceCaseBytes(a, a_off, ByteBuffer.wrap(b), b_off, length);
+    }
+
+    private static int compareSpaceCaseBytes(ByteBuffer a, int a_off, ByteBuffer b, int b_off, int length) {
+        int aLen = a.limit();
+        int bLen = b.limit();
+        int minLength = Math.min(length, Math.min(aLen, bLen));
+        int i = a_off;
+        int j = b_off;
+        for (int n = 0; n < minLength; n++) {
+            byte ai = a.get(i);
+            byte bj = b.get(j);
+            if (ai == ' ' || ai == '\t') {
                 i++;
                 n--;
                 continue;
             }
-            if (b[j] == ' ' || b[j] == '\t') {
+            if (bj == ' ' || bj == '\t') {
                 j++;
                 n--;
                 continue;
             }
-            if (a[i] == '\n' || a[i] == '\r') {
-                if (i + 1 < a.length) {
-                    if (a[i + 1] == ' ' || a[i + 1] == '\t') {
+            if (ai == '\n' || ai == '\r') {
+                if (i + 1 < aLen) {
+                    byte next = a.get(i + 1);
+                    if (next == ' ' || next == '\t') {
                         i += 2;
                         n--;
                         continue;
@@ -402,9 +467,10 @@ public class Util {
                     return -1;
                 }
             }
-            if (b[j] == '\n' || b[j] == '\r') {
-                if (j + 1 < b.length) {
-                    if (b[j + 1] == ' ' || b[j + 1] == '\t') {
+            if (bj == '\n' || bj == '\r') {
+                if (j + 1 < bLen) {
+                    byte next = b.get(j + 1);
+                    if (next == ' ' || next == '\t') {
                         j += 2;
                         n--;
                         continue;
@@ -413,8 +479,8 @@ public class Util {
                     return 1;
                 }
             }
-            if ((a[i] != b[j]) && (a[i] + aCase != b[j]) && (a[i] != b[j] + bCase)) {
-                return a[i] - b[j];
+            if (lower(ai) != lower(bj)) {
+                return ai - bj;
             }
             i++;
             j++;
@@ -429,19 +495,15 @@ public class Util {
      * present in the payload, returns -1.
      */
     public static int findEndOfLine(byte[] ba, int offset, int length) {
-        int firstSlashN = findFirstByte((byte) '\n', ba, offset, length);
-        int firstSlashR = findFirstByte((byte) '\r', ba, offset, length);
-        if (firstSlashN < 0 && firstSlashR < 0) {
+        if (length < 8) {
+            for (int i = offset; i < offset + length; i++) {
+                if (ba[i] == '\n' || ba[i] == '\r') {
+                    return i;
+                }
+            }
             return -1;
-        } else if (firstSlashN < 0) {
-            return firstSlashR;
-        } else if (firstSlashR < 0) {
-            return firstSlashN;
-        } else if (firstSlashN < firstSlashR) {
-            return firstSlashN;
-        } else {
-            return firstSlashR;
         }
+        return findEndOfLine(ByteBuffer.wrap(ba), offset, length);
     }
 
     /**
@@ -451,18 +513,113 @@ public class Util {
      * present in the payload, returns -1.
      */
     public static int findEndOfLine(ByteBuffer ba, int offset, int length) {
-        int firstSlashN = findFirstByte((byte) '\n', ba, offset, length);
-        int firstSlashR = findFirstByte((byte) '\r', ba, offset, length);
-        if (firstSlashN < 0 && firstSlashR < 0) {
-            return -1;
-        } else if (firstSlashN < 0) {
-            return firstSlashR;
-        } else if (firstSlashR < 0) {
-            return firstSlashN;
-        } else if (firstSlashN < firstSlashR) {
-            return firstSlashN;
-        } else {
-            return firstSlashR;
+        int end = offset + length;
+        int i = offset;
+        if (length >= 8) {
+            boolean bigEndian = ba.order() == ByteOrder.BIG_ENDIAN;
+            for (; i <= end - 8; i += 8) {
+                long x = ba.getLong(i);
+                long m = zeroBytes(x ^ ('\n' * ONES)) | zeroBytes(x ^ ('\r' * ONES));
+                if (m != 0) {
+                    return i + firstByte(m, bigEndian);
+                }
+            }
+        }
+        for (; i < end; i++) {
+            byte c = ba.get(i);
+            if (c == '\n' || c == '\r') {
+                return i;
+            }
         }
+        return -1;
+    }
+
+    // The scanners above look at 8 bytes at a time, held in a long.
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    private static final long LOWS = 0x7f7f7f7f7f7f7f7fL;
+    private static final long CASE_BITS = 0x2020202020202020L;
+
+    /**
+     * Returns x with the high bit set in exactly those bytes that are 0.
+     * Unlike the shorter (x - ONES) & ~x & HIGHS, this never marks a byte
+     * that isn't 0, so any set bit can be trusted, not just the lowest.
+     */
+    private static long zeroBytes(long x) {
+        return ~(((x & LOWS) + LOWS) | x | LOWS);
+    }
+
+    /**
+     * Returns x with the ASCII upper case letters among its bytes turned
+     * into lower case.
+     */
+    private static long toLowerBytes(long x) {
+        long low = x & LOWS;
+        long atLeastA = low + (0x80 - 'A') * ONES;
+        long aboveZ = low + (0x80 - 'Z' - 1) * ONES;
+        return x | (((atLeastA ^ aboveZ) & ~x & HIGHS) >>> 2);
+    }
+
+    /**
+     * Returns the index within the word of the first byte marked in m, as
+     * the word was read in the given byte order.
+     */
+    private static int firstByte(long m, boolean bigEndian) {
+        return (bigEndian ? Long.numberOfLeadingZeros(m)
+                : Long.numberOfTrailingZeros(m)) >>> 3;
+    }
+
+    private static int lower(byte c) {
+        return c >= 'A' && c <= 'Z' ? c + 32 : c;
+    }
+
+    private static int compareBytes(ByteBuffer a, int a_off, ByteBuffer b, int b_off,
+            int length, boolean ignoreCase) {
+        int minLength = Math.min(length, Math.min(a.limit(), b.limit()));
+        boolean aSwap = a.order() != ByteOrder.BIG_ENDIAN;
+        boolean bSwap = b.order() != ByteOrder.BIG_ENDIAN;
+        int n = 0;
+        for (; n <= minLength - 8; n += 8) {
+            long x = a.getLong(a_off + n);
+            long y = b.getLong(b_off + n);
+            // compare in address order
+            if (aSwap) {
+                x = Long.reverseBytes(x);
+            }
+            if (bSwap) {
+                y = Long.reverseBytes(y);
+            }
+            if (ignoreCase) {
+                x = toLowerBytes(x);
+                y = toLowerBytes(y);
+            }
+            if (x != y) {
+                n += Long.numberOfLeadingZeros(x ^ y) >>> 3;
+                return a.get(a_off + n) - b.get(b_off + n);
+            }
+        }
+        for (; n < minLength; n++) {
+            byte ai = a.get(a_off + n);
+            byte bj = b.get(b_off + n);
+            if (ignoreCase ? lower(ai) != lower(bj) : ai != bj) {
+                return ai - bj;
+            }
+        }
+        return 0;
+    }
+
+    // Byte at a time: without a view of the array as longs, assembling
+    // words costs more than it saves.
+    private static int compareBytes(byte[] a, int a_off, byte[] b, int b_off,
+            int length, boolean ignoreCase) {
+        int minLength = Math.min(length, Math.min(a.length, b.length));
+        for (int n = 0; n < minLength; n++) {
+            byte ai = a[a_off + n];
+            byte bj = b[b_off + n];
+            if (ai != bj && (!ignoreCase || lower(ai) != lower(bj))) {
+                return ai - bj;
+            }
+        }
+        return 0;
     }
 }
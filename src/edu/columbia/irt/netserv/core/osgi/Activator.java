@@ -1,10 +1,18 @@
 package edu.columbia.irt.netserv.core.osgi;
 
+import edu.columbia.irt.netserv.core.backbone.FlowDispatcher;
+import edu.columbia.irt.netserv.core.backbone.FlowTable;
+import edu.columbia.irt.netserv.core.backbone.LatencyBudget;
+import edu.columbia.irt.netserv.core.backbone.PacketBufferPool;
 import edu.columbia.irt.netserv.core.backbone.Util;
 import edu.columbia.irt.netserv.core.backbone.PacketConduit;
+import edu.columbia.irt.netserv.core.backbone.ServiceEvent;
+import edu.columbia.irt.netserv.core.backbone.ServiceListener;
+import java.util.ArrayList;
 import java.util.Properties;
 import java.util.logging.*;
 
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 
@@ -15,6 +23,39 @@ public class Activator implements BundleActivator {
     static {
         Util.setupConsoleLogging(logger, Level.INFO);
     }
+    // number of flow lanes; 0 runs the chain on the injecting thread
+    static final String DISPATCH_LANES = "netserv.dispatch.lanes";
+    // packets each lane can queue before the injecting thread blocks
+    static final String DISPATCH_QUEUE_DEPTH = "netserv.dispatch.queuedepth";
+    // flows the shared flow table can hold; 0, the default, registers no
+    // flow table, as it takes a few hundred bytes of direct memory per
+    // flow and a thread of its own
+    static final String FLOWTABLE_CAPACITY = "netserv.flowtable.capacity";
+    // bytes of module state per flow
+    static final String FLOWTABLE_STATE_SIZE = "netserv.flowtable.statesize";
+    // seconds after which an idle flow is evicted
+    static final String FLOWTABLE_IDLE_TIMEOUT = "netserv.flowtable.idletimeout";
+    // size of each native packet buffer; 0, the default, disables the
+    // buffer pool
+    static final String POOL_BUFFER_SIZE = "netserv.pool.buffersize";
+    // buffers per slab of the native packet buffer pool
+    static final String POOL_SLAB_BUFFERS = "netserv.pool.slabbuffers";
+    // number of slabs of the native packet buffer pool
+    static final String POOL_SLABS = "netserv.pool.slabs";
+    // default per-packet latency budget of a processor, in microseconds;
+    // 0 disables the watchdog
+    static final String WATCHDOG_BUDGET = "netserv.watchdog.budget";
+    // consecutive budget overruns after which a processor is bypassed
+    static final String WATCHDOG_TRIP_AFTER = "netserv.watchdog.tripafter";
+    // milliseconds a bypassed processor stays out of the chain before it
+    // is probed again
+    static final String WATCHDOG_COOLDOWN = "netserv.watchdog.cooldown";
+    // "true" to pass packets on while a processor is bypassed, "false" to
+    // drop them
+    static final String WATCHDOG_FAIL_OPEN = "netserv.watchdog.failopen";
+    private PacketConduit packetConduit;
+    private FlowDispatcher flowDispatcher;
+    private FlowTable flowTable;
 
     @Override
     public void start(BundleContext context) {
@@ -23,16 +64,107 @@ public class Activator implements BundleActivator {
         props.put("protocol", "udp, tcp, icmp");
 
         logger.log(Level.INFO, "registering PacketConduit with {0}", props);
+        final BundleContext ctx = context;
         PacketConduit pc = new PacketConduit();
-        pc.setDispatch(pc);
+        packetConduit = pc;
+        int budget = Integer.getInteger(WATCHDOG_BUDGET, 0);
+        if (budget > 0) {
+            int tripAfter = Integer.getInteger(WATCHDOG_TRIP_AFTER, 10);
+            int cooldown = Integer.getInteger(WATCHDOG_COOLDOWN, 5000);
+            boolean failOpen = Boolean.parseBoolean(
+                    System.getProperty(WATCHDOG_FAIL_OPEN, "true"));
+            pc.setDefaultLatencyBudget(new LatencyBudget(budget * 1000L,
+                    tripAfter, cooldown, failOpen));
+        }
+        // pass bypassed and restored processors on to the module listeners,
+        // with the active modules in place of the processors left running
+        pc.setServiceListener(new ServiceListener() {
+
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                ArrayList<String> modules = new ArrayList<String>();
+                for (Bundle b : ctx.getBundles()) {
+                    if (b.getState() == Bundle.ACTIVE) {
+                        modules.add(b.getSymbolicName() + "_" + b.getVersion());
+                    }
+                }
+                ServiceEvent e = new ServiceEvent(event.moduleAdded,
+                        event.moduleRemoved, modules.toArray(new String[0]),
+                        event.processorBypassed, event.processorRestored);
+                synchronized (Controller.serviceListeners) {
+                    for (ServiceListener l : Controller.serviceListeners) {
+                        l.serviceChanged(e);
+                    }
+                }
+            }
+        });
+        PacketBufferPool pool = null;
+        int bufferSize = Integer.getInteger(POOL_BUFFER_SIZE, 0);
+        if (bufferSize > 0) {
+            int perSlab = Integer.getInteger(POOL_SLAB_BUFFERS, 1024);
+            int slabs = Integer.getInteger(POOL_SLABS, 4);
+            logger.log(Level.INFO, "packet buffer pool: {0} slabs of {1} x {2} bytes",
+                    new Object[]{slabs, perSlab, bufferSize});
+            pool = new PacketBufferPool(bufferSize, perSlab, slabs);
+            pc.setBufferPool(pool);
+        }
+        int lanes = Integer.getInteger(DISPATCH_LANES, 0);
+        if (lanes > 0) {
+            int depth = Integer.getInteger(DISPATCH_QUEUE_DEPTH, 1024);
+            flowDispatcher = new FlowDispatcher(pc, lanes, depth);
+            flowDispatcher.setBufferPool(pool);
+            try {
+                pc.setDispatch(flowDispatcher);
+                logger.log(Level.INFO, "dispatching packets over {0} flow lanes, queue depth {1}",
+                        new Object[]{lanes, depth});
+                logger.warning("packets are accepted once queued on a flow lane;"
+                        + " PacketFilters and fail-closed latency budgets will be refused");
+            } catch (IllegalStateException ex) {
+                // a fail-closed watchdog budget
+                logger.log(Level.WARNING, "not dispatching over flow lanes: {0}", ex.getMessage());
+                flowDispatcher.shutdown();
+                flowDispatcher = null;
+                pc.setDispatch(pc);
+            }
+        } else {
+            pc.setDispatch(pc);
+        }
         
         context.registerService(
                 PacketConduit.class.getName(),
                 pc, props);
+
+        int capacity = Integer.getInteger(FLOWTABLE_CAPACITY, 0);
+        if (capacity > 0) {
+            int stateSize = Integer.getInteger(FLOWTABLE_STATE_SIZE, 64);
+            int idle = Integer.getInteger(FLOWTABLE_IDLE_TIMEOUT, 120);
+            Properties ftProps = new Properties();
+            ftProps.put("capacity", Integer.toString(capacity));
+            ftProps.put("statesize", Integer.toString(stateSize));
+            ftProps.put("idletimeout", Integer.toString(idle));
+            logger.log(Level.INFO, "registering FlowTable with {0}", ftProps);
+            flowTable = new FlowTable(capacity, stateSize, idle * 1000L);
+            flowTable.start();
+            context.registerService(
+                    FlowTable.class.getName(),
+                    flowTable, ftProps);
+        }
     }
 
     @Override
     public void stop(BundleContext context) {
         // NOTE: The service is automatically unregistered.
+        if (packetConduit != null) {
+            packetConduit.shutdown();
+            packetConduit = null;
+        }
+        if (flowDispatcher != null) {
+            flowDispatcher.shutdown();
+            flowDispatcher = null;
+        }
+        if (flowTable != null) {
+            flowTable.shutdown();
+            flowTable = null;
+        }
     }
 }
@@ -0,0 +1,37 @@
+package edu.columbia.irt.netserv.core.osgi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An OutputStream onto a blocking channel.  Unlike
+ * Channels.newOutputStream(), it doesn't hold the channel's blocking lock
+ * while writing, so one thread can write to a socket channel while
+ * another is blocked reading it.  Closing the stream doesn't close the
+ * channel.
+ */
+final class ChannelOutputStream extends OutputStream {
+
+    private final WritableByteChannel channel;
+    private final byte[] one = new byte[1];
+
+    ChannelOutputStream(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        one[0] = (byte) b;
+        write(one, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+        while (bb.hasRemaining()) {
+            channel.write(bb);
+        }
+    }
+}
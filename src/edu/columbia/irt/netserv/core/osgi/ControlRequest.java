@@ -0,0 +1,404 @@
+package edu.columbia.irt.netserv.core.osgi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+
+import edu.columbia.irt.netserv.core.backbone.Util;
+
+/**
+ * Reads the requests of a control connection (see
+ * Controller.handleConnection()) into a buffer that is reused from one
+ * request to the next, and indexes the command, argument and headers as
+ * offsets into it.  The command and the well-known headers are recognized
+ * by comparing bytes, and Strings are only made for the parts that are
+ * asked for, so a stream of EXECUTE requests costs little more than
+ * reading them.
+ *
+ * A request is not safe for use by more than one thread at a time; a
+ * request that is handled elsewhere while the next one is read is first
+ * copied with detach().
+ */
+final class ControlRequest {
+
+    private static final Charset CHARSET = Charset.forName(Util.UTF8);
+    // commands
+    static final int UNKNOWN = 0;
+    static final int EXECUTE = 1;
+    static final int SETUP = 2;
+    static final int REMOVE = 3;
+    static final int UPDATE = 4;
+    static final int STATUS = 5;
+    static final int STATS = 6;
+    static final int CAPTURE = 7;
+    static final int FRAMED = 8;
+    private static final byte[][] COMMANDS = bytes(new String[]{
+                "", "EXECUTE", "SETUP", "REMOVE", "UPDATE", "STATUS", "STATS",
+                "CAPTURE", "FRAMED"});
+    // well-known headers
+    static final int URL = 0;
+    static final int TTL = 1;
+    static final int ARGS = 2;
+    static final int PROPERTIES = 3;
+    static final int ID = 4;
+    static final int FILTER_IPV4 = 5;
+    static final int FILTER_PROTO = 6;
+    static final int FILTER_PORT = 7;
+    static final int FILTER_QUEUE_NUM = 8;
+    private static final byte[][] HEADERS = bytes(new String[]{
+                "url", "ttl", "args", "properties", "id", "filter-ipv4",
+                "filter-proto", "filter-port", "filter-queue-num"});
+    // longest request accepted
+    static final int MAX_LENGTH = 65536;
+    private final ReadableByteChannel in;
+    private byte[] buf;
+    private ByteBuffer bb;
+    // the request is buf[start, pos); bytes up to end have been read
+    private int start = 0;
+    private int pos = 0;
+    private int end = 0;
+    // a CR ended the last line, so a LF starting the next one belongs to it
+    private boolean skipLF = false;
+    private boolean eof = false;
+    private boolean inHeaders = false;
+    // the last read() returned a request
+    private boolean done = true;
+    private int command;
+    private int commandOffset;
+    private int commandLength;
+    private int argOffset;
+    private int argLength;
+    private int commentsOffset;
+    private int commentsLength;
+    // four ints per header: name offset, name length, value offset and
+    // value length
+    private int[] fields = new int[4 * 8];
+    private int fieldCount = 0;
+    // index of the last field with each well-known name, or -1
+    private final int[] known = new int[HEADERS.length];
+    private final String[] knownValues = new String[HEADERS.length];
+    private HashMap<String, String> headers = null;
+    // the argument is usually the module ID of the last request
+    private byte[] lastArg = new byte[0];
+    private String arg = "";
+    private boolean argValid = false;
+
+    ControlRequest(ReadableByteChannel in) {
+        this.in = in;
+        this.buf = new byte[4096];
+        this.bb = ByteBuffer.wrap(buf);
+    }
+
+    // a detached copy
+    private ControlRequest(ControlRequest r) {
+        int d = r.start;
+        this.in = null;
+        this.buf = Arrays.copyOfRange(r.buf, r.start, r.pos);
+        this.bb = ByteBuffer.wrap(buf);
+        this.command = r.command;
+        this.commandOffset = r.commandOffset - d;
+        this.commandLength = r.commandLength;
+        this.argOffset = r.argOffset - d;
+        this.argLength = r.argLength;
+        this.commentsOffset = r.commentsOffset - d;
+        this.commentsLength = r.commentsLength;
+        this.fieldCount = r.fieldCount;
+        this.fields = new int[Math.max(4 * fieldCount, 4)];
+        for (int i = 0; i < 4 * fieldCount; i += 2) {
+            fields[i] = r.fields[i] - d;
+            fields[i + 1] = r.fields[i + 1];
+        }
+        System.arraycopy(r.known, 0, known, 0, known.length);
+        System.arraycopy(r.knownValues, 0, knownValues, 0, known.length);
+        this.lastArg = null;
+        this.arg = r.arg;
+        this.argValid = r.argValid;
+    }
+
+    /**
+     * Reads the next request, blocking until it is complete.
+     * @return False if the stream ended; pending() tells whether it did so
+     * in the middle of a request.
+     * @throws IOException if reading fails, or the request is longer than
+     * MAX_LENGTH.
+     */
+    boolean read() throws IOException {
+        if (done) {
+            start = pos;
+            clear();
+            done = false;
+        }
+        for (;;) {
+            if (parse()) {
+                done = true;
+                return true;
+            }
+            if (end == buf.length) {
+                if (start > 0) {
+                    compact();
+                } else if (buf.length < MAX_LENGTH) {
+                    buf = Arrays.copyOf(buf, Math.min(2 * buf.length, MAX_LENGTH));
+                    bb = ByteBuffer.wrap(buf);
+                } else {
+                    throw new IOException("request longer than " + MAX_LENGTH + " bytes");
+                }
+            }
+            if (eof) {
+                return false;
+            }
+            bb.position(end);
+            int n = in.read(bb);
+            bb.clear();
+            if (n < 0) {
+                // a last line may end without a line break
+                eof = true;
+            } else {
+                end += n;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes read of a request that isn't complete.
+     */
+    int pending() {
+        return end - start;
+    }
+
+    /**
+     * Returns a copy of this request that stays valid after the next
+     * read().
+     */
+    ControlRequest detach() {
+        return new ControlRequest(this);
+    }
+
+    /**
+     * Returns the command as one of the constants above, UNKNOWN if it
+     * isn't one.
+     */
+    int command() {
+        return command;
+    }
+
+    /**
+     * Returns the command as sent, in upper case.
+     */
+    String commandName() {
+        return string(commandOffset, commandLength).toUpperCase(Locale.US);
+    }
+
+    String arg() {
+        if (!argValid) {
+            if (lastArg == null) {
+                arg = string(argOffset, argLength);
+            } else if (argLength != lastArg.length
+                    || Util.compareBytes(bb, argOffset, lastArg, 0, argLength) != 0) {
+                lastArg = Arrays.copyOfRange(buf, argOffset, argOffset + argLength);
+                arg = string(argOffset, argLength);
+            }
+            argValid = true;
+        }
+        return arg;
+    }
+
+    String comments() {
+        return string(commentsOffset, commentsLength);
+    }
+
+    /**
+     * Returns the value of a well-known header, or null if it isn't there.
+     * @param h One of the header constants above.
+     */
+    String header(int h) {
+        int i = known[h];
+        if (i < 0) {
+            return null;
+        }
+        if (knownValues[h] == null) {
+            knownValues[h] = string(fields[4 * i + 2], fields[4 * i + 3]);
+        }
+        return knownValues[h];
+    }
+
+    /**
+     * Returns all the headers, by lower case name, for the commands that
+     * take them as a map.
+     */
+    HashMap<String, String> headers() {
+        if (headers == null) {
+            headers = new HashMap<String, String>();
+            for (int i = 0; i < fieldCount; i++) {
+                headers.put(string(fields[4 * i], fields[4 * i + 1]).toLowerCase(Locale.US),
+                        string(fields[4 * i + 2], fields[4 * i + 3]));
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Returns "COMMAND arg comments {headers}", for logging.
+     */
+    @Override
+    public String toString() {
+        return commandName() + " " + arg() + " " + comments() + " " + headers();
+    }
+
+    private void clear() {
+        command = UNKNOWN;
+        commandLength = 0;
+        argLength = 0;
+        commentsLength = 0;
+        fieldCount = 0;
+        Arrays.fill(known, -1);
+        Arrays.fill(knownValues, null);
+        headers = null;
+        argValid = false;
+    }
+
+    // Parses the lines read so far; returns true once the empty line ending
+    // the request has been seen.
+    private boolean parse() {
+        for (;;) {
+            if (skipLF && pos < end) {
+                if (buf[pos] == '\n') {
+                    pos++;
+                }
+                skipLF = false;
+            }
+            int e = Util.findEndOfLine(bb, pos, end - pos);
+            if (e < 0) {
+                if (!eof || pos == end) {
+                    return false;
+                }
+                e = end;
+            }
+            int next = Math.min(e + 1, end);
+            if (e < end && buf[e] == '\r') {
+                if (next < end) {
+                    if (buf[next] == '\n') {
+                        next++;
+                    }
+                } else {
+                    skipLF = true;
+                }
+            }
+            int s = pos;
+            pos = next;
+            // trim, as String.trim() does
+            while (s < e && (buf[s] & 0xff) <= ' ') {
+                s++;
+            }
+            while (e > s && (buf[e - 1] & 0xff) <= ' ') {
+                e--;
+            }
+            if (!inHeaders) {
+                requestLine(s, e);
+                inHeaders = true;
+            } else if (s == e) {
+                inHeaders = false;
+                return true;
+            } else {
+                headerLine(s, e);
+            }
+        }
+    }
+
+    // COMMAND [argument] [comments ...]
+    private void requestLine(int s, int e) {
+        int t = token(s, e);
+        commandOffset = s;
+        commandLength = t - s;
+        s = space(t, e);
+        t = token(s, e);
+        argOffset = s;
+        argLength = t - s;
+        s = space(t, e);
+        commentsOffset = s;
+        commentsLength = e - s;
+        command = UNKNOWN;
+        for (int c = 1; c < COMMANDS.length; c++) {
+            if (COMMANDS[c].length == commandLength
+                    && Util.compareCaseBytes(bb, commandOffset, COMMANDS[c], 0, commandLength) == 0) {
+                command = c;
+                break;
+            }
+        }
+    }
+
+    // key: value
+    private void headerLine(int s, int e) {
+        int colon = Util.findFirstByte((byte) ':', bb, s, e - s);
+        if (colon < 0) {
+            return;
+        }
+        int ne = colon;
+        while (ne > s && (buf[ne - 1] & 0xff) <= ' ') {
+            ne--;
+        }
+        int v = colon + 1;
+        while (v < e && (buf[v] & 0xff) <= ' ') {
+            v++;
+        }
+        if (fields.length < 4 * (fieldCount + 1)) {
+            fields = Arrays.copyOf(fields, 2 * fields.length);
+        }
+        int i = fieldCount++;
+        fields[4 * i] = s;
+        fields[4 * i + 1] = ne - s;
+        fields[4 * i + 2] = v;
+        fields[4 * i + 3] = e - v;
+        for (int h = 0; h < HEADERS.length; h++) {
+            if (HEADERS[h].length == ne - s
+                    && Util.compareCaseBytes(bb, s, HEADERS[h], 0, ne - s) == 0) {
+                known[h] = i;
+                break;
+            }
+        }
+    }
+
+    // Moves the bytes of the current request to the start of the buffer.
+    private void compact() {
+        int d = start;
+        System.arraycopy(buf, start, buf, 0, end - start);
+        commandOffset -= d;
+        argOffset -= d;
+        commentsOffset -= d;
+        for (int i = 0; i < 4 * fieldCount; i += 2) {
+            fields[i] -= d;
+        }
+        start = 0;
+        pos -= d;
+        end -= d;
+    }
+
+    private int token(int s, int e) {
+        while (s < e && (buf[s] & 0xff) > ' ') {
+            s++;
+        }
+        return s;
+    }
+
+    private int space(int s, int e) {
+        while (s < e && (buf[s] & 0xff) <= ' ') {
+            s++;
+        }
+        return s;
+    }
+
+    private String string(int off, int len) {
+        return len == 0 ? "" : new String(buf, off, len, CHARSET);
+    }
+
+    private static byte[][] bytes(String[] a) {
+        byte[][] b = new byte[a.length][];
+        for (int i = 0; i < a.length; i++) {
+            b[i] = a[i].getBytes(CHARSET);
+        }
+        return b;
+    }
+}
@@ -2,15 +2,40 @@ package edu.columbia.irt.netserv.core.osgi;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.*;
 
 import org.osgi.framework.launch.Framework;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.SynchronousBundleListener;
 import org.osgi.framework.Version;
+import org.osgi.util.tracker.ServiceTracker;
 
+import edu.columbia.irt.netserv.core.backbone.PacketInterest;
 import edu.columbia.irt.netserv.core.backbone.ServiceEvent;
 import edu.columbia.irt.netserv.core.backbone.ServiceListener;
 import edu.columbia.irt.netserv.core.backbone.Util;
@@ -21,6 +46,10 @@ public class Controller implements Runnable {
     static final Logger logger = Logger.getLogger("edu.columbia.irt.netserv.controller");
     static final String NETSERV_SERVICE = "Netserv-Service";
     static final String CCN_SERVICE = "CCN-Service";
+    // "true" if one instance of the service class can serve all requests
+    static final String NETSERV_STATELESS = "Netserv-Stateless";
+    // seconds the results of a CCN-Service may be cached for the same args
+    static final String CCN_CACHE_TTL = "CCN-Cache-TTL";
 
     static {
         Util.setupConsoleLogging(logger, Level.INFO);
@@ -29,6 +58,9 @@ public class Controller implements Runnable {
             new HashSet<ServiceListener>();
     public static final HashMap<Long, Properties> mapServiceProps =
             new HashMap<Long, Properties>();
+    // packet interests built from the filter-* headers, by bundle ID
+    public static final HashMap<Long, PacketInterest> mapServiceInterest =
+            new HashMap<Long, PacketInterest>();
     // for EXECUTE command - keeps track of installed service
     static final HashMap<String, Bundle> serviceMap =
             new HashMap<String, Bundle>();
@@ -41,6 +73,54 @@ public class Controller implements Runnable {
     private HashMap<Long, String> filterMap = new HashMap<Long, String>();
     private HashMap<Long, TimerTask> expiryMap = new HashMap<Long, TimerTask>();
     private Timer timer = new Timer("expiry timer", true);
+    // pending connections the control socket queues up
+    static final int BACKLOG =
+            Integer.getInteger("netserv.container.ctrlbacklog", 50);
+    // connections served at once; more are refused
+    static final int MAX_CONNECTIONS =
+            Integer.getInteger("netserv.container.ctrlconnections", 64);
+    // seconds a connection may wait for its next command; 0 waits forever
+    static final int IDLE_TIMEOUT =
+            Integer.getInteger("netserv.container.ctrltimeout", 300);
+    // requests of a framed connection being handled at once; reading
+    // further requests waits for one of them to complete
+    static final int MAX_IN_FLIGHT =
+            Integer.getInteger("netserv.container.ctrlinflight", 16);
+    // most bytes of a framed response held back before a frame of it is
+    // sent
+    static final int FRAME_SIZE =
+            Integer.getInteger("netserv.container.ctrlframesize", 65536);
+    private ExecutorService requestPool;
+    // open control connections
+    private final Set<Connection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    // resolved service classes, by bundle ID
+    private final ConcurrentHashMap<Long, ModuleInvoker> netservInvokers =
+            new ConcurrentHashMap<Long, ModuleInvoker>();
+    private final ConcurrentHashMap<Long, ModuleInvoker> ccnInvokers =
+            new ConcurrentHashMap<Long, ModuleInvoker>();
+    private final AtomicBoolean bundleListenerAdded = new AtomicBoolean();
+    // bundles replaced by UPDATE, by bundle ID, and what replaced them, so
+    // that EXECUTEs that looked up the old version go to the new one
+    private final ConcurrentHashMap<Long, Bundle> replacedBy =
+            new ConcurrentHashMap<Long, Bundle>();
+    // the PacketConduit service, see getPacketConduit()
+    private volatile ServiceTracker conduitTracker = null;
+    // threads and queued requests of submitModules(); modules often wait
+    // on I/O, so there are more threads than processors
+    static final int FANOUT_THREADS = Integer.getInteger("netserv.container.fanoutthreads",
+            Math.max(8, 2 * Runtime.getRuntime().availableProcessors()));
+    static final int FANOUT_QUEUE =
+            Integer.getInteger("netserv.container.fanoutqueue", 1024);
+    private final ThreadPoolExecutor fanOutPool = newFanOutPool();
+    // results of CCN-Services with a CCN-Cache-TTL
+    private final ResultCache resultCache = new ResultCache(
+            Integer.getInteger("netserv.ccn.cache.entries", 10000),
+            Long.getLong("netserv.ccn.cache.bytes", 64L << 20));
+    // milliseconds UPDATE waits for the old version of a module to be out
+    // of use before uninstalling it regardless
+    static final int UPDATE_DRAIN =
+            Integer.getInteger("netserv.container.updatedrain", 2000);
 
     public Controller(Framework framework, int ctrlPort) {
         this.framework = framework;
@@ -61,14 +141,54 @@ public class Controller implements Runnable {
     public void run() {
         try {
             logger.log(Level.INFO, "Starting Netserv OSGi Controller Thread");
-            ServerSocket servSock = new ServerSocket();
-            servSock.setReuseAddress(true);
-            servSock.bind(new InetSocketAddress(ctrlPort), 1);
+            // a channel, so EXECUTE can hand the connection to modules that
+            // write to a channel
+            ServerSocketChannel servChannel = ServerSocketChannel.open();
+            servChannel.socket().setReuseAddress(true);
+            servChannel.socket().bind(new InetSocketAddress(ctrlPort), BACKLOG);
+
+            // one thread per connection, so that a slow EXECUTE or a SETUP
+            // downloading a bundle doesn't hold up the other clients; idle
+            // threads go away after a minute
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(0, MAX_CONNECTIONS,
+                    60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    daemonThreads("control connection"));
+            // requests of framed connections; each connection has at most
+            // MAX_IN_FLIGHT of them here
+            requestPool = Executors.newCachedThreadPool(
+                    daemonThreads("control request"));
+            if (IDLE_TIMEOUT > 0) {
+                timer.schedule(new TimerTask() {
+
+                    @Override
+                    public void run() {
+                        closeIdleConnections();
+                    }
+                }, 1000, 1000);
+            }
 
             for (;;) {
-                Socket sock = servSock.accept();
-                handleConnection(sock);
-                sock.close();
+                final SocketChannel channel = servChannel.accept();
+                try {
+                    pool.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            serveConnection(channel);
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    logger.log(Level.WARNING, "{0} connections open, refusing {1}",
+                            new Object[]{MAX_CONNECTIONS, channel.socket().getRemoteSocketAddress()});
+                    try {
+                        PrintWriter out = new PrintWriter(new ChannelOutputStream(channel), true);
+                        out.printf("%d\n", -1); // failure
+                        out.printf("too many connections\n\n");
+                    } catch (RuntimeException e) {
+                        // closing anyway
+                    }
+                    closeQuietly(channel);
+                }
             }
         } catch (IOException e) {
             logger.log(Level.WARNING, "Error starting NetServ OSGi Controller Thread {0}",
@@ -76,6 +196,80 @@ public class Controller implements Runnable {
         }
     }
 
+    // A control connection, as seen by closeIdleConnections().
+    static final class Connection {
+
+        final SocketChannel channel;
+        // permits for requests being handled
+        final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        volatile long lastActive = System.nanoTime();
+        volatile boolean idle = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+    /**
+     * Runs handleConnection() on a pooled thread.  Whatever goes wrong with
+     * one connection, including a client that stays silent for longer than
+     * IDLE_TIMEOUT, only closes that connection.
+     */
+    private void serveConnection(SocketChannel channel) {
+        SocketAddress peer = channel.socket().getRemoteSocketAddress();
+        Connection c = new Connection(channel);
+        connections.add(c);
+        try {
+            handleConnection(c);
+        } catch (IOException e) {
+            if (c.idle) {
+                logger.log(Level.INFO, "{0} idle for {1} secs, closed",
+                        new Object[]{peer, IDLE_TIMEOUT});
+            } else {
+                logger.log(Level.INFO, "{0}: {1}", new Object[]{peer, e.toString()});
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Error in control connection " + peer, e);
+        } finally {
+            connections.remove(c);
+            closeQuietly(channel);
+        }
+    }
+
+    // Closes the connections that have had no request for IDLE_TIMEOUT
+    // seconds and aren't handling one; their reads then fail.
+    private void closeIdleConnections() {
+        long now = System.nanoTime();
+        for (Connection c : connections) {
+            if (now - c.lastActive > IDLE_TIMEOUT * 1000000000L
+                    && c.inFlight.availablePermits() == MAX_IN_FLIGHT) {
+                c.idle = true;
+                closeQuietly(c.channel);
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+
+            private int n = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + " " + (++n));
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
     /*
      * Takes commands of the following format (whitespace-forgiving):
      *
@@ -92,84 +286,179 @@ public class Controller implements Runnable {
      * 		[result ...]\n
      * 		...
      * 		\n
+     *
+     * After the command FRAMED (which returns "0\n\n" as above), every
+     * request must have an "id" header, and is handled while further
+     * requests are read, up to MAX_IN_FLIGHT at a time.  Responses may
+     * then come in any order, each preceded by a line giving the request's
+     * ID and the length of the response in bytes:
+     *
+     * 		<id> <length>\n
+     * 		<code>\n
+     * 		[result ...]\n
+     * 		...
+     * 		\n
+     *
+     * For EXECUTE the response is whatever the module writes.  A response
+     * longer than FRAME_SIZE bytes, which only EXECUTE gives, is sent as
+     * it is written, in frames of FRAME_SIZE bytes with the same ID, the
+     * length line of all but the last ending in " +":
+     *
+     * 		<id> <length> +\n
+     * 		<length bytes of the response>
+     * 		...
+     * 		<id> <length>\n
+     * 		<the rest of the response>
+     *
+     * Frames of other responses may come in between.  A request without
+     * an ID is answered with the ID "-" and code -1.
      */
-    void handleConnection(Socket sock) throws IOException {
-        // socket input
-        BufferedReader in = new BufferedReader(
-                new InputStreamReader(sock.getInputStream()));
+    void handleConnection(final Connection c) throws IOException {
+        final SocketChannel channel = c.channel;
+        ControlRequest r = new ControlRequest(channel);
         // socket output
-        PrintWriter out = new PrintWriter(
-                sock.getOutputStream(), true);
+        final OutputStream os = new ChannelOutputStream(channel);
+        PrintWriter out = new PrintWriter(os, true);
+        final Semaphore inFlight = c.inFlight;
+        boolean framed = false;
 
-        for (;;) {
+        try {
+            for (;;) {
+                if (!r.read()) {
+                    if (r.pending() > 0) {
+                        logger.log(Level.INFO, "Socket connection closed in the middle of a request");
+                    } else {
+                        logger.log(Level.INFO, "Socket connection closed");
+                    }
+                    return;
+                }
+                c.lastActive = System.nanoTime();
 
-            String command = "";
-            String arg = "";
-            String comments = "";
-            HashMap<String, String> m = new HashMap<String, String>();
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, "handleConnection() - request received: {0}", r);
+                }
 
-            // get the request line
-            String line = in.readLine();
-            if (line == null) {
-                logger.log(Level.INFO, "Socket connection closed");
-                return;
-            }
-            line = line.trim();
-            // split in 3 parts, separated by whitespaces
-            String a[] = line.split("\\s+", 3);
-            if (a.length >= 1) {
-                command = a[0].toUpperCase(Locale.US);
-                if (a.length >= 2) {
-                    arg = a[1];
-                    if (a.length >= 3) {
-                        comments = a[2];
+                if (!framed) {
+                    if (r.command() == ControlRequest.FRAMED) {
+                        framed = true;
+                        out.printf("%d\n\n", 0); // success
+                    } else {
+                        inFlight.acquireUninterruptibly();
+                        try {
+                            handleRequest(r, out, os, channel);
+                        } finally {
+                            inFlight.release();
+                            c.lastActive = System.nanoTime();
+                        }
                     }
+                    continue;
                 }
-            }
 
-            // get the headers
-            while ((line = in.readLine().trim()).length() > 0) {
-                a = line.split(":", 2);
-                if (a.length == 2) {
-                    m.put(a[0].trim().toLowerCase(Locale.US), a[1].trim());
+                final String id = r.header(ControlRequest.ID);
+                if (id == null || id.length() == 0 || id.indexOf(' ') >= 0) {
+                    PrintWriter w = new PrintWriter(new FrameOutputStream(os, "-", FRAME_SIZE));
+                    w.printf("%d\n", -1); // failure
+                    w.printf("request id missing\n\n");
+                    // sends the frame
+                    w.close();
+                    continue;
+                }
+                final ControlRequest request = r.detach();
+                inFlight.acquireUninterruptibly();
+                try {
+                    requestPool.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            try {
+                                FrameOutputStream frame = new FrameOutputStream(os, id, FRAME_SIZE);
+                                PrintWriter w = new PrintWriter(frame);
+                                handleRequest(request, w, frame, new StreamChannel(frame));
+                                w.flush();
+                                frame.close();
+                            } catch (IOException e) {
+                                logger.log(Level.INFO, "Response {0} not sent: {1}",
+                                        new Object[]{id, e.toString()});
+                            } finally {
+                                inFlight.release();
+                                c.lastActive = System.nanoTime();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    inFlight.release();
+                    throw e;
                 }
             }
+        } finally {
+            // let the requests in flight finish before the socket is closed
+            inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+        }
+    }
 
-            logger.log(Level.INFO, "handleConnection() - command received: {0} {1} {2}",
-                    new Object[]{command, arg, comments});
-            logger.log(Level.INFO, "headers: {0}", m);
+    /**
+     * Handles one request, writing the response to out, or for EXECUTE to
+     * the raw stream os or the channel onto the same output.
+     */
+    void handleRequest(ControlRequest r, PrintWriter out, OutputStream os,
+            GatheringByteChannel channel) {
+        try {
+            switch (r.command()) {
+                case ControlRequest.EXECUTE:
+                    executeService(r.arg(), r.header(ControlRequest.ARGS), os, channel);
+                    break;
 
-            try {
-                if (command.equals("EXECUTE")) {
-                    executeModule(arg, m, sock.getOutputStream());
-                } else if (command.equals("SETUP")) {
-                    setupModule(arg, m.get("url"), m);
+                case ControlRequest.SETUP:
+                    setupModule(r.arg(), r.header(ControlRequest.URL), r.headers());
                     out.printf("%d\n\n", 0); // success
-                } else if (command.equals("REMOVE")) {
-                    removeModule(arg);
+                    break;
+
+                case ControlRequest.REMOVE:
+                    removeModule(r.arg());
+                    out.printf("%d\n\n", 0); // success
+                    break;
+
+                case ControlRequest.UPDATE:
+                    updateModule(r.arg(), r.header(ControlRequest.URL), r.headers());
                     out.printf("%d\n\n", 0); // success
+                    break;
 
-                } else if (command.equals("UPDATE")) {
-                    // TODO
-                } else if (command.equals("STATUS")) {
-                    StringBuilder s = getModuleStatus(arg);
+                case ControlRequest.STATUS: {
+                    StringBuilder s = getModuleStatus(r.arg());
                     out.printf("%d\n", 0); // success
                     out.append(s);
                     out.printf("\n");
+                    break;
+                }
 
-                } else {
-                    out.printf("%d\n", -1); // failure
-                    out.printf("%s: unknown command\n\n", command);
+                case ControlRequest.STATS: {
+                    StringBuilder s = getProcessorStats(r.arg());
+                    out.printf("%d\n", 0); // success
+                    out.append(s);
+                    out.printf("\n");
+                    break;
+                }
+
+                case ControlRequest.CAPTURE: {
+                    StringBuilder s = capturePackets(r.arg(), r.headers());
+                    out.printf("%d\n", 0); // success
+                    out.append(s);
+                    out.printf("\n\n");
+                    break;
                 }
-            } catch (BundleException ex) {
-                out.printf("%d\n", -1); // failure
-                logger.log(Level.SEVERE, "Bundle exception:", ex);
-                out.printf("BundleException: type=%d\n\n", ex.getType());
-            } catch (Exception ex) {
-                out.printf("%d\n", -1); // failure
-                logger.log(Level.SEVERE, "Execution exception:", ex);
-                out.printf("Execution Exception\n\n");
+
+                default:
+                    out.printf("%d\n", -1); // failure
+                    out.printf("%s: unknown command\n\n", r.commandName());
             }
+        } catch (BundleException ex) {
+            out.printf("%d\n", -1); // failure
+            logger.log(Level.SEVERE, "Bundle exception:", ex);
+            out.printf("BundleException: type=%d\n\n", ex.getType());
+        } catch (Exception ex) {
+            out.printf("%d\n", -1); // failure
+            logger.log(Level.SEVERE, "Execution exception:", ex);
+            out.printf("Execution Exception\n\n");
         }
     }
 
@@ -181,56 +470,314 @@ public class Controller implements Runnable {
     public Object executeModule(String moduleID, HashMap<String, String> headers)
             throws Exception {
 
-        logger.log(Level.INFO, "executeModule called {0} {1}",
-                new Object[]{moduleID, headers});
-        Bundle bundle = serviceMap.get(moduleID);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "executeModule called {0} {1}",
+                    new Object[]{moduleID, headers});
+        }
+        Bundle bundle;
+        synchronized (serviceMap) {
+            bundle = serviceMap.get(moduleID);
+        }
         if (bundle != null) {
+            bundle = current(bundle);
             if (bundle.getState() != Bundle.ACTIVE) {
                 bundle.start();
             }
-            logger.log(Level.INFO, "Bundle {0} found in ACTIVE state", moduleID);
-            String service = (String) bundle.getHeaders().get(Controller.CCN_SERVICE);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.log(Level.FINE, "Bundle {0} found in ACTIVE state", moduleID);
+            }
+            final ModuleInvoker invoker = acquire(bundle, false);
+            try {
+                final String args = headers.get("args");
+                if (invoker.cacheTTL() <= 0) {
+                    return invoker.execute(args);
+                }
+                return resultCache.get(invoker.bundle.getBundleId(), args, invoker.cacheTTL(),
+                        new Callable<Object>() {
 
-            Class serviceClass = bundle.loadClass(service);
-            Object serviceObject = serviceClass.newInstance();
-            Object param = null;
-            if (headers.get("args") != null) {
-                param = headers.get("args");
+                            @Override
+                            public Object call() throws Exception {
+                                return invoker.execute(args);
+                            }
+                        });
+            } finally {
+                invoker.exit();
             }
-            Method method = serviceClass.getMethod("execute", new Class[]{Object.class});
-            Object ret = method.invoke(serviceObject, new Object[]{param});
-            return ret;
 
         } else {
             return null;
         }
     }
 
+    /**
+     * Starts executeModule() for each of the requests at once, on a pool
+     * of FANOUT_THREADS threads, and returns their futures in the same
+     * order.  A request whose timeout passes is cancelled, interrupting
+     * the module; any of them can also be cancelled through its future.
+     * If the pool is saturated, a request fails with a
+     * RejectedExecutionException.
+     */
+    public List<Future<Object>> submitModules(List<ModuleRequest> requests) {
+        List<Future<Object>> futures = new ArrayList<Future<Object>>(requests.size());
+        for (final ModuleRequest r : requests) {
+            final ModuleTask task = new ModuleTask(new Callable<Object>() {
+
+                @Override
+                public Object call() throws Exception {
+                    Bundle bundle;
+                    synchronized (serviceMap) {
+                        bundle = serviceMap.get(r.moduleID);
+                    }
+                    if (bundle == null) {
+                        throw new Exception(r.moduleID + " not found");
+                    }
+                    return executeModule(r.moduleID, r.headers);
+                }
+            });
+            if (r.timeout > 0) {
+                task.timeout = new TimerTask() {
+
+                    @Override
+                    public void run() {
+                        task.timeOut();
+                    }
+                };
+                timer.schedule(task.timeout, r.timeout);
+            }
+            try {
+                fanOutPool.execute(task);
+            } catch (RejectedExecutionException ex) {
+                task.reject(ex);
+            }
+            futures.add(task);
+        }
+        return futures;
+    }
+
+    /**
+     * Runs the requests as submitModules() does and waits for all of them
+     * to complete, fail or time out.  Returns the outcome of each, in the
+     * same order, so the results of the modules that did answer can be
+     * used when others didn't.
+     * @throws InterruptedException if the calling thread is interrupted;
+     * the requests still running are cancelled.
+     */
+    public List<ModuleResult> executeModules(List<ModuleRequest> requests)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        List<Future<Object>> futures = submitModules(requests);
+        List<ModuleResult> results = new ArrayList<ModuleResult>(requests.size());
+        try {
+            for (int i = 0; i < requests.size(); i++) {
+                ModuleRequest r = requests.get(i);
+                ModuleTask task = (ModuleTask) futures.get(i);
+                try {
+                    Object v;
+                    if (r.timeout > 0) {
+                        long left = r.timeout * 1000000L - (System.nanoTime() - start);
+                        v = task.get(Math.max(left, 0), TimeUnit.NANOSECONDS);
+                    } else {
+                        v = task.get();
+                    }
+                    results.add(new ModuleResult(r, ModuleResult.OK, v, null));
+                } catch (TimeoutException ex) {
+                    task.timeOut();
+                    results.add(new ModuleResult(r, ModuleResult.TIMED_OUT, null, null));
+                } catch (CancellationException ex) {
+                    results.add(new ModuleResult(r, task.timedOut
+                            ? ModuleResult.TIMED_OUT : ModuleResult.CANCELLED, null, null));
+                } catch (ExecutionException ex) {
+                    results.add(new ModuleResult(r, ModuleResult.FAILED, null, ex.getCause()));
+                }
+            }
+        } catch (InterruptedException ex) {
+            for (Future<Object> f : futures) {
+                f.cancel(true);
+            }
+            throw ex;
+        }
+        return results;
+    }
+
+    // A request of submitModules(), which cancels its timeout when done.
+    private static final class ModuleTask extends FutureTask<Object> {
+
+        volatile TimerTask timeout = null;
+        volatile boolean timedOut = false;
+
+        ModuleTask(Callable<Object> callable) {
+            super(callable);
+        }
+
+        void timeOut() {
+            if (!isDone()) {
+                timedOut = true;
+                cancel(true);
+            }
+        }
+
+        void reject(Exception ex) {
+            setException(ex);
+        }
+
+        @Override
+        protected void done() {
+            TimerTask t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+    }
+
+    private static ThreadPoolExecutor newFanOutPool() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(FANOUT_THREADS, FANOUT_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(FANOUT_QUEUE),
+                daemonThreads("module request"));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
     public void executeModule(String moduleID, HashMap<String, String> headers,
             OutputStream out) throws Exception {
+        executeService(moduleID, headers.get("args"), out, new StreamChannel(out));
+    }
+
+    /**
+     * Calls the module's Netserv-Service with args, for EXECUTE: a
+     * NetServChannelService gets channel, a NetServService out.  Both
+     * lead to the same output.
+     */
+    void executeService(String moduleID, String args, OutputStream out,
+            GatheringByteChannel channel) throws Exception {
 
-        logger.log(Level.INFO, "executeModule called {0} {1}",
-                new Object[]{moduleID, headers});
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "executeModule called {0} {1}",
+                    new Object[]{moduleID, args});
+        }
         Bundle bundle;
         synchronized (serviceMap) {
             bundle = serviceMap.get(moduleID);
         }
+        bundle = current(bundle);
         if (bundle.getState() == Bundle.ACTIVE) {
-            logger.log(Level.INFO, "Bundle {0} found in ACTIVE state", moduleID);
-            String service = (String) bundle.getHeaders().get(Controller.NETSERV_SERVICE);
-            logger.log(Level.INFO, "Netser-Service class = ", service);
+            ModuleInvoker invoker = acquire(bundle, true);
+            try {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, "Bundle {0} found in ACTIVE state, calling {1}",
+                            new Object[]{moduleID, invoker});
+                }
+                if (invoker.writesToChannel()) {
+                    invoker.execute(channel, args);
+                } else {
+                    invoker.execute(out, args);
+                }
+            } finally {
+                invoker.exit();
+            }
+        }
+    }
 
-            Class serviceClass = bundle.loadClass(service);
-            Object serviceObject = serviceClass.newInstance();
-            Object param = null;
-            if (headers.get("args") != null) {
-                param = headers.get("args");
+    /**
+     * Returns the bundle that replaced this one through UPDATE, if any, or
+     * else the bundle itself.
+     */
+    private Bundle current(Bundle bundle) {
+        Bundle next;
+        while ((next = replacedBy.get(bundle.getBundleId())) != null) {
+            bundle = next;
+        }
+        return bundle;
+    }
+
+    /**
+     * Returns the invoker of the bundle's service class, as invoker()
+     * does, entered for a call that must be followed by exit().  If UPDATE
+     * replaces the bundle meanwhile, that of the new version is returned.
+     */
+    ModuleInvoker acquire(Bundle bundle, boolean netserv) throws Exception {
+        for (;;) {
+            bundle = current(bundle);
+            ModuleInvoker invoker = invoker(bundle, netserv);
+            if (invoker != null && invoker.enter()) {
+                return invoker;
+            }
+            // retired by UPDATE since current() looked
+        }
+    }
+
+    /**
+     * Returns the cached invoker of the bundle's Netserv-Service class, or
+     * of its CCN-Service class if netserv is false, resolving it first if
+     * necessary; null if the bundle has been replaced by UPDATE.
+     */
+    ModuleInvoker invoker(Bundle bundle, boolean netserv) throws Exception {
+        ConcurrentHashMap<Long, ModuleInvoker> invokers = netserv ? netservInvokers : ccnInvokers;
+        Long bid = bundle.getBundleId();
+        ModuleInvoker invoker = invokers.get(bid);
+        if (invoker != null) {
+            return invoker;
+        }
+        if (bundleListenerAdded.compareAndSet(false, true)) {
+            addBundleListener();
+        }
+        synchronized (invokers) {
+            invoker = invokers.get(bid);
+            if (invoker == null) {
+                // checked under the lock retireModule() takes
+                if (replacedBy.containsKey(bid)) {
+                    return null;
+                }
+                invoker = new ModuleInvoker(bundle, netserv);
+                invokers.put(bid, invoker);
+                logger.log(Level.INFO, "resolved {0}", invoker);
             }
-            Method method = serviceClass.getMethod("execute", new Class[]{OutputStream.class, Object.class});
-            method.invoke(serviceObject, new Object[]{out, param});
+            return invoker;
         }
     }
 
+    /**
+     * Drops the cached invokers and results of a bundle, so its classes are
+     * resolved again and its services called again next time.
+     */
+    void invalidateModule(long bid) {
+        synchronized (netservInvokers) {
+            netservInvokers.remove(bid);
+        }
+        synchronized (ccnInvokers) {
+            ccnInvokers.remove(bid);
+        }
+        resultCache.invalidate(bid);
+    }
+
+    /**
+     * Returns "entries=n bytes=n hits=n misses=n evictions=n\n" for the
+     * cache of CCN-Service results.
+     */
+    public StringBuilder getResultCacheStatus() {
+        return resultCache.getStatus();
+    }
+
+    private void addBundleListener() {
+        // synchronous, so that no call is made to a bundle's old classes
+        // once it has been stopped or updated
+        framework.getBundleContext().addBundleListener(new SynchronousBundleListener() {
+
+            @Override
+            public void bundleChanged(BundleEvent event) {
+                switch (event.getType()) {
+                    case BundleEvent.STOPPED:
+                    case BundleEvent.UPDATED:
+                    case BundleEvent.UNRESOLVED:
+                    case BundleEvent.UNINSTALLED:
+                        invalidateModule(event.getBundle().getBundleId());
+                        break;
+                    default:
+                        break;
+                }
+            }
+        });
+    }
+
     /**
      * Fetch a bundle from URL, install and start it, and schedule a
      * removal in TTL seconds.  If the bundle is already there, simply
@@ -252,33 +799,32 @@ public class Controller implements Runnable {
         }
         BundleContext context = framework.getBundleContext();
         Bundle bundle = context.installBundle(url);
-        Properties props = new Properties();
-        String propStr = headers.get("properties");
-        if (propStr != null) {
-            String[] a = propStr.split(",", 0);
-            for (String s : a) {
-                String[] kv = s.split("=", 2);
-                String key = "";
-                String val = "";
-                if (kv.length > 0) {
-                    key = kv[0].trim();
-                    if (kv.length > 1) {
-                        val = kv[1].trim();
-                    }
-                }
-                if (key.length() > 0 && val.length() > 0) {
-                    props.setProperty(key, val);
-                }
-            }
-        }
+        Properties props = parseProperties(headers.get("properties"));
         if (props.size() > 0) {
             synchronized (mapServiceProps) {
                 mapServiceProps.put(bundle.getBundleId(), props);
             }
         }
+        // the module's packet processors only need to see what its
+        // iptables rule sends to the queue
+        try {
+            PacketInterest interest = PacketInterest.fromHeaders(headers);
+            if (interest != null) {
+                synchronized (mapServiceInterest) {
+                    mapServiceInterest.put(bundle.getBundleId(), interest);
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            logger.log(Level.WARNING, "{0}: no packet interest: {1}",
+                    new Object[]{moduleID, ex.getMessage()});
+        }
 
         bundle.start();
-        serviceMap.put(moduleID, bundle);
+        synchronized (serviceMap) {
+            serviceMap.put(moduleID, bundle);
+        }
+        // the module may have been set up before, with other properties
+        invalidateModule(bundle.getBundleId());
 
         logger.log(Level.INFO, "{0} bundle installed and started..", moduleID);
         bundle.getState();
@@ -295,78 +841,408 @@ public class Controller implements Runnable {
         }
         final long bid = bundle.getBundleId();
         
-        if (this.mode == 0) {
-            // controller is running in server mode
-            TimerTask task = expiryMap.get(bid);
-            if (task != null) {
-                task.cancel();
+        // filterMap and expiryMap are shared with removeModule(Bundle) and
+        // other control connections
+        synchronized (this) {
+            if (this.mode == 0) {
+                // controller is running in server mode
+                scheduleRemoval(bid, realID, headers);
             }
-            // New TimerTask
-            int ttl = 5 * 60;
-            String ttlStr = headers.get("ttl");
-            if (ttlStr != null) {
-                ttl = Integer.parseInt(ttlStr);
+
+            // install the module's packet filter, if specified in the headers.
+            String filter = filterMap.get(bid);
+            if (filter != null) {
+                logger.log(Level.INFO, "{0}''s filter already present: {1}",
+                        new Object[]{realID, filter});
+                return;
             }
-            task = new TimerTask() {
 
-                @Override
-                public void run() {
-                    try {
-                        removeModule(framework.getBundleContext().getBundle(bid));
-                    } catch (BundleException ex) {
-                        logger.log(Level.SEVERE, "Error in updating TTL of bundle");
+            filter = "";
+            String f_ipv4 = headers.get("filter-ipv4");
+            String f_proto = headers.get("filter-proto");
+            String f_port = headers.get("filter-port");
+
+            if (f_ipv4 != null) {
+                filter += " --dst " + f_ipv4;
+            }
+            if (f_proto != null) {
+                filter += " -p " + f_proto;
+                if (f_port != null) {
+                    filter += " --dport " + f_port;
+                }
+            }
+
+            if (filter.length() > 0) {
+                filter += " -j NFQUEUE --queue-num " + headers.get("filter-queue-num");
+                try {
+                    StringBuilder out = new StringBuilder();
+                    int res = Util.executeProcess(out,
+                            "iptables -t mangle -A PREROUTING " + filter);
+                    if (res == 0) {
+                        filterMap.put(bid, filter);
+                        logger.log(Level.INFO, "{0}''s filter successfully installed: {1}", new Object[]{realID, filter});
+                    } else {
+                        logger.log(Level.INFO, "iptables failed: {0}", out);
                     }
+                } catch (IOException ex) {
+                    logger.info("iptables threw IOException");
                 }
-            };
+            }
+        }
+
+        // notify all module listeners
+        notifyListeners(new String[]{realID}, new String[0]);
+    }
+
+    /**
+     * Replaces a module with a new version fetched from URL, without a
+     * moment when neither version handles its packets or EXECUTE
+     * requests.  moduleID is that of the old version, as for REMOVE.
+     *
+     * The new version is installed alongside the old one, with the old
+     * one's packet interest and properties (unless a properties header
+     * gives new ones), and started.  The packet processors it adds
+     * meanwhile are held on standby by PacketConduit instead of going into
+     * the chain.  Its service classes are then resolved and, if there is
+     * an args header, executed once with those args to warm them up.  If
+     * any of this fails, the new version is uninstalled and the old one
+     * carries on as before.  So is it if another UPDATE or a REMOVE of
+     * the old version got there first, so that of concurrent UPDATEs of
+     * a module only one takes effect.
+     *
+     * Otherwise a single chain update replaces the old version's
+     * processors with the new one's, and EXECUTE requests for the module
+     * go to the new version from then on.  The new version takes over the
+     * old one's iptables rule, which stays in place throughout, and its
+     * removal timer, restarted with the ttl header as for SETUP.  The old
+     * version is uninstalled once no dispatching thread or EXECUTE is
+     * still using it, or after UPDATE_DRAIN milliseconds.
+     *
+     * Processors are told apart by the class loader of their bundle, so
+     * those whose classes come from another bundle are not swapped.  Both
+     * versions must be resolvable at once, which rules out singleton
+     * bundles.
+     *
+     * @param moduleID
+     * @param url
+     * @param headers
+     * @throws Exception if the old version isn't there or the new one
+     * can't be installed, started or warmed up.
+     */
+    public void updateModule(String moduleID, String url,
+            HashMap<String, String> headers) throws Exception {
 
-            expiryMap.put(bid, task);
-            timer.schedule(task, 1000L * ttl);
-            logger.log(Level.INFO, "{0} will be removed in {1} secs", new Object[]{realID, ttl});
+        logger.log(Level.INFO, "updateModule called moduleID = {0}, url = {1}",
+                new Object[]{moduleID, url});
+
+        if (url == null || url.length() == 0) {
+            throw new BundleException("URL is missing");
+        }
+        Bundle old = resolveModule(moduleID);
+        if (old == null) {
+            throw new BundleException(moduleID + " not found");
+        }
+        final long oldBid = old.getBundleId();
+        String oldID = old.getSymbolicName() + '_' + old.getVersion();
+        List<ModuleInvoker> retired;
+        Object conduit;
+        try {
+            conduit = getPacketConduit();
+        } catch (Exception ex) {
+            // no processors to swap
+            conduit = null;
         }
+        ClassLoader oldLoader = classLoader(old);
 
-        // install the module's packet filter, if specified in the headers.
-        String filter = filterMap.get(bid);
-        if (filter != null) {
-            logger.log(Level.INFO, "{0}''s filter already present: {1}",
-                    new Object[]{realID, filter});
-            return;
+        // warm standby
+        Bundle bundle = installAlongside(url);
+        final long bid = bundle.getBundleId();
+        ClassLoader loader = null;
+        try {
+            Properties props = parseProperties(headers.get("properties"));
+            synchronized (mapServiceProps) {
+                if (props.size() == 0) {
+                    props = mapServiceProps.get(oldBid);
+                }
+                if (props != null) {
+                    mapServiceProps.put(bid, props);
+                }
+            }
+            synchronized (mapServiceInterest) {
+                PacketInterest interest = mapServiceInterest.get(oldBid);
+                if (interest != null) {
+                    mapServiceInterest.put(bid, interest.clone());
+                }
+            }
+            loader = classLoader(bundle);
+            if (conduit != null && loader != null) {
+                invoke(conduit, "standBy", loader);
+            }
+            bundle.start();
+            warmUp(bundle, headers.get("args"));
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "{0}: new version not started, keeping {1}",
+                    new Object[]{url, oldID});
+            if (conduit != null && loader != null) {
+                invoke(conduit, "discardStandby", loader);
+            }
+            discardModule(bundle);
+            throw ex;
         }
+        String realID = bundle.getSymbolicName() + '_' + bundle.getVersion();
+        logger.log(Level.INFO, "{0} started alongside {1}", new Object[]{realID, oldID});
 
-        filter = "";
-        String f_ipv4 = headers.get("filter-ipv4");
-        String f_proto = headers.get("filter-proto");
-        String f_port = headers.get("filter-port");
+        // cutover
+        synchronized (this) {
+            // another UPDATE, or a REMOVE, may have got to old first
+            if (replacedBy.containsKey(oldBid) || old.getState() == Bundle.UNINSTALLED) {
+                logger.log(Level.WARNING, "{0} was replaced or removed meanwhile, discarding {1}",
+                        new Object[]{oldID, realID});
+                if (conduit != null && loader != null) {
+                    invoke(conduit, "discardStandby", loader);
+                }
+                discardModule(bundle);
+                throw new BundleException(oldID + " changed during the update");
+            }
+            if (conduit != null) {
+                int n = (Integer) invoke(conduit, "swapProcessors", oldLoader, loader);
+                logger.log(Level.INFO, "{0}: {1} processors swapped in", new Object[]{realID, n});
+            }
+            synchronized (serviceMap) {
+                for (Map.Entry<String, Bundle> e : serviceMap.entrySet()) {
+                    if (e.getValue().getBundleId() == oldBid) {
+                        e.setValue(bundle);
+                    }
+                }
+                serviceMap.put(realID, bundle);
+            }
+            retired = retireModule(old, bundle);
+            String filter = filterMap.remove(oldBid);
+            if (filter != null) {
+                filterMap.put(bid, filter);
+            }
+            TimerTask task = expiryMap.remove(oldBid);
+            if (task != null) {
+                task.cancel();
+            }
+            if (this.mode == 0) {
+                scheduleRemoval(bid, realID, headers);
+            }
+        }
 
-        if (f_ipv4 != null) {
-            filter += " --dst " + f_ipv4;
+        // drain the old version
+        long deadline = System.nanoTime() + UPDATE_DRAIN * 1000000L;
+        boolean drained = conduit == null
+                || (Boolean) invoke(conduit, "awaitQuiescence", (long) UPDATE_DRAIN);
+        drained &= awaitModuleCalls(retired, deadline);
+        if (!drained) {
+            logger.log(Level.INFO, "{0} may still be in use after {1} ms, removing it anyway",
+                    new Object[]{oldID, UPDATE_DRAIN});
         }
-        if (f_proto != null) {
-            filter += " -p " + f_proto;
-            if (f_port != null) {
-                filter += " --dport " + f_port;
+        synchronized (this) {
+            // its processors are out of the chain and its filter now
+            // belongs to the new version, so stopping it changes nothing
+            if (old.getState() != Bundle.UNINSTALLED) {
+                discardModule(old);
             }
         }
+        logger.log(Level.INFO, "{0} updated to {1}", new Object[]{oldID, realID});
 
-        if (filter.length() > 0) {
-            filter += " -j NFQUEUE --queue-num " + headers.get("filter-queue-num");
-            try {
-                StringBuilder out = new StringBuilder();
-                int res = Util.executeProcess(out,
-                        "iptables -t mangle -A PREROUTING " + filter);
-                if (res == 0) {
-                    filterMap.put(bid, filter);
-                    logger.log(Level.INFO, "{0}''s filter successfully installed: {1}", new Object[]{realID, filter});
+        // notify all module listeners
+        notifyListeners(new String[]{realID}, new String[]{oldID});
+    }
+
+    /**
+     * Installs a bundle from URL even if a bundle was installed from the
+     * same URL before, as the framework would otherwise return that one:
+     * the new one is then given a location of its own.
+     */
+    private Bundle installAlongside(String url) throws Exception {
+        BundleContext context = framework.getBundleContext();
+        for (Bundle b : context.getBundles()) {
+            if (url.equals(b.getLocation())) {
+                return context.installBundle(url + "#update-" + System.currentTimeMillis(),
+                        new URL(url).openStream());
+            }
+        }
+        return context.installBundle(url);
+    }
+
+    /**
+     * Returns the class loader of a bundle's own classes, found through its
+     * activator or service class, or null if it names none.  The bundle is
+     * resolved if it wasn't.
+     */
+    private static ClassLoader classLoader(Bundle b) throws ClassNotFoundException {
+        // the headers are Strings, though OSGi 4.2 doesn't say so in the type
+        @SuppressWarnings("unchecked")
+        Dictionary<String, String> headers = b.getHeaders();
+        for (String h : new String[]{Constants.BUNDLE_ACTIVATOR, NETSERV_SERVICE, CCN_SERVICE}) {
+            String name = headers.get(h);
+            if (name != null) {
+                return b.loadClass(name.trim()).getClassLoader();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Resolves the service classes of a newly started bundle and, if args
+     * isn't null, calls them once with it, discarding the output.
+     */
+    private void warmUp(Bundle bundle, String args) throws Exception {
+        // the headers are Strings, though OSGi 4.2 doesn't say so in the type
+        @SuppressWarnings("unchecked")
+        Dictionary<String, String> headers = bundle.getHeaders();
+        if (headers.get(NETSERV_SERVICE) != null) {
+            ModuleInvoker invoker = invoker(bundle, true);
+            if (args != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                if (invoker.writesToChannel()) {
+                    invoker.execute(new StreamChannel(out), args);
                 } else {
-                    logger.log(Level.INFO, "iptables failed: {0}", out);
+                    invoker.execute(out, args);
                 }
-            } catch (IOException ex) {
-                logger.info("iptables threw IOException");
             }
         }
+        if (headers.get(CCN_SERVICE) != null) {
+            ModuleInvoker invoker = invoker(bundle, false);
+            if (args != null) {
+                invoker.execute(args);
+            }
+        }
+    }
 
-        // notify all module listeners
-        String[] moduleAdded = new String[]{realID};
-        String[] moduleRemoved = new String[0];
+    /**
+     * Routes the calls for old to bundle from now on: takes the invokers of
+     * old out of the cache and retires them, under the lock invoker()
+     * creates them under, so that none is made for old afterwards.
+     * @return The retired invokers, whose calls may still be under way.
+     */
+    private List<ModuleInvoker> retireModule(Bundle old, Bundle bundle) {
+        Long bid = old.getBundleId();
+        // versions replaced before old go straight to bundle too
+        for (Map.Entry<Long, Bundle> e : replacedBy.entrySet()) {
+            if (e.getValue() == old) {
+                e.setValue(bundle);
+            }
+        }
+        replacedBy.put(bid, bundle);
+        List<ModuleInvoker> retired = new ArrayList<ModuleInvoker>(2);
+        for (ConcurrentHashMap<Long, ModuleInvoker> invokers
+                : Arrays.asList(netservInvokers, ccnInvokers)) {
+            synchronized (invokers) {
+                ModuleInvoker invoker = invokers.remove(bid);
+                if (invoker != null) {
+                    invoker.retire();
+                    retired.add(invoker);
+                }
+            }
+        }
+        return retired;
+    }
+
+    /**
+     * Waits until the calls entered on the retired invokers have returned,
+     * or the deadline (in System.nanoTime() terms) has passed.
+     * @return False if the deadline passed first.
+     */
+    private boolean awaitModuleCalls(List<ModuleInvoker> retired, long deadline) {
+        for (;;) {
+            boolean busy = false;
+            for (ModuleInvoker invoker : retired) {
+                busy |= invoker.callsInProgress() > 0;
+            }
+            if (!busy) {
+                return true;
+            }
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Uninstalls a bundle that has no iptables rule or removal timer, and
+     * forgets its properties, interest and invokers.
+     */
+    private void discardModule(Bundle b) throws BundleException {
+        long bid = b.getBundleId();
+        try {
+            b.uninstall();
+        } finally {
+            synchronized (mapServiceProps) {
+                mapServiceProps.remove(bid);
+            }
+            synchronized (mapServiceInterest) {
+                mapServiceInterest.remove(bid);
+            }
+            invalidateModule(bid);
+        }
+    }
+
+    // Schedules the removal of a module in as many seconds as the ttl
+    // header says, 5 minutes by default, replacing any scheduled before.
+    // Called with this held.
+    private void scheduleRemoval(final long bid, String realID,
+            HashMap<String, String> headers) {
+        TimerTask task = expiryMap.get(bid);
+        if (task != null) {
+            task.cancel();
+        }
+        // New TimerTask
+        int ttl = 5 * 60;
+        String ttlStr = headers.get("ttl");
+        if (ttlStr != null) {
+            ttl = Integer.parseInt(ttlStr);
+        }
+        task = new TimerTask() {
+
+            @Override
+            public void run() {
+                try {
+                    removeModule(framework.getBundleContext().getBundle(bid));
+                } catch (BundleException ex) {
+                    logger.log(Level.SEVERE, "Error in updating TTL of bundle");
+                }
+            }
+        };
+
+        expiryMap.put(bid, task);
+        timer.schedule(task, 1000L * ttl);
+        logger.log(Level.INFO, "{0} will be removed in {1} secs", new Object[]{realID, ttl});
+    }
+
+    // key=value,key=value,... as given by the properties header
+    private static Properties parseProperties(String propStr) {
+        Properties props = new Properties();
+        if (propStr != null) {
+            String[] a = propStr.split(",", 0);
+            for (String s : a) {
+                String[] kv = s.split("=", 2);
+                String key = "";
+                String val = "";
+                if (kv.length > 0) {
+                    key = kv[0].trim();
+                    if (kv.length > 1) {
+                        val = kv[1].trim();
+                    }
+                }
+                if (key.length() > 0 && val.length() > 0) {
+                    props.setProperty(key, val);
+                }
+            }
+        }
+        return props;
+    }
+
+    private void notifyListeners(String[] moduleAdded, String[] moduleRemoved) {
         String[] currentModules = getModulesForState(Bundle.ACTIVE).toArray(new String[0]);
         synchronized (serviceListeners) {
             for (ServiceListener l : serviceListeners) {
@@ -390,6 +1266,41 @@ public class Controller implements Runnable {
             return;
         }
 
+        Bundle b = resolveModule(moduleID);
+        if (b != null) {
+            removeModule(b);
+            synchronized (serviceMap) {
+                serviceMap.remove(moduleID);
+                // and the other IDs UPDATE left it under
+                serviceMap.values().removeAll(Collections.singleton(b));
+            }
+            return;
+        }
+
+        logger.log(Level.INFO, "{0} not found", moduleID);
+    }
+
+    /**
+     * Returns the bundle SETUP or UPDATE last put under moduleID, which
+     * after an UPDATE is the new version even though moduleID names the
+     * old one.  Failing that, returns findBundle(moduleID).
+     */
+    private Bundle resolveModule(String moduleID) {
+        Bundle b;
+        synchronized (serviceMap) {
+            b = serviceMap.get(moduleID);
+        }
+        if (b == null || b.getState() == Bundle.UNINSTALLED) {
+            b = findBundle(moduleID);
+        }
+        return b;
+    }
+
+    /**
+     * Returns the first installed bundle matching moduleID, which is
+     * name[_version] as for removeModule(), or null.
+     */
+    private Bundle findBundle(String moduleID) {
         String[] a = moduleID.split("_", 2);
         String name = a[0];
         String version = null;
@@ -403,15 +1314,12 @@ public class Controller implements Runnable {
             if (name.equals(b.getSymbolicName())) {
                 if (version == null || version.equals(b.getVersion().toString())) {
                     if (b.getState() != Bundle.UNINSTALLED) {
-                        removeModule(b);
-                        serviceMap.remove(moduleID);
-                        return;
+                        return b;
                     }
                 }
             }
         }
-
-        logger.log(Level.INFO, "{0} not found", moduleID);
+        return null;
     }
 
     synchronized void removeModule(Bundle b) throws BundleException {
@@ -429,6 +1337,12 @@ public class Controller implements Runnable {
         synchronized (mapServiceProps) {
             mapServiceProps.remove(bid);
         }
+        synchronized (mapServiceInterest) {
+            mapServiceInterest.remove(bid);
+        }
+
+        invalidateModule(bid);
+        replacedBy.values().removeAll(Collections.singleton(b));
 
         // cancel the scheduled removal
         TimerTask task = expiryMap.remove(b.getBundleId());
@@ -455,22 +1369,13 @@ public class Controller implements Runnable {
         }
 
         // notify all module listeners 
-        String[] moduleAdded = new String[0];
-        String[] moduleRemoved = new String[]{realID};
-        String[] currentModules = getModulesForState(Bundle.ACTIVE).toArray(new String[0]);
-        synchronized (serviceListeners) {
-            for (ServiceListener l : serviceListeners) {
-                l.serviceChanged(new ServiceEvent(
-                        moduleAdded,
-                        moduleRemoved,
-                        currentModules));
-            }
-        }
+        notifyListeners(new String[0], new String[]{realID});
     }
 
     /**
      * moduleID is name[_version], where it will match any version if
-     * version is omitted.
+     * version is omitted.  The bundle SETUP or UPDATE put under moduleID
+     * is reported too, whatever its version.
      * 
      * returns: "bundleId state symbolicName version\n"
      * @param moduleID
@@ -479,8 +1384,12 @@ public class Controller implements Runnable {
     synchronized StringBuilder getModuleStatus(String moduleID) {
         String name = null;
         String version = null;
+        Bundle mapped = null;
 
         if (moduleID != null && moduleID.length() > 0) {
+            synchronized (serviceMap) {
+                mapped = serviceMap.get(moduleID);
+            }
             String[] a = moduleID.split("_", 2);
             if (a.length > 0) {
                 name = a[0];
@@ -496,7 +1405,7 @@ public class Controller implements Runnable {
         Bundle[] bundles = context.getBundles();
         for (Bundle b : bundles) {
 
-            if (name != null) {
+            if (name != null && b != mapped) {
                 if (!name.equals(b.getSymbolicName())) {
                     continue;
                 }
@@ -515,8 +1424,97 @@ public class Controller implements Runnable {
         return s;
     }
 
+    /**
+     * arg is empty to just report, or one of RESET, ON and OFF to clear,
+     * enable or disable the statistics first.
+     *
+     * returns: "order: processor packets=n bytes=n accept=n drop=n
+     * stolen=n modified=n busy=t n=n p50=t p90=t p99=t p999=t\n"
+     * for each PacketProcessor in the chain.
+     * @param arg
+     * @return
+     * @throws Exception if the PacketConduit service is not available.
+     */
+    StringBuilder getProcessorStats(String arg) throws Exception {
+        Object conduit = getPacketConduit();
+        if (arg.equalsIgnoreCase("RESET")) {
+            invoke(conduit, "resetProcessorStats");
+        } else if (arg.equalsIgnoreCase("ON")) {
+            invoke(conduit, "setStatsEnabled", Boolean.TRUE);
+        } else if (arg.equalsIgnoreCase("OFF")) {
+            invoke(conduit, "setStatsEnabled", Boolean.FALSE);
+        }
+        return (StringBuilder) invoke(conduit, "getProcessorStats");
+    }
+
+    /**
+     * arg is START to start capturing dispatched packets to pcap files
+     * (replacing a capture already running), STOP to stop, or empty to
+     * report.  START takes the capture-dir, capture-prefix,
+     * capture-snaplen, capture-ring, capture-filesize and capture-files
+     * headers, and filter-ipv4, filter-proto and filter-port to capture
+     * only some packets.
+     *
+     * returns: "file filter=interest captured=n dropped=n written=n files=n"
+     * for the capture, or nothing if there is none.
+     * @param arg
+     * @param headers
+     * @return
+     * @throws Exception if the PacketConduit service is not available or
+     * the capture can't be started.
+     */
+    StringBuilder capturePackets(String arg, HashMap<String, String> headers)
+            throws Exception {
+        Object conduit = getPacketConduit();
+        if (arg.equalsIgnoreCase("START")) {
+            return (StringBuilder) invoke(conduit, "startCapture", headers);
+        } else if (arg.equalsIgnoreCase("STOP")) {
+            return (StringBuilder) invoke(conduit, "stopCapture");
+        }
+        return (StringBuilder) invoke(conduit, "getCaptureStatus");
+    }
+
+    /**
+     * Returns the PacketConduit service registered by the core bundle.  It
+     * comes from the bundle's class loader, not ours, so it is only used
+     * through reflection.  The service is got once, by a tracker, rather
+     * than on every call, which would leave a use count behind each time.
+     */
+    Object getPacketConduit() throws Exception {
+        ServiceTracker tracker = conduitTracker;
+        if (tracker == null) {
+            synchronized (this) {
+                tracker = conduitTracker;
+                if (tracker == null) {
+                    tracker = new ServiceTracker(framework.getBundleContext(),
+                            "edu.columbia.irt.netserv.core.backbone.PacketConduit", null);
+                    tracker.open();
+                    conduitTracker = tracker;
+                }
+            }
+        }
+        Object conduit = tracker.getService();
+        if (conduit == null) {
+            throw new Exception("PacketConduit service not available");
+        }
+        return conduit;
+    }
+
+    private static Object invoke(Object target, String name, Object... args)
+            throws Exception {
+        for (Method m : target.getClass().getMethods()) {
+            if (m.getName().equals(name) && m.getParameterTypes().length == args.length) {
+                return m.invoke(target, args);
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+
     public String getModuleState(String moduleID) {
-        Bundle bundle = serviceMap.get(moduleID);
+        Bundle bundle;
+        synchronized (serviceMap) {
+            bundle = serviceMap.get(moduleID);
+        }
         if (bundle != null) {
             return getStateName(bundle.getState());
         } else {
@@ -527,7 +1525,10 @@ public class Controller implements Runnable {
     public void setModuleState(String moduleID, String state) {
         if (state != null & moduleID != null) {
             if (getStateName(Bundle.ACTIVE).equals(state)) {
-                Bundle bundle = serviceMap.get(moduleID);
+                Bundle bundle;
+                synchronized (serviceMap) {
+                    bundle = serviceMap.get(moduleID);
+                }
                 try {
                     bundle.start();
                 } catch (BundleException ex) {
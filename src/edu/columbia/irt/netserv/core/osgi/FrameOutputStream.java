@@ -0,0 +1,95 @@
+package edu.columbia.irt.netserv.core.osgi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The stream a response of a framed connection is written to.  The
+ * response is sent as a single frame when the stream is closed, unless
+ * it outgrows the frame size first, in which case it is sent as it is
+ * written, in frames of the frame size followed by a last one (see
+ * Controller.handleConnection()).  So a module's output is never held in
+ * memory whole.  Each frame is written under the lock of the connection's
+ * stream, so frames of different responses never interleave.  Closing
+ * the stream doesn't close the connection's.
+ */
+final class FrameOutputStream extends OutputStream {
+
+    private final OutputStream os;
+    private final String id;
+    private final int frameSize;
+    // grown up to frameSize as the response grows
+    private byte[] buf;
+    private int count = 0;
+    private boolean closed = false;
+
+    FrameOutputStream(OutputStream os, String id, int frameSize) {
+        this.os = os;
+        this.id = id;
+        this.frameSize = frameSize;
+        this.buf = new byte[Math.min(256, frameSize)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        if (count == buf.length) {
+            makeRoom();
+        }
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        while (len > 0) {
+            if (count == buf.length) {
+                makeRoom();
+            }
+            int n = Math.min(len, buf.length - count);
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Sends the last frame.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            send(true);
+        }
+    }
+
+    // Grows the buffer, or sends it as a frame if it is frameSize bytes
+    // already.  The buffer is only sent once more is written, so that the
+    // last frame is empty only if the whole response is.
+    private void makeRoom() throws IOException {
+        if (buf.length < frameSize) {
+            buf = Arrays.copyOf(buf, Math.min(2 * buf.length, frameSize));
+        } else {
+            send(false);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("response already sent");
+        }
+    }
+
+    private void send(boolean last) throws IOException {
+        byte[] head = (id + " " + count + (last ? "\n" : " +\n")).getBytes("US-ASCII");
+        synchronized (os) {
+            os.write(head);
+            os.write(buf, 0, count);
+            os.flush();
+        }
+        count = 0;
+    }
+}
@@ -0,0 +1,282 @@
+package edu.columbia.irt.netserv.core.osgi;
+
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.osgi.framework.Bundle;
+
+import edu.columbia.irt.netserv.core.backbone.CCNService;
+import edu.columbia.irt.netserv.core.backbone.NetServChannelService;
+import edu.columbia.irt.netserv.core.backbone.NetServService;
+
+/**
+ * Calls the Netserv-Service or CCN-Service class of a bundle, resolved
+ * once rather than on every EXECUTE.
+ *
+ * If the class implements the NetServService or CCNService interface the
+ * Controller sees, which is the case when the bundle imports the backbone
+ * package from the system bundle, it is called through the interface;
+ * otherwise through a method handle for its execute() method.  A
+ * Netserv-Service class that implements NetServChannelService, or has an
+ * execute() method taking a GatheringByteChannel or WritableByteChannel,
+ * is given a channel rather than a stream.
+ *
+ * A new instance is made for each call, unless the bundle's manifest has
+ * "Netserv-Stateless: true", in which case one instance serves all calls,
+ * from any number of threads at once.
+ *
+ * An invoker holds on to the bundle's classes, so the Controller drops it
+ * when the bundle is stopped, updated or uninstalled.  Callers bracket
+ * their calls with enter() and exit(), so that UPDATE can retire the
+ * invoker of the old version of a module and wait for the calls under way
+ * to return before uninstalling it.
+ */
+final class ModuleInvoker {
+
+    private static final MethodType NETSERV_EXECUTE =
+            MethodType.methodType(void.class, Object.class, OutputStream.class, Object.class);
+    private static final MethodType CHANNEL_EXECUTE =
+            MethodType.methodType(void.class, Object.class, GatheringByteChannel.class, Object.class);
+    private static final MethodType CCN_EXECUTE =
+            MethodType.methodType(Object.class, Object.class, Object.class);
+    final Bundle bundle;
+    private final boolean netserv;
+    private final boolean stateless;
+    // how long results may be cached, in milliseconds, 0 for not at all
+    private final long cacheTTL;
+    // the class implements the interface
+    private final boolean direct;
+    // the Netserv-Service writes to a channel rather than a stream
+    private final boolean channel;
+    // () -> Object
+    private final MethodHandle constructor;
+    // execute() as NETSERV_EXECUTE, CHANNEL_EXECUTE or CCN_EXECUTE, unless
+    // direct
+    private final MethodHandle execute;
+    // the instance of a stateless module
+    private final Object instance;
+    // calls between enter() and exit()
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile boolean retired = false;
+
+    /**
+     * @param netserv True for the Netserv-Service class, false for the
+     * CCN-Service class.
+     * @throws Exception if the class can't be loaded, has no public
+     * constructor without arguments or no suitable execute() method.
+     */
+    ModuleInvoker(Bundle bundle, boolean netserv) throws Exception {
+        this.bundle = bundle;
+        this.netserv = netserv;
+        String header = netserv ? Controller.NETSERV_SERVICE : Controller.CCN_SERVICE;
+        // the headers are Strings, though OSGi 4.2 doesn't say so in the type
+        @SuppressWarnings("unchecked")
+        Dictionary<String, String> headers = bundle.getHeaders();
+        String service = headers.get(header);
+        if (service == null) {
+            throw new Exception(bundle.getSymbolicName() + " has no " + header + " header");
+        }
+        this.stateless = "true".equalsIgnoreCase(headers.get(Controller.NETSERV_STATELESS));
+        String ttl = netserv ? null : headers.get(Controller.CCN_CACHE_TTL);
+        long t = 0;
+        if (ttl != null) {
+            try {
+                t = Math.max(0, (long) (Double.parseDouble(ttl.trim()) * 1000));
+            } catch (NumberFormatException e) {
+                Controller.logger.log(Level.WARNING, "{0}: bad {1} header: {2}",
+                        new Object[]{bundle.getSymbolicName(), Controller.CCN_CACHE_TTL, ttl});
+            }
+        }
+        this.cacheTTL = t;
+
+        Class<?> c = bundle.loadClass(service);
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        this.constructor = lookup.findConstructor(c, MethodType.methodType(void.class)).asType(MethodType.methodType(Object.class));
+        if (netserv && NetServChannelService.class.isAssignableFrom(c)) {
+            this.channel = true;
+            this.direct = true;
+        } else {
+            this.channel = netserv && findChannelExecute(lookup, c) != null;
+            this.direct = !channel
+                    && (netserv ? NetServService.class : CCNService.class).isAssignableFrom(c);
+        }
+        if (direct) {
+            this.execute = null;
+        } else if (channel) {
+            this.execute = findChannelExecute(lookup, c).asType(CHANNEL_EXECUTE);
+        } else if (netserv) {
+            this.execute = findExecute(lookup, c, OutputStream.class).asType(NETSERV_EXECUTE);
+        } else {
+            this.execute = findExecute(lookup, c).asType(CCN_EXECUTE);
+        }
+        this.instance = stateless ? newInstance() : null;
+    }
+
+    boolean isStateless() {
+        return stateless;
+    }
+
+    /**
+     * Returns whether the Netserv-Service is to be called with a channel.
+     */
+    boolean writesToChannel() {
+        return channel;
+    }
+
+    /**
+     * Counts a call about to be made.
+     * @return False, without counting it, if the invoker has been retired;
+     * the call must then be made to the module's new version.
+     */
+    boolean enter() {
+        calls.incrementAndGet();
+        // counted before looking, so retire() followed by
+        // callsInProgress() == 0 means no call is or will be made
+        if (retired) {
+            calls.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    void exit() {
+        calls.decrementAndGet();
+    }
+
+    /**
+     * Makes enter() fail from now on.
+     */
+    void retire() {
+        retired = true;
+    }
+
+    /**
+     * Returns the number of calls entered that haven't exited yet.
+     */
+    int callsInProgress() {
+        return calls.get();
+    }
+
+    /**
+     * Returns how long the results of the CCN-Service class may be cached,
+     * in milliseconds, from the bundle's CCN-Cache-TTL header (in
+     * seconds); 0 if they may not be.
+     */
+    long cacheTTL() {
+        return cacheTTL;
+    }
+
+    /**
+     * Calls the Netserv-Service class.
+     */
+    void execute(OutputStream out, Object param) throws Exception {
+        Object target = stateless ? instance : newInstance();
+        if (direct) {
+            ((NetServService) target).execute(out, param);
+            return;
+        }
+        try {
+            execute.invokeExact(target, out, param);
+        } catch (Exception e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new Exception(t);
+        }
+    }
+
+    /**
+     * Calls the Netserv-Service class that writes to a channel.
+     */
+    void execute(GatheringByteChannel out, Object param) throws Exception {
+        Object target = stateless ? instance : newInstance();
+        if (direct) {
+            ((NetServChannelService) target).execute(out, param);
+            return;
+        }
+        try {
+            execute.invokeExact(target, out, param);
+        } catch (Exception e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new Exception(t);
+        }
+    }
+
+    /**
+     * Calls the CCN-Service class.
+     */
+    Object execute(Object param) throws Exception {
+        Object target = stateless ? instance : newInstance();
+        if (direct) {
+            return ((CCNService) target).execute(param);
+        }
+        try {
+            return (Object) execute.invokeExact(target, param);
+        } catch (Exception e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new Exception(t);
+        }
+    }
+
+    // execute(GatheringByteChannel, Object) or execute(WritableByteChannel,
+    // Object), or null if the class has neither
+    private static MethodHandle findChannelExecute(MethodHandles.Lookup lookup, Class<?> c)
+            throws IllegalAccessException {
+        Class<?>[] types = {GatheringByteChannel.class, WritableByteChannel.class};
+        for (Class<?> t : types) {
+            try {
+                return findExecute(lookup, c, t);
+            } catch (NoSuchMethodException e) {
+                // try the next one
+            }
+        }
+        return null;
+    }
+
+    // The public execute() method taking the given types and an Object,
+    // whatever it returns, as Class.getMethod() finds it; asType() then
+    // drops or casts the result as the caller needs.
+    private static MethodHandle findExecute(MethodHandles.Lookup lookup, Class<?> c,
+            Class<?>... types) throws NoSuchMethodException, IllegalAccessException {
+        Class<?>[] params = Arrays.copyOf(types, types.length + 1);
+        params[types.length] = Object.class;
+        return lookup.unreflect(c.getMethod("execute", params));
+    }
+
+    private Object newInstance() throws Exception {
+        try {
+            return (Object) constructor.invokeExact();
+        } catch (Exception e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new Exception(t);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return bundle.getSymbolicName() + '_' + bundle.getVersion()
+                + (netserv ? " Netserv-Service" : " CCN-Service")
+                + (channel ? " channel" : "")
+                + (direct ? " direct" : " handle")
+                + (stateless ? " stateless" : "")
+                + (cacheTTL > 0 ? " ttl=" + cacheTTL + "ms" : "");
+    }
+}
@@ -0,0 +1,33 @@
+package edu.columbia.irt.netserv.core.osgi;
+
+import java.util.HashMap;
+
+/**
+ * One module call of Controller.submitModules() or executeModules(): the
+ * module ID and headers that executeModule() takes, and how long the call
+ * may take before it is cancelled.
+ */
+public class ModuleRequest {
+
+    public final String moduleID;
+    public final HashMap<String, String> headers;
+    // milliseconds; 0 for no limit
+    public final long timeout;
+
+    public ModuleRequest(String moduleID, HashMap<String, String> headers,
+            long timeout) {
+        this.moduleID = moduleID;
+        this.headers = headers;
+        this.timeout = timeout;
+    }
+
+    /**
+     * A request with only the args header.
+     */
+    public ModuleRequest(String moduleID, String args, long timeout) {
+        this(moduleID, new HashMap<String, String>(), timeout);
+        if (args != null) {
+            headers.put("args", args);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package edu.columbia.irt.netserv.core.osgi;
+
+/**
+ * The outcome of one request of Controller.executeModules(): what the
+ * module returned, or why it didn't.
+ */
+public class ModuleResult {
+
+    public static final int OK = 0;
+    // the module threw exception, or isn't there
+    public static final int FAILED = 1;
+    // the request's timeout passed first; the call was interrupted
+    public static final int TIMED_OUT = 2;
+    public static final int CANCELLED = 3;
+    public final ModuleRequest request;
+    public final int status;
+    public final Object result;
+    public final Throwable exception;
+
+    public ModuleResult(ModuleRequest request, int status, Object result,
+            Throwable exception) {
+        this.request = request;
+        this.status = status;
+        this.result = result;
+        this.exception = exception;
+    }
+
+    @Override
+    public String toString() {
+        switch (status) {
+            case OK:
+                return request.moduleID + ": " + result;
+            case FAILED:
+                return request.moduleID + ": failed: " + exception;
+            case TIMED_OUT:
+                return request.moduleID + ": timed out";
+            default:
+                return request.moduleID + ": cancelled";
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package edu.columbia.irt.netserv.core.osgi;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps the results of CCNService executions by bundle and arguments, for
+ * modules whose results only depend on their arguments and who say for
+ * how long with a CCN-Cache-TTL header.
+ *
+ * The least recently used results are evicted once there are more than a
+ * given number of them, or their estimated size exceeds a given number of
+ * bytes.  Concurrent requests for a result that isn't there yet wait for
+ * the one execution started by the first of them, rather than each
+ * running the module.  Executions that fail are not kept.
+ *
+ * Every caller gets its own copy of a byte[] result, and its own read-only
+ * view of a ByteBuffer one, so that none can change what the others get.
+ * Other results are handed out as they are, and had better be immutable.
+ */
+final class ResultCache {
+
+    private static final class Key {
+
+        final long bundle;
+        final String args;
+
+        Key(long bundle, String args) {
+            this.bundle = bundle;
+            this.args = args;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return bundle == k.bundle
+                    && (args == null ? k.args == null : args.equals(k.args));
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (bundle ^ (bundle >>> 32)) * 31
+                    + (args == null ? 0 : args.hashCode());
+        }
+    }
+
+    private static final class Entry {
+
+        final FutureTask<Object> task;
+        // set once the task has completed
+        boolean done = false;
+        long expires;
+        long weight;
+
+        Entry(FutureTask<Object> task) {
+            this.task = task;
+        }
+    }
+    private final int maxEntries;
+    private final long maxBytes;
+    // in access order, the least recently used first
+    private final LinkedHashMap<Key, Entry> map =
+            new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    ResultCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached result for args of the bundle, or calls loader,
+     * keeps what it returns for ttl milliseconds and returns it, shared
+     * as the class comment says.
+     * @throws Exception whatever loader throws.
+     */
+    Object get(long bundle, String args, long ttl, Callable<Object> loader)
+            throws Exception {
+        Key k = new Key(bundle, args);
+        Entry e;
+        boolean load = false;
+        synchronized (this) {
+            e = map.get(k);
+            if (e != null && e.done && e.expires - System.nanoTime() <= 0) {
+                remove(k, e);
+                e = null;
+            }
+            if (e == null) {
+                e = new Entry(new FutureTask<Object>(loader));
+                map.put(k, e);
+                load = true;
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+        if (load) {
+            e.task.run();
+            completed(k, e, ttl);
+        }
+        try {
+            return share(e.task.get());
+        } catch (ExecutionException x) {
+            Throwable t = x.getCause();
+            if (t instanceof Exception) {
+                throw (Exception) t;
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw x;
+        }
+    }
+
+    /**
+     * Forgets the results of a bundle.  Executions under way complete for
+     * those waiting on them, but aren't kept.
+     */
+    synchronized void invalidate(long bundle) {
+        Iterator<Map.Entry<Key, Entry>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> me = it.next();
+            if (me.getKey().bundle == bundle) {
+                bytes -= me.getValue().weight;
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        map.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Returns "entries=n bytes=n hits=n misses=n evictions=n\n".
+     */
+    synchronized StringBuilder getStatus() {
+        StringBuilder s = new StringBuilder();
+        s.append("entries=").append(map.size());
+        s.append(" bytes=").append(bytes);
+        s.append(" hits=").append(hits);
+        s.append(" misses=").append(misses);
+        s.append(" evictions=").append(evictions);
+        s.append('\n');
+        return s;
+    }
+
+    private synchronized void completed(Key k, Entry e, long ttl) {
+        if (map.get(k) != e) {
+            // invalidated while loading
+            return;
+        }
+        Object result;
+        try {
+            result = e.task.get();
+        } catch (Exception x) {
+            map.remove(k);
+            return;
+        }
+        e.done = true;
+        e.expires = System.nanoTime() + ttl * 1000000L;
+        e.weight = weigh(k, result);
+        bytes += e.weight;
+        evict();
+    }
+
+    // Drops the least recently used results until within bounds; results
+    // still being loaded are left alone.
+    private void evict() {
+        Iterator<Map.Entry<Key, Entry>> it = map.entrySet().iterator();
+        while ((map.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            Entry e = it.next().getValue();
+            if (e.done) {
+                bytes -= e.weight;
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    private void remove(Key k, Entry e) {
+        map.remove(k);
+        bytes -= e.weight;
+    }
+
+    // Returns what a caller may have of a cached result.
+    private static Object share(Object result) {
+        if (result instanceof byte[]) {
+            return ((byte[]) result).clone();
+        }
+        if (result instanceof ByteBuffer) {
+            return ((ByteBuffer) result).asReadOnlyBuffer();
+        }
+        return result;
+    }
+
+    // A rough estimate of the heap the entry takes.
+    private static long weigh(Key k, Object result) {
+        long w = 128 + (k.args == null ? 0 : 2L * k.args.length());
+        if (result instanceof String) {
+            w += 40 + 2L * ((String) result).length();
+        } else if (result instanceof byte[]) {
+            w += 16 + ((byte[]) result).length;
+        } else if (result instanceof ByteBuffer) {
+            w += 48 + ((ByteBuffer) result).capacity();
+        } else if (result != null) {
+            w += 64;
+        }
+        return w;
+    }
+}
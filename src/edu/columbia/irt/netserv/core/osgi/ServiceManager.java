@@ -5,6 +5,7 @@ import java.util.logging.*;
 
 import org.osgi.framework.BundleContext;
 import edu.columbia.irt.netserv.core.osgi.Controller;
+import edu.columbia.irt.netserv.core.backbone.PacketInterest;
 import edu.columbia.irt.netserv.core.backbone.ServiceListener;
 import edu.columbia.irt.netserv.core.backbone.Util;
 
@@ -27,6 +28,18 @@ public class ServiceManager {
         }
     }
 
+    /**
+     * Returns a copy of the packet interest given by the filter-* headers
+     * of the module's SETUP request, to be passed to
+     * PacketConduit.addProcessor(), or null if the module set no filter.
+     */
+    public static PacketInterest retrieveInterest(BundleContext context) {
+        synchronized (Controller.mapServiceInterest) {
+            PacketInterest interest = Controller.mapServiceInterest.get(context.getBundle().getBundleId());
+            return interest == null ? null : interest.clone();
+        }
+    }
+
     public static void addModuleListener(ServiceListener listener) {
         synchronized (Controller.serviceListeners) {
             Controller.serviceListeners.add(listener);
@@ -0,0 +1,70 @@
+package edu.columbia.irt.netserv.core.osgi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A channel onto an OutputStream, for modules that write to a channel
+ * when their output goes to a stream, such as a framed response.  Heap
+ * buffers are written from their arrays; direct buffers are copied through
+ * one array that is reused.  Closing the channel doesn't close the stream.
+ */
+final class StreamChannel implements GatheringByteChannel {
+
+    private final OutputStream out;
+    private byte[] chunk = null;
+    private boolean open = true;
+
+    StreamChannel(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        int n = src.remaining();
+        if (src.hasArray()) {
+            out.write(src.array(), src.arrayOffset() + src.position(), n);
+            src.position(src.limit());
+            return n;
+        }
+        if (chunk == null) {
+            chunk = new byte[8192];
+        }
+        while (src.hasRemaining()) {
+            int k = Math.min(src.remaining(), chunk.length);
+            src.get(chunk, 0, k);
+            out.write(chunk, 0, k);
+        }
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long n = 0;
+        for (int i = offset; i < offset + length; i++) {
+            n += write(srcs[i]);
+        }
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
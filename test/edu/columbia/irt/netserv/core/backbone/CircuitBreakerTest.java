@@ -0,0 +1,50 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    // 1 us per packet, trips on the first violation, 50 ms cooldown
+    private final LatencyBudget budget = new LatencyBudget(1000, 1, 50, true);
+    private final CircuitBreaker br = new CircuitBreaker(new PacketProcessor() {
+
+        @Override
+        public void processPacket(ByteBuffer buf) {
+        }
+
+        @Override
+        public int relativeOrder() {
+            return 0;
+        }
+    });
+
+    @Test
+    public void tripsAndProbesAfterCooldown() throws InterruptedException {
+        assertFalse(br.bypass(budget, System.nanoTime()));
+        assertEquals(CircuitBreaker.TRIPPED, br.completed(budget, 5000));
+        assertEquals(CircuitBreaker.OPEN, br.state());
+        assertTrue(br.bypass(budget, System.nanoTime()));
+        Thread.sleep(60);
+        // the probe
+        assertFalse(br.bypass(budget, System.nanoTime()));
+        assertEquals(CircuitBreaker.PROBING, br.state());
+        assertTrue(br.bypass(budget, System.nanoTime()));
+        assertEquals(CircuitBreaker.RESTORED, br.completed(budget, 500));
+        assertEquals(CircuitBreaker.CLOSED, br.state());
+        assertEquals(2, br.bypassed());
+    }
+
+    @Test
+    public void tripWhileOpenKeepsCooldown() throws InterruptedException {
+        assertTrue(br.trip());
+        Thread.sleep(30);
+        assertFalse(br.trip());
+        Thread.sleep(30);
+        // 60 ms since the breaker opened, though 30 since the second trip
+        assertFalse(br.bypass(budget, System.nanoTime()));
+        assertEquals(CircuitBreaker.PROBING, br.state());
+    }
+}
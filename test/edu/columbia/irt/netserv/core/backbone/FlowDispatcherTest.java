@@ -0,0 +1,133 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FlowDispatcherTest {
+
+    private final PacketConduit pc = new PacketConduit();
+    private final FlowDispatcher fd = new FlowDispatcher(pc, 2, 4);
+
+    @After
+    public void shutdown() {
+        fd.shutdown();
+        pc.setDispatch(pc);
+        pc.shutdown();
+    }
+
+    /**
+     * Counts down for each packet.
+     */
+    static class Counter implements PacketProcessor {
+
+        final CountDownLatch seen;
+
+        Counter(int packets) {
+            seen = new CountDownLatch(packets);
+        }
+
+        @Override
+        public void processPacket(ByteBuffer buf) {
+            seen.countDown();
+        }
+
+        @Override
+        public int relativeOrder() {
+            return 0;
+        }
+    }
+
+    static final class DroppingFilter extends Counter implements PacketFilter {
+
+        DroppingFilter() {
+            super(0);
+        }
+
+        @Override
+        public int filterPacket(ByteBuffer buf, PacketHeader hdr) {
+            return PacketVerdict.DROP;
+        }
+    }
+
+    @Test
+    public void lanesRunTheChain() throws InterruptedException {
+        pc.setDispatch(fd);
+        Counter c = new Counter(10);
+        pc.addProcessor(c);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(PacketVerdict.CONTINUE, fd.dispatchPacket(ByteBuffer.allocate(64)));
+        }
+        assertTrue(c.seen.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void refusesWhatNeedsVerdicts() {
+        pc.setDispatch(fd);
+        try {
+            pc.addProcessor(new DroppingFilter());
+            fail();
+        } catch (IllegalStateException e) {
+            // its drops would be lost
+        }
+        try {
+            pc.setDefaultLatencyBudget(new LatencyBudget(1000000, 1, 1000, false));
+            fail();
+        } catch (IllegalStateException e) {
+            // as would the bypass drops
+        }
+        pc.setDefaultLatencyBudget(new LatencyBudget(1000000, 1, 1000, true));
+        pc.addProcessor(new Counter(0));
+        assertEquals(1, pc.getProcessorStats().toString().split("\n").length);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void refusedWithFilterInChain() {
+        pc.addProcessor(new DroppingFilter());
+        pc.setDispatch(fd);
+    }
+
+    @Test
+    public void laneSurvivesError() throws InterruptedException {
+        pc.setDispatch(fd);
+        final CountDownLatch threw = new CountDownLatch(1);
+        Counter c = new Counter(1) {
+
+            @Override
+            public void processPacket(ByteBuffer buf) {
+                if (buf.get(0) == 1) {
+                    threw.countDown();
+                    throw new StackOverflowError();
+                }
+                super.processPacket(buf);
+            }
+        };
+        pc.addProcessor(c);
+        // none of them is IP, so they all go to the same lane
+        ByteBuffer bad = ByteBuffer.allocate(64);
+        bad.put(0, (byte) 1);
+        fd.dispatchPacket(bad);
+        assertTrue(threw.await(5, TimeUnit.SECONDS));
+        fd.dispatchPacket(ByteBuffer.allocate(64));
+        assertTrue(c.seen.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shutdownGivesDispatchBackToConduit() throws Exception {
+        pc.setDispatch(fd);
+        Counter c = new Counter(1);
+        pc.addProcessor(c);
+        fd.shutdown();
+        Method inject = PacketConduit.class.getDeclaredMethod("injectPacket", ByteBuffer.class);
+        inject.setAccessible(true);
+        inject.invoke(null, ByteBuffer.allocate(64));
+        // run on this thread, not queued to a stopped lane
+        assertEquals(0, c.seen.getCount());
+    }
+}
@@ -0,0 +1,152 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FlowTableTest {
+
+    @Test
+    public void insertsAndFindsFlows() {
+        FlowTable t = new FlowTable(100, 16, 60000);
+        PacketHeader a = udp(0x0a000001, 1000, 53);
+        assertEquals(FlowTable.NOT_FOUND, t.lookup(a));
+        long h = t.lookupOrInsert(a);
+        assertTrue(h != FlowTable.NOT_FOUND);
+        assertEquals(0, t.getLong(h, 0));
+        assertEquals(0, t.getLong(h, 8));
+        assertEquals(h, t.lookup(udp(0x0a000001, 1000, 53)));
+        assertEquals(h, t.lookupOrInsert(udp(0x0a000001, 1000, 53)));
+        assertEquals(FlowTable.NOT_FOUND, t.lookup(udp(0x0a000001, 1001, 53)));
+        assertEquals(FlowTable.NOT_FOUND, t.lookup(udp(0x0a000002, 1000, 53)));
+        assertEquals(1, t.size());
+    }
+
+    @Test
+    public void keepsStatePerFlow() {
+        FlowTable t = new FlowTable(100, 16, 60000);
+        long h = t.lookupOrInsert(udp(1, 1, 1));
+        long g = t.lookupOrInsert(udp(2, 2, 2));
+        t.putInt(h, 0, 7);
+        t.putLong(h, 8, 42);
+        assertEquals(43, t.addLong(h, 8, 1));
+        t.putBytes(g, 4, new byte[]{1, 2, 3}, 0, 3);
+        byte[] b = new byte[3];
+        t.getBytes(g, 4, b, 0, 3);
+        assertArrayEquals(new byte[]{1, 2, 3}, b);
+        assertEquals(7, t.getInt(h, 0));
+        assertEquals(43, t.getLong(h, 8));
+        assertEquals(0, t.getInt(g, 0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void stateAccessIsBounded() {
+        FlowTable t = new FlowTable(100, 16, 60000);
+        t.getLong(t.lookupOrInsert(udp(1, 1, 1)), 12);
+    }
+
+    @Test
+    public void removedFlowHandleIsStale() {
+        FlowTable t = new FlowTable(100, 16, 60000);
+        long h = t.lookupOrInsert(udp(1, 1, 1));
+        t.putLong(h, 0, 5);
+        assertTrue(t.remove(h));
+        assertFalse(t.remove(h));
+        assertEquals(0, t.size());
+        try {
+            t.getLong(h, 0);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // the same flow again gets a new handle and a zeroed state
+        long h2 = t.lookupOrInsert(udp(1, 1, 1));
+        assertTrue(h2 != h);
+        assertEquals(0, t.getLong(h2, 0));
+    }
+
+    @Test
+    public void survivesChurn() {
+        FlowTable t = new FlowTable(200, 8, 60000);
+        Map<Integer, Long> model = new HashMap<Integer, Long>();
+        Random r = new Random(7);
+        for (int round = 0; round < 20000; round++) {
+            int flow = r.nextInt(300);
+            PacketHeader p = udp(0x0a000000 + flow, 1024 + flow, 80);
+            if (model.containsKey(flow) && r.nextInt(3) == 0) {
+                long h = t.lookup(p);
+                assertTrue(h != FlowTable.NOT_FOUND);
+                assertTrue(t.remove(h));
+                model.remove(flow);
+            } else {
+                long h = t.lookupOrInsert(p);
+                if (h == FlowTable.NOT_FOUND) {
+                    // full
+                    assertFalse(model.containsKey(flow));
+                    continue;
+                }
+                if (!model.containsKey(flow)) {
+                    assertEquals(0, t.getLong(h, 0));
+                }
+                long v = r.nextLong();
+                t.putLong(h, 0, v);
+                model.put(flow, v);
+            }
+        }
+        assertEquals(model.size(), t.size());
+        for (int flow = 0; flow < 300; flow++) {
+            long h = t.lookup(udp(0x0a000000 + flow, 1024 + flow, 80));
+            if (model.containsKey(flow)) {
+                assertEquals((long) model.get(flow), t.getLong(h, 0));
+            } else {
+                assertEquals(FlowTable.NOT_FOUND, h);
+            }
+        }
+    }
+
+    @Test
+    public void refusesFlowsWhenFull() {
+        FlowTable t = new FlowTable(10, 0, 60000);
+        int inserted = 0;
+        for (int flow = 0; flow < 100; flow++) {
+            if (t.lookupOrInsert(udp(flow, flow, flow)) != FlowTable.NOT_FOUND) {
+                inserted++;
+            }
+        }
+        assertEquals(t.size(), inserted);
+        assertTrue(inserted >= 10 && inserted < 100);
+    }
+
+    @Test
+    public void expiresIdleFlows() {
+        FlowTable t = new FlowTable(100, 8, 1000);
+        for (int flow = 0; flow < 50; flow++) {
+            t.lookupOrInsert(udp(flow, flow, flow));
+        }
+        long now = System.currentTimeMillis();
+        assertEquals(0, t.expire(now));
+        assertEquals(50, t.expire(now + 5000));
+        assertEquals(0, t.size());
+        assertEquals(FlowTable.NOT_FOUND, t.lookup(udp(3, 3, 3)));
+    }
+
+    // an IPv4 UDP packet from src:srcPort to 192.0.2.1:dstPort
+    private static PacketHeader udp(int src, int srcPort, int dstPort) {
+        ByteBuffer b = ByteBuffer.allocate(28);
+        b.put(0, (byte) 0x45);
+        b.putShort(2, (short) 28);
+        b.put(9, (byte) PacketHeader.UDP);
+        b.putInt(12, src);
+        b.putInt(16, 0xc0000201);
+        b.putShort(20, (short) srcPort);
+        b.putShort(22, (short) dstPort);
+        b.putShort(24, (short) 8);
+        PacketHeader h = new PacketHeader();
+        assertTrue(h.parse(b));
+        return h;
+    }
+}
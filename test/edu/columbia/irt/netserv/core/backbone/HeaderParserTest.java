@@ -0,0 +1,142 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HeaderParserTest {
+
+    private static final Charset UTF8 = Charset.forName(Util.UTF8);
+    private static final String INVITE = "INVITE sip:bob@example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP a.example.com\r\n"
+            + "Subject: one,\r\n"
+            + "  two\r\n"
+            + "via: SIP/2.0/UDP b.example.com\r\n"
+            + "Content-Length : 4\r\n"
+            + "\r\n"
+            + "body";
+
+    @Test
+    public void parsesMessageInOnePacket() {
+        HeaderParser p = new HeaderParser();
+        // behind some other header, as in a packet
+        ByteBuffer b = buffer("xxxxx" + INVITE);
+        assertEquals(HeaderParser.COMPLETE, p.parse(b, 5, b.capacity() - 5));
+        assertSame(b, p.buffer());
+        assertEquals("INVITE sip:bob@example.com SIP/2.0",
+                string(p, p.startLineOffset(), p.startLineLength()));
+        assertEquals(4, p.fieldCount());
+        checkFields(p);
+        assertEquals("body", string(p, p.bodyOffset(), p.bodyEnd() - p.bodyOffset()));
+        assertEquals(HeaderParser.COMPLETE, p.parse(b, 0, 0));
+    }
+
+    @Test
+    public void parsesMessageSplitAcrossPackets() {
+        byte[] m = INVITE.getBytes(UTF8);
+        // split everywhere, including between CR and LF
+        for (int split = 1; split < m.length - 4; split++) {
+            HeaderParser p = new HeaderParser();
+            ByteBuffer packet = ByteBuffer.wrap(Arrays.copyOf(m, split));
+            assertEquals(HeaderParser.INCOMPLETE, p.parse(packet, 0, split));
+            // the packet buffer is reused once the module returns
+            Arrays.fill(packet.array(), (byte) '#');
+            ByteBuffer rest = ByteBuffer.wrap(Arrays.copyOfRange(m, split, m.length));
+            assertEquals("split " + split,
+                    HeaderParser.COMPLETE, p.parse(rest, 0, rest.capacity()));
+            assertNotSame(packet, p.buffer());
+            assertEquals("INVITE sip:bob@example.com SIP/2.0",
+                    string(p, p.startLineOffset(), p.startLineLength()));
+            checkFields(p);
+            assertEquals("body", string(p, p.bodyOffset(), p.bodyEnd() - p.bodyOffset()));
+        }
+    }
+
+    @Test
+    public void skipsEmptyLinesBeforeStartLine() {
+        HeaderParser p = new HeaderParser();
+        ByteBuffer b = buffer("\r\n\r\nOPTIONS * SIP/2.0\nMax-Forwards: 70\n\n");
+        assertEquals(HeaderParser.COMPLETE, p.parse(b, 0, b.capacity()));
+        assertEquals("OPTIONS * SIP/2.0", string(p, p.startLineOffset(), p.startLineLength()));
+        assertEquals(70, p.getFieldValueAsLong(0));
+        assertEquals(p.bodyEnd(), p.bodyOffset());
+    }
+
+    @Test
+    public void resetStartsNextMessage() {
+        HeaderParser p = new HeaderParser();
+        ByteBuffer b = buffer("GET / HTTP/1.1\r\nHost\r\n\r\n");
+        assertEquals(HeaderParser.ERROR, p.parse(b, 0, b.capacity()));
+        assertEquals(HeaderParser.ERROR, p.parse(b, 0, b.capacity()));
+        p.reset();
+        b = buffer("GET / HTTP/1.1\r\nHost: h\r\n\r\n");
+        assertEquals(HeaderParser.COMPLETE, p.parse(b, 0, b.capacity()));
+        assertEquals(1, p.fieldCount());
+        assertEquals("h", p.getFieldValue(0));
+    }
+
+    @Test
+    public void continuationWithoutFieldIsAnError() {
+        HeaderParser p = new HeaderParser();
+        ByteBuffer b = buffer("GET / HTTP/1.1\r\n Host: h\r\n\r\n");
+        assertEquals(HeaderParser.ERROR, p.parse(b, 0, b.capacity()));
+    }
+
+    @Test
+    public void tooManyFieldsIsAnError() {
+        HeaderParser p = new HeaderParser(65536, 2);
+        ByteBuffer b = buffer("GET / HTTP/1.1\r\na: 1\r\nb: 2\r\nc: 3\r\n\r\n");
+        assertEquals(HeaderParser.ERROR, p.parse(b, 0, b.capacity()));
+    }
+
+    @Test
+    public void tooBigIsAnError() {
+        HeaderParser p = new HeaderParser(64, 256);
+        ByteBuffer b = buffer("GET / HTTP/1.1\r\n");
+        assertEquals(HeaderParser.INCOMPLETE, p.parse(b, 0, b.capacity()));
+        b = buffer("X-Long: 0123456789012345678901234567890123456789012345678901234567\r\n");
+        assertEquals(HeaderParser.ERROR, p.parse(b, 0, b.capacity()));
+    }
+
+    @Test
+    public void fieldValueAsLong() {
+        HeaderParser p = new HeaderParser();
+        ByteBuffer b = buffer("X\r\na: 12\r\nb: -1\r\nc: 1x\r\nd:\r\n\r\n");
+        assertEquals(HeaderParser.COMPLETE, p.parse(b, 0, b.capacity()));
+        assertEquals(12, p.getFieldValueAsLong(0));
+        assertEquals(-1, p.getFieldValueAsLong(1));
+        assertEquals(-1, p.getFieldValueAsLong(2));
+        assertEquals(-1, p.getFieldValueAsLong(3));
+    }
+
+    private static void checkFields(HeaderParser p) {
+        byte[] via = "VIA".getBytes(UTF8);
+        int first = p.findField(via);
+        assertEquals(0, first);
+        int second = p.findField(via, first + 1);
+        assertEquals(2, second);
+        assertEquals(-1, p.findField(via, second + 1));
+        assertEquals("SIP/2.0/UDP b.example.com", p.getFieldValue(second));
+        int subject = p.findField("subject".getBytes(UTF8));
+        assertEquals("one, two", p.getFieldValue(subject));
+        int cl = p.findField("Content-Length".getBytes(UTF8));
+        assertEquals(3, cl);
+        assertEquals(4, p.getFieldValueAsLong(cl));
+        assertEquals(-1, p.findField("To".getBytes(UTF8)));
+    }
+
+    private static ByteBuffer buffer(String s) {
+        return ByteBuffer.wrap(s.getBytes(UTF8));
+    }
+
+    private static String string(HeaderParser p, int off, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = p.buffer().get(off + i);
+        }
+        return new String(b, UTF8);
+    }
+}
@@ -0,0 +1,75 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    private final LatencyHistogram h = new LatencyHistogram();
+
+    @Test
+    public void percentilesAreBucketUpperBounds() {
+        assertEquals(0, h.percentile(0.5));
+        h.record(0);
+        assertEquals(0, h.percentile(1));
+        h.reset();
+        // 1 is in [1, 2), 1000 in [512, 1024)
+        h.record(1);
+        assertEquals(2, h.percentile(1));
+        h.record(1000);
+        assertEquals(2, h.percentile(0.5));
+        assertEquals(1024, h.percentile(0.51));
+        h.record(Long.MAX_VALUE);
+        assertEquals(1L << (LatencyHistogram.BUCKETS - 1), h.percentile(1));
+    }
+
+    @Test
+    public void stripesAreSummed() {
+        for (int stripe = -3; stripe < 3 * LatencyHistogram.STRIPES; stripe++) {
+            h.record(stripe, 100, 2);
+        }
+        assertEquals(2 * (3 * LatencyHistogram.STRIPES + 3), h.count());
+        h.reset();
+        assertEquals(0, h.count());
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws InterruptedException {
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int stripe = t;
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        h.record(stripe, i, 1);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(40000, h.count());
+    }
+
+    @Test
+    public void format() {
+        for (int i = 0; i < 999; i++) {
+            h.record(100);
+        }
+        h.record(20000000);
+        StringBuilder s = new StringBuilder();
+        h.format(s);
+        assertEquals("n=1000 p50=128ns p90=128ns p99=128ns p999=128ns", s.toString());
+        h.record(20000000);
+        s.setLength(0);
+        h.format(s);
+        assertEquals("n=1001 p50=128ns p90=128ns p99=128ns p999=33ms", s.toString());
+        assertEquals("9999ns", LatencyHistogram.formatNanos(9999));
+        assertEquals("10us", LatencyHistogram.formatNanos(10000));
+        assertEquals("10ms", LatencyHistogram.formatNanos(10000000));
+    }
+}
@@ -0,0 +1,154 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MultiPatternMatcherTest {
+
+    @Test
+    public void findsOverlappingMatchesInOrder() {
+        MultiPatternMatcher m = new MultiPatternMatcher(
+                new String[]{"he", "she", "his", "hers"}, false);
+        List<String> found = scan(m, "ushers", false);
+        // "she" and "he" both end at 4; the longer comes first
+        assertEquals("[1@4, 0@4, 3@6]", found.toString());
+    }
+
+    @Test
+    public void matchesSameAsNaiveSearch() {
+        Random r = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            String[] patterns = new String[1 + r.nextInt(8)];
+            for (int i = 0; i < patterns.length; i++) {
+                patterns[i] = random(r, 1 + r.nextInt(4));
+            }
+            String text = random(r, 500);
+            for (boolean direct : new boolean[]{false, true}) {
+                MultiPatternMatcher m = new MultiPatternMatcher(patterns, false);
+                assertEquals(naive(patterns, text), sorted(scan(m, text, direct)));
+            }
+        }
+    }
+
+    @Test
+    public void ignoresCase() {
+        MultiPatternMatcher m = new MultiPatternMatcher(new String[]{"Via:"}, true);
+        assertTrue(m.isIgnoreCase());
+        assertEquals("[0@4, 0@10]", scan(m, "VIA:, via:", false).toString());
+        m = new MultiPatternMatcher(new String[]{"Via:"}, false);
+        assertEquals("[]", scan(m, "VIA:, via:", false).toString());
+    }
+
+    @Test
+    public void continuesScanInNextPacket() {
+        MultiPatternMatcher m = new MultiPatternMatcher(new String[]{"abcd"}, false);
+        final List<Integer> ends = new ArrayList<Integer>();
+        MultiPatternMatcher.MatchListener l = new MultiPatternMatcher.MatchListener() {
+
+            @Override
+            public boolean match(int pattern, int end) {
+                ends.add(end);
+                return true;
+            }
+        };
+        ByteBuffer first = buffer("xxab");
+        int s = m.scan(first, 0, first.capacity(), MultiPatternMatcher.INITIAL, l);
+        assertTrue(ends.isEmpty());
+        ByteBuffer second = buffer("cdxx");
+        assertTrue(m.scan(second, 0, second.capacity(), s, l) >= 0);
+        assertEquals(1, ends.size());
+        assertEquals(2, (int) ends.get(0));
+    }
+
+    @Test
+    public void listenerStopsScan() {
+        MultiPatternMatcher m = new MultiPatternMatcher(new String[]{"a"}, false);
+        final int[] count = new int[1];
+        ByteBuffer b = buffer("aaaa");
+        int s = m.scan(b, 0, b.capacity(), MultiPatternMatcher.INITIAL,
+                new MultiPatternMatcher.MatchListener() {
+
+                    @Override
+                    public boolean match(int pattern, int end) {
+                        return ++count[0] < 2;
+                    }
+                });
+        assertEquals(-1, s);
+        assertEquals(2, count[0]);
+    }
+
+    @Test
+    public void findFirstPrefersLongestAtSameEnd() {
+        MultiPatternMatcher m = new MultiPatternMatcher(
+                new String[]{"b", "ab", "zz"}, false);
+        ByteBuffer b = buffer("xxabzz");
+        assertEquals(1, m.findFirst(b, 0, b.capacity()));
+        assertEquals(2, m.findFirst(b, 4, 2));
+        assertEquals(-1, m.findFirst(b, 0, 2));
+        assertEquals(3, m.patternCount());
+        assertEquals(2, m.patternLength(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyPatternIsRefused() {
+        new MultiPatternMatcher(new String[]{"a", ""}, false);
+    }
+
+    // "pattern@end" for each match
+    private static List<String> scan(MultiPatternMatcher m, String text, boolean direct) {
+        byte[] b = bytes(text);
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect(b.length + 3) : ByteBuffer.allocate(b.length + 3);
+        buf.position(3);
+        buf.put(b);
+        final List<String> found = new ArrayList<String>();
+        m.scan(buf, 3, b.length, MultiPatternMatcher.INITIAL,
+                new MultiPatternMatcher.MatchListener() {
+
+                    @Override
+                    public boolean match(int pattern, int end) {
+                        found.add(pattern + "@" + (end - 3));
+                        return true;
+                    }
+                });
+        return found;
+    }
+
+    private static List<String> naive(String[] patterns, String text) {
+        List<String> found = new ArrayList<String>();
+        for (int p = 0; p < patterns.length; p++) {
+            for (int i = text.indexOf(patterns[p]); i >= 0; i = text.indexOf(patterns[p], i + 1)) {
+                found.add(p + "@" + (i + patterns[p].length()));
+            }
+        }
+        return sorted(found);
+    }
+
+    private static List<String> sorted(List<String> l) {
+        List<String> s = new ArrayList<String>(l);
+        Collections.sort(s);
+        return s;
+    }
+
+    private static String random(Random r, int n) {
+        StringBuilder s = new StringBuilder(n);
+        for (int i = 0; i < n; i++) {
+            s.append((char) ('a' + r.nextInt(3)));
+        }
+        return s.toString();
+    }
+
+    private static ByteBuffer buffer(String s) {
+        return ByteBuffer.wrap(bytes(s));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(Charset.forName(Util.ASCII));
+    }
+}
@@ -0,0 +1,120 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PacketBufferPoolTest {
+
+    @Test
+    public void handsOutEveryBufferOnce() {
+        PacketBufferPool pool = new PacketBufferPool(64, 4, 2);
+        assertEquals(8, pool.available());
+        Set<Integer> ids = new HashSet<Integer>();
+        for (int i = 0; i < 8; i++) {
+            PacketBuffer b = pool.acquire();
+            assertNotNull(b);
+            assertEquals(1, b.refCount());
+            assertTrue(ids.add(b.id()));
+            assertSame(b, pool.get(b.id()));
+            assertSame(b, pool.find(b.buffer()));
+        }
+        assertNull(pool.acquire());
+        assertEquals(0, pool.available());
+        assertNull(pool.find(ByteBuffer.allocateDirect(64)));
+    }
+
+    @Test
+    public void buffersLiveInTheirSlabs() {
+        PacketBufferPool pool = new PacketBufferPool(64, 4, 2);
+        PacketBuffer b = pool.get(6);
+        assertEquals(64, b.buffer().capacity());
+        b.buffer().put(0, (byte) 42);
+        ByteBuffer slab = pool.slabs()[6 / pool.buffersPerSlab()];
+        assertEquals(42, slab.get(6 % pool.buffersPerSlab() * pool.bufferSize()));
+    }
+
+    @Test
+    public void lastReleaseReturnsBuffer() {
+        PacketBufferPool pool = new PacketBufferPool(64, 2, 1);
+        PacketBuffer b = pool.acquire();
+        b.buffer().position(10);
+        assertSame(b, b.retain());
+        assertEquals(2, b.refCount());
+        b.release();
+        assertEquals(1, b.refCount());
+        assertEquals(1, pool.available());
+        b.release();
+        assertEquals(0, b.refCount());
+        assertEquals(2, pool.available());
+        // cleared on the way back
+        assertEquals(0, b.buffer().position());
+        // both buffers can be had again
+        assertNotNull(pool.acquire());
+        assertNotNull(pool.acquire());
+        assertNull(pool.acquire());
+    }
+
+    @Test
+    public void freeBufferCantBeRetainedOrReleased() {
+        PacketBufferPool pool = new PacketBufferPool(64, 2, 1);
+        PacketBuffer b = pool.acquire();
+        b.release();
+        try {
+            b.retain();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            b.release();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(0, b.refCount());
+        assertEquals(2, pool.available());
+    }
+
+    @Test
+    public void concurrentAcquireAndRelease() throws InterruptedException {
+        final PacketBufferPool pool = new PacketBufferPool(16, 8, 2);
+        final AtomicIntegerArray owner = new AtomicIntegerArray(16);
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int me = t + 1;
+            threads[t] = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        PacketBuffer b = pool.acquire();
+                        if (b == null) {
+                            continue;
+                        }
+                        if (!owner.compareAndSet(b.id(), 0, me)) {
+                            // handed out twice
+                            errors.incrementAndGet();
+                        }
+                        b.retain();
+                        b.release();
+                        owner.set(b.id(), 0);
+                        b.release();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(0, errors.get());
+        assertEquals(16, pool.available());
+    }
+}
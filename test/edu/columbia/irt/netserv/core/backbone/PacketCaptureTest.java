@@ -0,0 +1,157 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PacketCaptureTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("capture", "");
+        assertTrue(dir.delete());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+
+    // a 40-byte IPv4 packet of the given protocol from 10.0.0.id
+    static ByteBuffer packet(int id, int protocol) {
+        ByteBuffer b = ByteBuffer.allocate(40);
+        b.put(0, (byte) 0x45);
+        b.putShort(2, (short) 40);
+        b.put(9, (byte) protocol);
+        b.putInt(12, 0x0a000000 + id);
+        b.putInt(16, 0xc0000201);
+        b.putShort(24, (short) 20);
+        b.put(32, (byte) 0x50);
+        return b;
+    }
+
+    static ByteBuffer packet(int id) {
+        return packet(id, PacketHeader.UDP);
+    }
+
+    // the ids of the packets in a capture file, in order
+    static int[] read(File f) throws IOException {
+        PcapPacketSource src = new PcapPacketSource(f);
+        try {
+            int[] ids = new int[0];
+            ByteBuffer b = ByteBuffer.allocate(2048);
+            while (src.nextPacket(b)) {
+                ids = Arrays.copyOf(ids, ids.length + 1);
+                ids[ids.length - 1] = b.getInt(12) - 0x0a000000;
+            }
+            return ids;
+        } finally {
+            src.close();
+        }
+    }
+
+    private PacketCapture capture(int ringSlots, long fileSize, int maxFiles) {
+        return new PacketCapture(dir, "p", null, 2048, ringSlots, fileSize, maxFiles);
+    }
+
+    private static void awaitWritten(PacketCapture cap, long n) throws InterruptedException {
+        long deadline = System.nanoTime() + 5000000000L;
+        while (cap.written() < n) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void fullRingDropsPackets() throws IOException {
+        PacketCapture cap = capture(3, 1 << 20, 0);
+        // rounded up to 4 slots; nothing drains them yet
+        for (int i = 0; i < 6; i++) {
+            cap.offer(packet(i), null);
+        }
+        assertEquals(4, cap.captured());
+        assertEquals(2, cap.dropped());
+        cap.start();
+        cap.stop();
+        assertEquals(4, cap.written());
+        assertArrayEquals(new int[]{0, 1, 2, 3}, read(new File(dir, "p-1.pcap")));
+    }
+
+    @Test
+    public void ringIsReusedOnceDrained() throws Exception {
+        PacketCapture cap = capture(4, 1 << 20, 0);
+        cap.start();
+        int[] expected = new int[40];
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 4; i++) {
+                int id = round * 4 + i;
+                expected[id] = id;
+                cap.offer(packet(id), null);
+            }
+            awaitWritten(cap, 4 * (round + 1));
+        }
+        cap.stop();
+        assertEquals(0, cap.dropped());
+        assertArrayEquals(expected, read(new File(dir, "p-1.pcap")));
+    }
+
+    @Test
+    public void rotatesAndKeepsNewestFiles() throws Exception {
+        // room for a single packet per file
+        PacketCapture cap = new PacketCapture(dir, "p", null, 40, 8, 0, 2);
+        cap.start();
+        for (int i = 0; i < 5; i++) {
+            cap.offer(packet(i), null);
+        }
+        awaitWritten(cap, 5);
+        cap.stop();
+        for (int n = 1; n <= 3; n++) {
+            assertFalse(new File(dir, "p-" + n + ".pcap").exists());
+        }
+        assertArrayEquals(new int[]{3}, read(new File(dir, "p-4.pcap")));
+        assertArrayEquals(new int[]{4}, read(new File(dir, "p-5.pcap")));
+        assertTrue(cap.getStatus().toString(), cap.getStatus().indexOf(" files=5") > 0);
+    }
+
+    @Test
+    public void keepsOnlyMatchingPacketsUpToSnapLen() throws Exception {
+        PacketCapture cap = new PacketCapture(dir, "p",
+                new PacketInterest().setProtocol(PacketHeader.TCP), 24, 8, 1 << 20, 0);
+        assertTrue(cap.needsHeader());
+        PacketHeader hdr = new PacketHeader();
+        for (int i = 0; i < 4; i++) {
+            ByteBuffer b = packet(i, i % 2 == 0 ? PacketHeader.UDP : PacketHeader.TCP);
+            hdr.parse(b);
+            cap.offer(b, hdr);
+            assertEquals(0, b.position());
+        }
+        assertEquals(2, cap.captured());
+        cap.start();
+        cap.stop();
+        PcapPacketSource src = new PcapPacketSource(new File(dir, "p-1.pcap"));
+        try {
+            ByteBuffer b = ByteBuffer.allocate(2048);
+            assertTrue(src.nextPacket(b));
+            assertEquals(24, b.remaining());
+            assertEquals(1, b.getInt(12) - 0x0a000000);
+            assertTrue(src.nextPacket(b));
+            assertEquals(3, b.getInt(12) - 0x0a000000);
+            assertFalse(src.nextPacket(b));
+        } finally {
+            src.close();
+        }
+    }
+}
@@ -0,0 +1,552 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PacketConduitTest {
+
+    private final PacketConduit pc = new PacketConduit();
+
+    @After
+    public void shutdown() {
+        pc.shutdown();
+    }
+
+    /**
+     * Takes a given time per packet.
+     */
+    static final class SlowProcessor implements PacketProcessor {
+
+        final long millis;
+        int calls = 0;
+
+        SlowProcessor(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public void processPacket(ByteBuffer buf) {
+            calls++;
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public int relativeOrder() {
+            return 0;
+        }
+    }
+
+    @Test
+    public void defaultBudgetSetBeforeProcessorsTrips() {
+        // as the Activator does, before any module is there
+        pc.setDefaultLatencyBudget(new LatencyBudget(1000000, 2, 60000, false));
+        SlowProcessor p = new SlowProcessor(5);
+        pc.addProcessor(p);
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        assertEquals(PacketVerdict.CONTINUE, pc.dispatchPacket(buf));
+        assertEquals(PacketVerdict.CONTINUE, pc.dispatchPacket(buf));
+        // tripped after two overruns; fail-closed, so dropped unseen
+        assertEquals(PacketVerdict.DROP, pc.dispatchPacket(buf));
+        assertEquals(2, p.calls);
+        assertTrue(pc.getProcessorStats().toString(),
+                pc.getProcessorStats().indexOf("state=bypassed") >= 0);
+    }
+
+    @Test
+    public void bypassEventListsProcessorsLeftRunning() throws InterruptedException {
+        final ServiceEvent[] event = new ServiceEvent[1];
+        final CountDownLatch told = new CountDownLatch(1);
+        pc.setServiceListener(new ServiceListener() {
+
+            @Override
+            public void serviceChanged(ServiceEvent e) {
+                event[0] = e;
+                told.countDown();
+            }
+        });
+        pc.setDefaultLatencyBudget(new LatencyBudget(1000000, 1, 60000, true));
+        SlowProcessor slow = new SlowProcessor(5);
+        SlowProcessor fast = new SlowProcessor(0);
+        pc.addProcessor(slow);
+        pc.addProcessor(fast);
+        pc.dispatchPacket(ByteBuffer.allocate(64));
+        assertTrue(told.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new String[]{slow.toString()}, event[0].processorBypassed);
+        assertArrayEquals(new String[]{fast.toString()}, event[0].resultingModuleList);
+        assertEquals(0, event[0].moduleAdded.length);
+    }
+
+    @Test
+    public void processorWithinBudgetStaysInChain() {
+        pc.setDefaultLatencyBudget(new LatencyBudget(1000000000L, 1, 60000, false));
+        SlowProcessor p = new SlowProcessor(0);
+        pc.addProcessor(p);
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(PacketVerdict.CONTINUE, pc.dispatchPacket(buf));
+        }
+        assertEquals(10, p.calls);
+        assertTrue(pc.getProcessorStats().indexOf("state=closed") >= 0);
+    }
+
+    /**
+     * Slow for a number of packets, then throws on the next one, then is
+     * fast.
+     */
+    static final class ThrowingProbe implements PacketProcessor {
+
+        int calls = 0;
+
+        @Override
+        public void processPacket(ByteBuffer buf) {
+            calls++;
+            if (calls == 1) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if (calls == 2) {
+                throw new IllegalStateException("probe");
+            }
+        }
+
+        @Override
+        public int relativeOrder() {
+            return 0;
+        }
+    }
+
+    @Test
+    public void probeThatThrowsReopensBreaker() throws InterruptedException {
+        pc.setDefaultLatencyBudget(new LatencyBudget(1000000, 1, 20, true));
+        ThrowingProbe p = new ThrowingProbe();
+        pc.addProcessor(p);
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        // tripped by the first packet
+        pc.dispatchPacket(buf);
+        Thread.sleep(30);
+        try {
+            pc.dispatchPacket(buf);
+            fail();
+        } catch (IllegalStateException e) {
+            // the probe
+        }
+        assertTrue(pc.getProcessorStats().indexOf("state=bypassed") >= 0);
+        Thread.sleep(30);
+        // probed again, and back
+        pc.dispatchPacket(buf);
+        pc.dispatchPacket(buf);
+        assertEquals(4, p.calls);
+        assertTrue(pc.getProcessorStats().indexOf("state=closed") >= 0);
+    }
+
+    @Test
+    public void probeWithoutPacketsInBatchIsMadeLater() throws InterruptedException {
+        pc.setDefaultLatencyBudget(new LatencyBudget(1000000, 1, 20, true));
+        SlowProcessor p = new SlowProcessor(5);
+        pc.addProcessor(p, new PacketInterest().setProtocol(PacketHeader.TCP));
+        ByteBuffer tcp = ByteBuffer.allocate(40);
+        tcp.put(0, (byte) 0x45);
+        tcp.putShort(2, (short) 40);
+        tcp.put(9, (byte) PacketHeader.TCP);
+        tcp.put(32, (byte) 0x50);
+        pc.dispatchPacket(tcp);
+        Thread.sleep(30);
+        // a batch without TCP packets can't probe
+        pc.dispatchPackets(new ByteBuffer[]{ByteBuffer.allocate(64)}, new int[1], 1);
+        assertTrue(pc.getProcessorStats().indexOf("state=bypassed") >= 0);
+        pc.dispatchPacket(tcp);
+        assertEquals(2, p.calls);
+    }
+
+    /**
+     * Blocks in processPacket() until released.
+     */
+    static final class BlockingProcessor implements PacketProcessor {
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void processPacket(ByteBuffer buf) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public int relativeOrder() {
+            return 0;
+        }
+    }
+
+    private Thread dispatchOnce(final CountDownLatch stayAlive) {
+        Thread t = new Thread() {
+
+            @Override
+            public void run() {
+                pc.dispatchPacket(ByteBuffer.allocate(64));
+                try {
+                    stayAlive.await();
+                } catch (InterruptedException e) {
+                    // done
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    @Test
+    public void quiescenceIgnoresIdleThreads() throws Exception {
+        pc.addProcessor(new SlowProcessor(0));
+        CountDownLatch stayAlive = new CountDownLatch(1);
+        Thread t = dispatchOnce(stayAlive);
+        Thread.sleep(50);
+        pc.addProcessor(new SlowProcessor(0));
+        long t0 = System.nanoTime();
+        // the thread is alive but not dispatching
+        assertTrue(pc.awaitQuiescence(5000));
+        assertTrue(System.nanoTime() - t0 < 1000000000L);
+        stayAlive.countDown();
+        t.join();
+    }
+
+    @Test
+    public void quiescenceWaitsForThreadInRemovedProcessor() throws Exception {
+        BlockingProcessor p = new BlockingProcessor();
+        pc.addProcessor(p);
+        Thread t = dispatchOnce(new CountDownLatch(0));
+        p.entered.await();
+        pc.removeProcessor(p);
+        assertFalse(pc.awaitQuiescence(100));
+        p.release.countDown();
+        assertTrue(pc.awaitQuiescence(5000));
+        t.join();
+    }
+
+    @Test
+    public void quiescenceWaitsWithNothingTracked() throws Exception {
+        // no statistics, budgets, capture or header-needing processors
+        pc.setStatsEnabled(false);
+        BlockingProcessor p = new BlockingProcessor();
+        pc.addProcessor(p);
+        Thread t = dispatchOnce(new CountDownLatch(0));
+        p.entered.await();
+        pc.removeProcessor(p);
+        assertFalse(pc.awaitQuiescence(100));
+        p.release.countDown();
+        assertTrue(pc.awaitQuiescence(5000));
+        t.join();
+    }
+
+    @Test
+    public void quiescenceDoesNotWaitForCurrentChain() throws Exception {
+        BlockingProcessor p = new BlockingProcessor();
+        pc.addProcessor(p);
+        Thread t = dispatchOnce(new CountDownLatch(0));
+        p.entered.await();
+        // the thread is in the current chain, which hasn't changed
+        assertTrue(pc.awaitQuiescence(0));
+        p.release.countDown();
+        t.join();
+    }
+
+    // an IPv4 packet of the given protocol, with room for its header
+    private static ByteBuffer packet(int protocol) {
+        ByteBuffer b = ByteBuffer.allocate(40);
+        b.put(0, (byte) 0x45);
+        b.putShort(2, (short) 40);
+        b.put(9, (byte) protocol);
+        b.put(32, (byte) 0x50);
+        b.putShort(24, (short) 20);
+        return b;
+    }
+
+    /**
+     * Dispatches a TCP packet again from within each UDP packet it
+     * filters, and drops the TCP ones.
+     */
+    final class RedispatchingFilter implements PacketFilter, BatchPacketProcessor {
+
+        boolean intact = true;
+
+        @Override
+        public int filterPacket(ByteBuffer buf, PacketHeader hdr) {
+            if (hdr.protocol() != PacketHeader.UDP) {
+                return PacketVerdict.DROP;
+            }
+            assertEquals(PacketVerdict.DROP, pc.dispatchPacket(packet(PacketHeader.TCP)));
+            intact &= hdr.protocol() == PacketHeader.UDP && hdr.buffer() == buf;
+            return PacketVerdict.CONTINUE;
+        }
+
+        @Override
+        public void processPackets(ByteBuffer[] bufs, PacketHeader[] hdrs,
+                int[] verdicts, int count) {
+            ByteBuffer[] before = bufs.clone();
+            for (int k = 0; k < count; k++) {
+                verdicts[k] = filterPacket(bufs[k], hdrs[k]);
+                if (verdicts[k] == PacketVerdict.CONTINUE) {
+                    int[] inner = new int[1];
+                    pc.dispatchPackets(new ByteBuffer[]{packet(PacketHeader.TCP)}, inner, 1);
+                    intact &= inner[0] == PacketVerdict.DROP;
+                }
+            }
+            for (int k = 0; k < count; k++) {
+                intact &= bufs[k] == before[k] && hdrs[k].buffer() == bufs[k];
+            }
+        }
+
+        @Override
+        public void processPacket(ByteBuffer buf) {
+        }
+
+        @Override
+        public int relativeOrder() {
+            return 0;
+        }
+    }
+
+    @Test
+    public void nestedDispatchKeepsOuterPacket() {
+        RedispatchingFilter f = new RedispatchingFilter();
+        pc.addProcessor(f);
+        assertEquals(PacketVerdict.CONTINUE, pc.dispatchPacket(packet(PacketHeader.UDP)));
+        ByteBuffer[] bufs = {packet(PacketHeader.UDP), packet(PacketHeader.TCP),
+            packet(PacketHeader.UDP)};
+        int[] verdicts = new int[3];
+        pc.dispatchPackets(bufs, verdicts, 3);
+        assertTrue(f.intact);
+        assertEquals(PacketVerdict.CONTINUE, verdicts[0]);
+        assertEquals(PacketVerdict.DROP, verdicts[1]);
+        assertEquals(PacketVerdict.CONTINUE, verdicts[2]);
+    }
+
+    @Test
+    public void quiescenceWaitsForOuterDispatch() throws Exception {
+        final BlockingProcessor inner = new BlockingProcessor();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        PacketProcessor outer = new PacketProcessor() {
+
+            @Override
+            public void processPacket(ByteBuffer buf) {
+                entered.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                // with the newer chain, where it blocks in inner
+                pc.dispatchPacket(buf);
+            }
+
+            @Override
+            public int relativeOrder() {
+                return 0;
+            }
+        };
+        pc.addProcessor(outer);
+        pc.addProcessor(inner);
+        Thread t = dispatchOnce(new CountDownLatch(0));
+        entered.await();
+        pc.removeProcessor(outer);
+        proceed.countDown();
+        inner.entered.await();
+        // the thread is still in outer, though its nested dispatch isn't
+        assertFalse(pc.awaitQuiescence(100));
+        inner.release.countDown();
+        assertTrue(pc.awaitQuiescence(5000));
+        t.join();
+    }
+
+    @Test
+    public void stoppingCaptureWaitsForDispatchUnderWay() throws Exception {
+        File dir = File.createTempFile("capture", "");
+        assertTrue(dir.delete());
+        try {
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put("capture-dir", dir.getPath());
+            pc.startCapture(headers);
+            BlockingProcessor p = new BlockingProcessor();
+            pc.addProcessor(p);
+            Thread t = dispatchOnce(new CountDownLatch(0));
+            p.entered.await();
+            Thread stopper = new Thread() {
+
+                @Override
+                public void run() {
+                    pc.stopCapture();
+                }
+            };
+            stopper.start();
+            stopper.join(100);
+            assertTrue(stopper.isAlive());
+            p.release.countDown();
+            stopper.join();
+            t.join();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void restartedCaptureHasFilesToItself() throws Exception {
+        File dir = File.createTempFile("capture", "");
+        assertTrue(dir.delete());
+        try {
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put("capture-dir", dir.getPath());
+            headers.put("capture-prefix", "p");
+            pc.startCapture(headers);
+            for (int i = 0; i < 3; i++) {
+                pc.dispatchPacket(PacketCaptureTest.packet(i));
+            }
+            // the same files
+            pc.startCapture(headers);
+            for (int i = 3; i < 5; i++) {
+                pc.dispatchPacket(PacketCaptureTest.packet(i));
+            }
+            pc.stopCapture();
+            assertArrayEquals(new int[]{3, 4},
+                    PacketCaptureTest.read(new File(dir, "p-1.pcap")));
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    // packets seen by each version of VersionedProcessor; here, as each
+    // version has statics of its own, and public, as each version is in a
+    // runtime package of its own
+    public static final AtomicInteger[] COUNTS = {new AtomicInteger(), new AtomicInteger()};
+
+    /**
+     * Counts the packets it sees in COUNTS[version].  Loaded by a
+     * VersionLoader of its own for each version, as a module bundle's
+     * classes would be.
+     */
+    public static final class VersionedProcessor implements PacketProcessor {
+
+        final int version;
+
+        public VersionedProcessor(Integer version) {
+            this.version = version;
+        }
+
+        @Override
+        public void processPacket(ByteBuffer buf) {
+            COUNTS[version].incrementAndGet();
+        }
+
+        @Override
+        public int relativeOrder() {
+            return 0;
+        }
+    }
+
+    /**
+     * Defines VersionedProcessor itself rather than delegating it.
+     */
+    static final class VersionLoader extends ClassLoader {
+
+        VersionLoader() {
+            super(PacketConduitTest.class.getClassLoader());
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve)
+                throws ClassNotFoundException {
+            if (!name.equals(VersionedProcessor.class.getName())) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> c = findLoadedClass(name);
+            if (c != null) {
+                return c;
+            }
+            try {
+                InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] b = new byte[4096];
+                int n;
+                while ((n = in.read(b)) > 0) {
+                    out.write(b, 0, n);
+                }
+                in.close();
+                return defineClass(name, out.toByteArray(), 0, out.size());
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+    }
+
+    private static PacketProcessor newVersion(ClassLoader loader, int version)
+            throws Exception {
+        return (PacketProcessor) loader.loadClass(VersionedProcessor.class.getName())
+                .getConstructor(Integer.class).newInstance(version);
+    }
+
+    @Test
+    public void swapReplacesOldVersionAtOnce() throws Exception {
+        COUNTS[0].set(0);
+        COUNTS[1].set(0);
+        ClassLoader v0 = new VersionLoader();
+        ClassLoader v1 = new VersionLoader();
+        PacketProcessor old = newVersion(v0, 0);
+        pc.addProcessor(old);
+        pc.standBy(v1);
+        PacketProcessor p = newVersion(v1, 1);
+        pc.addProcessor(p);
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        pc.dispatchPacket(buf);
+        // on standby, so only the old version sees packets
+        assertEquals(1, COUNTS[0].get());
+        assertEquals(0, COUNTS[1].get());
+        assertEquals(1, pc.swapProcessors(v0, v1));
+        assertTrue(pc.awaitQuiescence(1000));
+        pc.dispatchPacket(buf);
+        assertEquals(1, COUNTS[0].get());
+        assertEquals(1, COUNTS[1].get());
+        // the old version stopping doesn't touch the new one
+        pc.removeProcessor(old);
+        pc.dispatchPacket(buf);
+        assertEquals(2, COUNTS[1].get());
+    }
+
+    @Test
+    public void discardedStandbyNeverJoins() throws Exception {
+        ClassLoader v1 = new VersionLoader();
+        pc.standBy(v1);
+        pc.addProcessor(newVersion(v1, 1));
+        pc.discardStandby(v1);
+        assertEquals(0, pc.swapProcessors(null, v1));
+        assertEquals("", pc.getProcessorStats().toString());
+    }
+}
@@ -0,0 +1,188 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PcapPacketSourceTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("source", ".pcap");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private void write(ByteBuffer b) throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(b.array(), 0, b.position());
+        } finally {
+            os.close();
+        }
+    }
+
+    private static void record(ByteBuffer b, int sec, int usec, byte[] data) {
+        b.putInt(sec).putInt(usec).putInt(data.length).putInt(data.length).put(data);
+    }
+
+    // an Ethernet frame of the given type, with a VLAN tag if asked for
+    private static byte[] frame(int type, boolean vlan, ByteBuffer payload) {
+        ByteBuffer b = ByteBuffer.allocate(18 + payload.remaining());
+        b.position(12);
+        if (vlan) {
+            b.putShort((short) Pcap.ETHERTYPE_VLAN).putShort((short) 7);
+        }
+        b.putShort((short) type).put(payload.duplicate());
+        byte[] f = new byte[b.position()];
+        System.arraycopy(b.array(), 0, f, 0, f.length);
+        return f;
+    }
+
+    private static int id(ByteBuffer b) {
+        return b.getInt(12) - 0x0a000000;
+    }
+
+    // starts a pcapng block, to be finished by endBlock()
+    private static int startBlock(ByteBuffer b, int type) {
+        int start = b.position();
+        b.putInt(type).putInt(0);
+        return start;
+    }
+
+    private static void endBlock(ByteBuffer b, int start) {
+        while ((b.position() & 3) != 0) {
+            b.put((byte) 0);
+        }
+        int len = b.position() - start + 4;
+        b.putInt(start + 4, len);
+        b.putInt(len);
+    }
+
+    private static void section(ByteBuffer b, ByteOrder order) {
+        b.order(order);
+        int s = startBlock(b, Pcap.SECTION_HEADER_BLOCK);
+        b.putInt(Pcap.BYTE_ORDER_MAGIC).putShort((short) 1).putShort((short) 0).putLong(-1);
+        endBlock(b, s);
+    }
+
+    private static void enhancedPacket(ByteBuffer b, long ticks, ByteBuffer packet) {
+        int s = startBlock(b, Pcap.ENHANCED_PACKET_BLOCK);
+        b.putInt(0).putInt((int) (ticks >>> 32)).putInt((int) ticks);
+        b.putInt(packet.remaining()).putInt(packet.remaining()).put(packet.duplicate());
+        endBlock(b, s);
+    }
+
+    @Test
+    public void readsPcap() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(Pcap.MAGIC_MICROS).putShort((short) 2).putShort((short) 4);
+        b.putInt(0).putInt(0).putInt(65535).putInt(Pcap.LINKTYPE_ETHERNET);
+        record(b, 1, 500000, frame(Pcap.ETHERTYPE_IPV4, true, PacketCaptureTest.packet(1)));
+        // ARP
+        record(b, 1, 600000, frame(0x0806, false, ByteBuffer.allocate(28)));
+        record(b, 2, 0, frame(Pcap.ETHERTYPE_IPV4, false, PacketCaptureTest.packet(3)));
+        // cut short
+        b.putInt(3).putInt(0).putInt(100).putInt(100).put(new byte[10]);
+        write(b);
+        PcapPacketSource src = new PcapPacketSource(file);
+        try {
+            ByteBuffer dst = ByteBuffer.allocate(2048);
+            assertTrue(src.nextPacket(dst));
+            assertEquals(40, dst.remaining());
+            assertEquals(1, id(dst));
+            assertEquals(1500000000L, src.timestamp());
+            // only as much as fits
+            ByteBuffer small = ByteBuffer.allocate(16);
+            assertTrue(src.nextPacket(small));
+            assertEquals(16, small.remaining());
+            assertEquals(2000000000L, src.timestamp());
+            assertFalse(src.nextPacket(dst));
+            assertEquals(2, src.packets());
+            assertEquals(1, src.skipped());
+        } finally {
+            src.close();
+        }
+    }
+
+    @Test
+    public void readsPcapngSections() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1024);
+        section(b, ByteOrder.LITTLE_ENDIAN);
+        int s = startBlock(b, Pcap.INTERFACE_DESCRIPTION_BLOCK);
+        b.putShort((short) Pcap.LINKTYPE_RAW).putShort((short) 0).putInt(65535);
+        // milliseconds
+        b.putShort((short) Pcap.OPTION_IF_TSRESOL).putShort((short) 1).put((byte) 3);
+        b.put(new byte[3]).putInt(Pcap.OPTION_END);
+        endBlock(b, s);
+        enhancedPacket(b, 1500, PacketCaptureTest.packet(1));
+        s = startBlock(b, Pcap.SIMPLE_PACKET_BLOCK);
+        b.putInt(40).put(PacketCaptureTest.packet(2));
+        endBlock(b, s);
+        // a big-endian section with a microsecond interface
+        section(b, ByteOrder.BIG_ENDIAN);
+        s = startBlock(b, Pcap.INTERFACE_DESCRIPTION_BLOCK);
+        b.putShort((short) Pcap.LINKTYPE_RAW).putShort((short) 0).putInt(65535);
+        endBlock(b, s);
+        // interface statistics, of no interest
+        s = startBlock(b, 5);
+        b.putInt(0);
+        endBlock(b, s);
+        enhancedPacket(b, 2000000, PacketCaptureTest.packet(3));
+        write(b);
+        PcapPacketSource src = new PcapPacketSource(file);
+        try {
+            ByteBuffer dst = ByteBuffer.allocate(2048);
+            assertTrue(src.nextPacket(dst));
+            assertEquals(1, id(dst));
+            assertEquals(1500000000L, src.timestamp());
+            assertTrue(src.nextPacket(dst));
+            assertEquals(40, dst.remaining());
+            assertEquals(2, id(dst));
+            assertEquals(1500000000L, src.timestamp());
+            assertTrue(src.nextPacket(dst));
+            assertEquals(3, id(dst));
+            assertEquals(2000000000L, src.timestamp());
+            assertFalse(src.nextPacket(dst));
+        } finally {
+            src.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesOtherFiles() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(64);
+        b.putInt(0x12345678).position(64);
+        write(b);
+        new PcapPacketSource(file);
+    }
+
+    @Test
+    public void toNanos() {
+        assertEquals(1234567890123L, PcapPacketSource.toNanos(1234567890123L, 1000000000L));
+        assertEquals(1500000000L, PcapPacketSource.toNanos(1500000, 1000000));
+        // 2^-32 s ticks
+        assertEquals(3500000000L, PcapPacketSource.toNanos((3L << 32) + (1L << 31), 1L << 32));
+        // picoseconds, where the fraction times 10^9 would overflow
+        long ps = 1000000000000L;
+        long nanos = PcapPacketSource.toNanos(9000000L * ps + 250000000000L, ps);
+        assertTrue(Math.abs(nanos - (9000000L * 1000000000L + 250000000L)) <= 1);
+        // femtoseconds
+        long fs = 1000000000000000L;
+        nanos = PcapPacketSource.toNanos(7 * fs + 999999999999999L, fs);
+        assertTrue(Math.abs(nanos - 7999999999L) <= 1);
+    }
+}
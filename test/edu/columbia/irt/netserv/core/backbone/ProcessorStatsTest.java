@@ -0,0 +1,43 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ProcessorStatsTest {
+
+    private final ProcessorStats stats = new ProcessorStats();
+
+    @Test
+    public void countsVerdicts() {
+        for (int i = 0; i < 5; i++) {
+            stats.record(i, 1, 100, 50);
+        }
+        stats.recordVerdict(0, PacketVerdict.DROP);
+        stats.recordVerdict(1, PacketVerdict.ACCEPT | PacketVerdict.MODIFIED);
+        stats.recordVerdict(2, PacketVerdict.CONTINUE | PacketVerdict.MODIFIED);
+        assertEquals(5, stats.packets());
+        assertEquals(500, stats.bytes());
+        assertEquals(250, stats.nanos());
+        assertEquals(1, stats.verdicts(PacketVerdict.DROP));
+        assertEquals(1, stats.verdicts(PacketVerdict.ACCEPT));
+        assertEquals(0, stats.verdicts(PacketVerdict.STOLEN));
+        assertEquals(3, stats.verdicts(PacketVerdict.CONTINUE));
+        assertEquals(2, stats.modified());
+        stats.reset();
+        assertEquals(0, stats.packets());
+        assertEquals(0, stats.modified());
+        assertEquals(0, stats.latency().count());
+    }
+
+    @Test
+    public void batchLatencyIsPerPacket() {
+        // four packets in 4 us, each in [512, 1024) ns
+        stats.record(0, 4, 256, 4000);
+        assertEquals(4, stats.latency().count());
+        assertEquals(1024, stats.latency().percentile(1));
+        StringBuilder s = new StringBuilder();
+        stats.format(s);
+        assertEquals("packets=4 bytes=256 accept=0 drop=0 stolen=0 modified=0 busy=4000ns"
+                + " n=4 p50=1024ns p90=1024ns p99=1024ns p999=1024ns", s.toString());
+    }
+}
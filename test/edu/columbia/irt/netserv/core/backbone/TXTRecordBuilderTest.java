@@ -0,0 +1,73 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TXTRecordBuilderTest {
+
+    @Test
+    public void buildsWhatUtilBuilds() {
+        TXTRecordBuilder b = new TXTRecordBuilder(0);
+        byte[] txt = null;
+        for (int i = 0; i < 100; i++) {
+            b.append("key" + i, "v\u00e9" + i);
+            txt = Util.appendToTXTRecord(txt, "key" + i, "v\u00e9" + i);
+        }
+        b.append(new byte[]{'x'});
+        txt = Util.appendToTXTRecord(txt, new byte[]{'x'});
+        assertEquals(101, b.size());
+        assertEquals(txt.length, b.length());
+        assertArrayEquals(txt, b.toByteArray());
+        ByteBuffer dst = ByteBuffer.allocate(txt.length + 2);
+        dst.put((byte) 7);
+        b.writeTo(dst);
+        assertEquals(txt.length + 1, dst.position());
+        assertEquals(txt[0], dst.get(1));
+    }
+
+    @Test
+    public void appendsToExistingRecord() {
+        byte[] txt = new TXTRecordBuilder().append("a", "1").toByteArray();
+        byte[] more = new TXTRecordBuilder(txt).append("b", "2").toByteArray();
+        assertArrayEquals(Util.appendToTXTRecord(txt, "b", "2"), more);
+        // the empty record is not an item to keep
+        assertEquals(0, new TXTRecordBuilder(new byte[1]).size());
+        assertEquals(0, new TXTRecordBuilder((byte[]) null).size());
+    }
+
+    @Test
+    public void emptyRecordIsOneZeroByte() {
+        TXTRecordBuilder b = new TXTRecordBuilder();
+        assertArrayEquals(new byte[1], b.toByteArray());
+        b.append("a", "1");
+        b.reset();
+        assertEquals(0, b.size());
+        assertArrayEquals(new byte[1], b.toByteArray());
+        ByteBuffer dst = ByteBuffer.allocate(1);
+        b.writeTo(dst);
+        assertEquals(1, dst.position());
+    }
+
+    @Test
+    public void longestItem() {
+        TXTRecordBuilder b = new TXTRecordBuilder();
+        b.append(new byte[TXTRecordBuilder.MAX_ITEM_LENGTH]);
+        assertEquals(TXTRecordBuilder.MAX_ITEM_LENGTH + 1, b.length());
+        assertEquals((byte) 255, b.toByteArray()[0]);
+        try {
+            b.append(new byte[TXTRecordBuilder.MAX_ITEM_LENGTH + 1]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // too long for the length byte
+        }
+        try {
+            b.append("k", new String(new char[254]));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // "k=" and 254 bytes
+        }
+        assertEquals(1, b.size());
+    }
+}
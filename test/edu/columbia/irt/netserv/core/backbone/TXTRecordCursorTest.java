@@ -0,0 +1,79 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TXTRecordCursorTest {
+
+    // "a=1", "flag", "Key=" and "x=y=z"
+    private static final byte[] TXT = {
+        3, 'a', '=', '1', 4, 'f', 'l', 'a', 'g', 4, 'K', 'e', 'y', '=',
+        5, 'x', '=', 'y', '=', 'z'};
+
+    private static void checkItems(TXTRecordCursor c) {
+        assertTrue(c.next());
+        assertEquals(1, c.offset());
+        assertEquals(3, c.length());
+        assertEquals(1, c.keyLength());
+        assertEquals(3, c.valueOffset());
+        assertEquals(1, c.valueLength());
+        assertTrue(c.next());
+        assertFalse(c.hasValue());
+        assertEquals(4, c.keyLength());
+        assertEquals(-1, c.valueLength());
+        assertTrue(c.next());
+        assertTrue(c.keyEquals(new byte[]{'k', 'E', 'Y'}));
+        assertFalse(c.keyEquals(new byte[]{'k', 'e'}));
+        assertTrue(c.hasValue());
+        assertEquals(0, c.valueLength());
+        assertTrue(c.next());
+        // split at the first '='
+        assertEquals(1, c.keyLength());
+        assertEquals(3, c.valueLength());
+        assertFalse(c.next());
+        assertFalse(c.isMalformed());
+    }
+
+    @Test
+    public void walksArraysAndBuffers() {
+        checkItems(new TXTRecordCursor(TXT, 0, TXT.length));
+        ByteBuffer b = ByteBuffer.wrap(TXT);
+        b.position(7);
+        checkItems(new TXTRecordCursor(b, 0, TXT.length));
+        assertEquals(7, b.position());
+    }
+
+    @Test
+    public void stopsAtBadLength() {
+        byte[] txt = {3, 'a', '=', '1', 9, 'b', '='};
+        TXTRecordCursor c = new TXTRecordCursor(txt, 0, txt.length);
+        assertTrue(c.next());
+        assertFalse(c.next());
+        assertTrue(c.isMalformed());
+        assertFalse(c.next());
+        // only len bytes count, even if the array goes on
+        c.reset(TXT, 0, 6);
+        assertTrue(c.next());
+        assertFalse(c.next());
+        assertTrue(c.isMalformed());
+        c.reset(TXT, 4, 5);
+        assertTrue(c.next());
+        assertEquals(5, c.offset());
+        assertFalse(c.next());
+        assertFalse(c.isMalformed());
+    }
+
+    @Test
+    public void emptyRecords() {
+        TXTRecordCursor c = new TXTRecordCursor();
+        assertFalse(c.next());
+        // a single zero byte is an empty item
+        c.reset(new byte[1], 0, 1);
+        assertTrue(c.next());
+        assertEquals(0, c.length());
+        assertFalse(c.next());
+        assertFalse(c.isMalformed());
+    }
+}
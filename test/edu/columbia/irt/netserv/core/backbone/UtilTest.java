@@ -0,0 +1,207 @@
+package edu.columbia.irt.netserv.core.backbone;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the scanners that look at eight bytes at a time against a byte by
+ * byte search, at every offset and length, in both byte orders, with the
+ * bytes most likely to upset the word tricks: 0, 0x80, 0xff, CR, LF, and
+ * the neighbours of 'A', 'Z', 'a' and 'z' with and without the high bit.
+ */
+public class UtilTest {
+
+    private static final byte[] ALPHABET = {
+        0, 1, (byte) 0x80, (byte) 0xff, '\r', '\n', ' ', ':',
+        '@', 'A', 'M', 'Z', '[', '`', 'a', 'm', 'z', '{',
+        (byte) 0xc1, (byte) 0xda, (byte) 0xe1, (byte) 0xfa};
+
+    @Test
+    public void findFirstByte() {
+        Random r = new Random(1);
+        for (int round = 0; round < 200; round++) {
+            byte[] a = random(r, 40);
+            byte b = ALPHABET[r.nextInt(ALPHABET.length)];
+            for (int off = 0; off < 10; off++) {
+                for (int len = 0; off + len <= a.length; len++) {
+                    int expected = -1;
+                    for (int i = off; i < off + len; i++) {
+                        if (a[i] == b) {
+                            expected = i;
+                            break;
+                        }
+                    }
+                    assertEquals(expected, Util.findFirstByte(b, a, off, len));
+                    for (ByteBuffer buf : buffers(a)) {
+                        assertEquals(expected, Util.findFirstByte(b, buf, off, len));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void findFirstCaseByte() {
+        Random r = new Random(2);
+        for (int round = 0; round < 200; round++) {
+            byte[] a = random(r, 40);
+            byte b = ALPHABET[r.nextInt(ALPHABET.length)];
+            for (int off = 0; off < 10; off++) {
+                for (int len = 0; off + len <= a.length; len++) {
+                    int expected = -1;
+                    for (int i = off; i < off + len; i++) {
+                        if (lower(a[i]) == lower(b)) {
+                            expected = i;
+                            break;
+                        }
+                    }
+                    assertEquals(expected, Util.findFirstCaseByte(b, a, off, len));
+                    for (ByteBuffer buf : buffers(a)) {
+                        assertEquals(expected, Util.findFirstCaseByte(b, buf, off, len));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void findEndOfLine() {
+        Random r = new Random(3);
+        for (int round = 0; round < 200; round++) {
+            byte[] a = random(r, 40);
+            for (int off = 0; off < 10; off++) {
+                for (int len = 0; off + len <= a.length; len++) {
+                    int expected = -1;
+                    for (int i = off; i < off + len; i++) {
+                        if (a[i] == '\r' || a[i] == '\n') {
+                            expected = i;
+                            break;
+                        }
+                    }
+                    assertEquals(expected, Util.findEndOfLine(a, off, len));
+                    for (ByteBuffer buf : buffers(a)) {
+                        assertEquals(expected, Util.findEndOfLine(buf, off, len));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compareBytes() {
+        Random r = new Random(4);
+        for (int round = 0; round < 2000; round++) {
+            byte[] a = random(r, 24);
+            byte[] b = a.clone();
+            // a few differences, some of them only in case
+            for (int k = r.nextInt(3); k > 0; k--) {
+                int i = r.nextInt(b.length);
+                b[i] = r.nextBoolean() ? ALPHABET[r.nextInt(ALPHABET.length)]
+                        : lower(b[i]) == b[i] ? upper(b[i]) : lower(b[i]);
+            }
+            int len = r.nextInt(a.length + 1);
+            int exact = 0;
+            int folded = 0;
+            for (int i = 0; i < len; i++) {
+                if (exact == 0 && a[i] != b[i]) {
+                    exact = a[i] - b[i];
+                }
+                if (folded == 0 && lower(a[i]) != lower(b[i])) {
+                    folded = a[i] - b[i];
+                }
+            }
+            assertEquals(exact, Util.compareBytes(a, 0, b, 0, len));
+            assertEquals(folded, Util.compareCaseBytes(a, 0, b, 0, len));
+            for (ByteBuffer buf : buffers(a)) {
+                assertEquals(exact, Util.compareBytes(buf, 0, b, 0, len));
+                assertEquals(folded, Util.compareCaseBytes(buf, 0, b, 0, len));
+            }
+        }
+    }
+
+    @Test
+    public void compareBytesAtOffsets() {
+        byte[] a = bytes("xxContent-Length: 12");
+        byte[] b = bytes("content-length");
+        assertTrue(Util.compareBytes(a, 2, b, 0, b.length) != 0);
+        assertEquals(0, Util.compareCaseBytes(a, 2, b, 0, b.length));
+        assertEquals(0, Util.compareCaseBytes(ByteBuffer.wrap(a), 2, b, 0, b.length));
+        assertTrue(Util.compareCaseBytes(a, 3, b, 0, b.length) > 0);
+    }
+
+    @Test
+    public void compareSpaceCaseBytes() {
+        byte[] b = bytes("via:sip/2.0");
+        assertEquals(0, Util.compareSpaceCaseBytes(bytes("Via : SIP/2.0"), 0, b, 0, b.length));
+        // a folded line
+        assertEquals(0, Util.compareSpaceCaseBytes(bytes("Via:\r\tSIP/2.0"), 0, b, 0, b.length));
+        assertEquals(0, Util.compareSpaceCaseBytes(bytes("xVia:\n SIP/2.0"), 1, b, 0, b.length));
+        assertTrue(Util.compareSpaceCaseBytes(bytes("Via:SIP/3.0"), 0, b, 0, b.length) > 0);
+        // a line break that isn't followed by more of the line
+        assertEquals(-1, Util.compareSpaceCaseBytes(bytes("Via:\n"), 0, b, 0, b.length));
+        // the array and buffer overloads agree
+        Random r = new Random(5);
+        for (int round = 0; round < 2000; round++) {
+            byte[] x = random(r, 12);
+            byte[] y = random(r, 12);
+            int len = r.nextInt(8);
+            Integer expected = null;
+            try {
+                expected = Util.compareSpaceCaseBytes(x, 0, y, 0, len);
+            } catch (IndexOutOfBoundsException e) {
+                // ran off the end skipping spaces
+            }
+            for (ByteBuffer buf : buffers(x)) {
+                Integer actual = null;
+                try {
+                    actual = Util.compareSpaceCaseBytes(buf, 0, y, 0, len);
+                } catch (IndexOutOfBoundsException e) {
+                    // as did the array overload
+                }
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    // the array, then heap and direct buffers of it in both byte orders
+    private static ByteBuffer[] buffers(byte[] a) {
+        ByteBuffer[] b = new ByteBuffer[4];
+        for (int i = 0; i < 4; i++) {
+            b[i] = i < 2 ? ByteBuffer.wrap(a.clone()) : ByteBuffer.allocateDirect(a.length);
+            if (i >= 2) {
+                b[i].put(a);
+                b[i].clear();
+            }
+            b[i].order(i % 2 == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        }
+        return b;
+    }
+
+    private static byte[] random(Random r, int n) {
+        byte[] a = new byte[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = ALPHABET[r.nextInt(ALPHABET.length)];
+        }
+        return a;
+    }
+
+    private static byte lower(byte c) {
+        return c >= 'A' && c <= 'Z' ? (byte) (c + 32) : c;
+    }
+
+    private static byte upper(byte c) {
+        return c >= 'a' && c <= 'z' ? (byte) (c - 32) : c;
+    }
+
+    private static byte[] bytes(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+}
@@ -0,0 +1,148 @@
+package edu.columbia.irt.netserv.core.osgi;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ControlRequestTest {
+
+    @Test
+    public void parsesCommandArgumentAndHeaders() throws IOException {
+        ControlRequest r = request("execute mod_1.0.0 some comments\n"
+                + "Args:  a b \n"
+                + "X-Other: x\n"
+                + "\n");
+        assertTrue(r.read());
+        assertEquals(ControlRequest.EXECUTE, r.command());
+        assertEquals("EXECUTE", r.commandName());
+        assertEquals("mod_1.0.0", r.arg());
+        assertEquals("some comments", r.comments());
+        assertEquals("a b", r.header(ControlRequest.ARGS));
+        assertNull(r.header(ControlRequest.URL));
+        HashMap<String, String> h = r.headers();
+        assertEquals(2, h.size());
+        assertEquals("a b", h.get("args"));
+        assertEquals("x", h.get("x-other"));
+        assertFalse(r.read());
+        assertEquals(0, r.pending());
+    }
+
+    @Test
+    public void unknownCommand() throws IOException {
+        ControlRequest r = request("FROB x\n\n");
+        assertTrue(r.read());
+        assertEquals(ControlRequest.UNKNOWN, r.command());
+        assertEquals("FROB", r.commandName());
+    }
+
+    @Test
+    public void readsRequestsOneByteAtATime() throws IOException {
+        ControlRequest r = new ControlRequest(new DripChannel(
+                ("STATUS\r\n\r\nREMOVE a\r\nid: 7\r\n\r\n"
+                + "REMOVE b\r\r").getBytes("UTF-8")));
+        assertTrue(r.read());
+        assertEquals(ControlRequest.STATUS, r.command());
+        assertEquals("", r.arg());
+        assertTrue(r.read());
+        assertEquals(ControlRequest.REMOVE, r.command());
+        assertEquals("a", r.arg());
+        assertEquals("7", r.header(ControlRequest.ID));
+        assertTrue(r.read());
+        assertEquals("b", r.arg());
+        assertNull(r.header(ControlRequest.ID));
+    }
+
+    @Test
+    public void lastLineMayEndWithoutLineBreak() throws IOException {
+        ControlRequest r = request("SETUP u\nurl: file:x");
+        assertFalse(r.read());
+        assertTrue(r.pending() > 0);
+    }
+
+    @Test
+    public void detachedCopyOutlivesNextRead() throws IOException {
+        ControlRequest r = request("EXECUTE a\nargs: 1\n\nEXECUTE b\nargs: 2\n\n");
+        assertTrue(r.read());
+        ControlRequest d = r.detach();
+        assertTrue(r.read());
+        assertEquals("b", r.arg());
+        assertEquals("2", r.header(ControlRequest.ARGS));
+        assertEquals(ControlRequest.EXECUTE, d.command());
+        assertEquals("a", d.arg());
+        assertEquals("1", d.header(ControlRequest.ARGS));
+        assertEquals("1", d.headers().get("args"));
+    }
+
+    @Test
+    public void requestsLongerThanTheBufferAreRead() throws IOException {
+        StringBuilder s = new StringBuilder("STATUS\n\nSETUP m\n");
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            big.append((char) ('a' + i % 26));
+        }
+        s.append("properties: ").append(big).append("\n\n");
+        ControlRequest r = new ControlRequest(new DripChannel(
+                s.toString().getBytes("UTF-8"), 1000));
+        assertTrue(r.read());
+        assertTrue(r.read());
+        assertEquals("m", r.arg());
+        assertEquals(big.toString(), r.header(ControlRequest.PROPERTIES));
+    }
+
+    @Test(expected = IOException.class)
+    public void requestsLongerThanMaxLengthAreRefused() throws IOException {
+        byte[] b = new byte[ControlRequest.MAX_LENGTH + 10];
+        Arrays.fill(b, (byte) 'x');
+        request(new String(b, "US-ASCII") + "\n\n").read();
+    }
+
+    private static ControlRequest request(String s) throws IOException {
+        return new ControlRequest(Channels.newChannel(
+                new ByteArrayInputStream(s.getBytes("UTF-8"))));
+    }
+
+    // returns at most chunk bytes per read
+    private static class DripChannel implements ReadableByteChannel {
+
+        private final ByteBuffer data;
+        private final int chunk;
+
+        DripChannel(byte[] data) {
+            this(data, 1);
+        }
+
+        DripChannel(byte[] data, int chunk) {
+            this.data = ByteBuffer.wrap(data);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(chunk, Math.min(dst.remaining(), data.remaining()));
+            ByteBuffer b = data.slice();
+            b.limit(n);
+            dst.put(b);
+            data.position(data.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
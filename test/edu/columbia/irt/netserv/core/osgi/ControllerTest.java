@@ -0,0 +1,323 @@
+package edu.columbia.irt.netserv.core.osgi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+
+import edu.columbia.irt.netserv.core.backbone.PacketInterest;
+
+import static org.junit.Assert.*;
+
+public class ControllerTest {
+
+    private Controller controller;
+
+    /**
+     * A CCN-Service returning the version of its bundle.  Given "block",
+     * it waits for release first; given "fail", it throws.
+     */
+    public static final class Module {
+
+        public static final CountDownLatch entered = new CountDownLatch(1);
+        public static final CountDownLatch release = new CountDownLatch(1);
+
+        public Object execute(Object param) throws Exception {
+            if ("block".equals(param)) {
+                entered.countDown();
+                release.await();
+            } else if ("fail".equals(param)) {
+                throw new IllegalStateException("fail");
+            }
+            InputStream in = getClass().getResourceAsStream("/Version");
+            try {
+                byte[] b = new byte[32];
+                return new String(b, 0, in.read(b), "US-ASCII");
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * A Netserv-Service writing as many bytes as it is asked for, after
+     * sleeping for as many milliseconds if the number is negative.
+     */
+    public static final class Writer {
+
+        public void execute(OutputStream out, Object param) throws Exception {
+            int n = Integer.parseInt((String) param);
+            if (n < 0) {
+                Thread.sleep(-n);
+                n = 1;
+            }
+            byte[] b = new byte[n];
+            for (int i = 0; i < n; i++) {
+                b[i] = (byte) ('a' + i % 26);
+            }
+            out.write(b);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        controller = new Controller(ModuleBundles.framework());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        synchronized (Controller.serviceMap) {
+            Controller.serviceMap.clear();
+        }
+        ModuleBundles.uninstallAll();
+    }
+
+    private static String jar(String version) throws Exception {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put(Controller.CCN_SERVICE, Module.class.getName());
+        return ModuleBundles.jar("m", version, headers, Module.class);
+    }
+
+    private Object execute(String moduleID) throws Exception {
+        return controller.executeModule(moduleID, new HashMap<String, String>());
+    }
+
+    private static Bundle bundle(String version) throws Exception {
+        for (Bundle b : ModuleBundles.framework().getBundleContext().getBundles()) {
+            if (b.getVersion().toString().equals(version)) {
+                return b;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void executeModulesReportsEachOutcome() throws Exception {
+        controller.setupModule("m_1.0.0", jar("1.0.0"), new HashMap<String, String>());
+        List<ModuleRequest> requests = new ArrayList<ModuleRequest>();
+        requests.add(new ModuleRequest("m_1.0.0", "x", 0));
+        requests.add(new ModuleRequest("m_1.0.0", "fail", 0));
+        requests.add(new ModuleRequest("n_1.0.0", "x", 0));
+        // all of them blocked at once, until their timeouts interrupt them
+        for (int i = 0; i < 4; i++) {
+            requests.add(new ModuleRequest("m_1.0.0", "block", 500));
+        }
+        long start = System.nanoTime();
+        List<ModuleResult> results = controller.executeModules(requests);
+        assertTrue(System.nanoTime() - start < 2000000000L);
+        assertEquals(requests.size(), results.size());
+        assertEquals("m_1.0.0: 1.0.0", results.get(0).toString());
+        assertEquals(ModuleResult.FAILED, results.get(1).status);
+        assertTrue(results.get(1).exception instanceof IllegalStateException);
+        assertEquals(ModuleResult.FAILED, results.get(2).status);
+        for (int i = 3; i < results.size(); i++) {
+            assertSame(requests.get(i), results.get(i).request);
+            assertEquals(ModuleResult.TIMED_OUT, results.get(i).status);
+        }
+    }
+
+    @Test(expected = CancellationException.class)
+    public void submittedModuleCanBeCancelled() throws Exception {
+        controller.setupModule("m_1.0.0", jar("1.0.0"), new HashMap<String, String>());
+        List<Future<Object>> futures = controller.submitModules(
+                Arrays.asList(new ModuleRequest("m_1.0.0", "block", 0)));
+        assertTrue(futures.get(0).cancel(true));
+        futures.get(0).get();
+    }
+
+    // reads up to and without the next '\n'
+    private static String line(InputStream in) throws IOException {
+        StringBuilder s = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            assertTrue(c >= 0);
+            s.append((char) c);
+        }
+        return s.toString();
+    }
+
+    private static byte[] read(InputStream in, int n) throws IOException {
+        byte[] b = new byte[n];
+        for (int k = 0; k < n; ) {
+            int r = in.read(b, k, n - k);
+            assertTrue(r > 0);
+            k += r;
+        }
+        return b;
+    }
+
+    @Test
+    public void framedResponsesComeAsTheyAreReady() throws Exception {
+        ServerSocket probe = new ServerSocket(0);
+        int port = probe.getLocalPort();
+        probe.close();
+        Controller server = new Controller(ModuleBundles.framework(), port);
+        Thread t = new Thread(server);
+        t.setDaemon(true);
+        t.start();
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put(Controller.NETSERV_SERVICE, Writer.class.getName());
+        server.setupModule("w_1.0.0",
+                ModuleBundles.jar("w", "1.0.0", headers, Writer.class),
+                new HashMap<String, String>());
+        Socket socket = null;
+        for (int i = 0; socket == null; i++) {
+            try {
+                socket = new Socket("localhost", port);
+            } catch (IOException e) {
+                // not listening yet
+                assertTrue(i < 500);
+                Thread.sleep(10);
+            }
+        }
+        try {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write("FRAMED\n\n".getBytes("US-ASCII"));
+            assertEquals("0", line(in));
+            assertEquals("", line(in));
+            int big = Controller.FRAME_SIZE + 1000;
+            out.write(("EXECUTE w_1.0.0\nid: slow\nargs: -300\n\n"
+                    + "FROB\nid: 2\n\n"
+                    + "FROB\n\n"
+                    + "EXECUTE w_1.0.0\nid: big\nargs: " + big + "\n\n").getBytes("US-ASCII"));
+            // by ID, the bytes of the responses complete so far
+            HashMap<String, String> done = new HashMap<String, String>();
+            ByteArrayOutputStream bigResponse = new ByteArrayOutputStream();
+            int frames = 0;
+            while (done.size() < 4) {
+                String[] head = line(in).split(" ");
+                byte[] b = read(in, Integer.parseInt(head[1]));
+                if (head[0].equals("big")) {
+                    frames++;
+                    bigResponse.write(b);
+                    if (head.length > 2) {
+                        assertEquals("+", head[2]);
+                        assertEquals(Controller.FRAME_SIZE, b.length);
+                        continue;
+                    }
+                }
+                assertFalse(head.length > 2);
+                done.put(head[0], new String(b, "US-ASCII"));
+                // the slow one comes last
+                assertEquals(done.size() == 4, head[0].equals("slow"));
+            }
+            assertEquals("a", done.get("slow"));
+            assertEquals("-1\nFROB: unknown command\n\n", done.get("2"));
+            assertEquals("-1\nrequest id missing\n\n", done.get("-"));
+            assertEquals(2, frames);
+            assertEquals(big, bigResponse.size());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void updateRoutesExecuteToNewVersion() throws Exception {
+        controller.setupModule("m_1.0.0", jar("1.0.0"), new HashMap<String, String>());
+        Bundle old = bundle("1.0.0");
+        assertEquals("1.0.0", execute("m_1.0.0"));
+        controller.updateModule("m_1.0.0", jar("2.0.0"), new HashMap<String, String>());
+        assertEquals("2.0.0", execute("m_1.0.0"));
+        assertEquals("2.0.0", execute("m_2.0.0"));
+        assertEquals(Bundle.UNINSTALLED, old.getState());
+    }
+
+    @Test
+    public void failedWarmUpKeepsOldVersion() throws Exception {
+        controller.setupModule("m_1.0.0", jar("1.0.0"), new HashMap<String, String>());
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put("args", "fail");
+        try {
+            controller.updateModule("m_1.0.0", jar("2.0.0"), headers);
+            fail();
+        } catch (IllegalStateException e) {
+            // thrown by the new version's warm-up call
+        }
+        assertEquals("1.0.0", execute("m_1.0.0"));
+        assertNull(bundle("2.0.0"));
+    }
+
+    @Test
+    public void concurrentUpdatesTakeEffectOnce() throws Exception {
+        controller.setupModule("m_1.0.0", jar("1.0.0"), new HashMap<String, String>());
+        final HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put("args", "block");
+        final String url = jar("2.0.0");
+        final Exception[] failure = new Exception[1];
+        Thread first = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    controller.updateModule("m_1.0.0", url, headers);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        first.start();
+        // the first UPDATE is warming up version 2
+        Class<?> c = null;
+        while (c == null) {
+            Bundle b = bundle("2.0.0");
+            if (b != null && b.getState() == Bundle.ACTIVE) {
+                c = b.loadClass(Module.class.getName());
+            }
+            Thread.sleep(1);
+        }
+        assertTrue(((CountDownLatch) c.getField("entered").get(null)).await(5, TimeUnit.SECONDS));
+        controller.updateModule("m_1.0.0", jar("3.0.0"), new HashMap<String, String>());
+        ((CountDownLatch) c.getField("release").get(null)).countDown();
+        first.join();
+        assertTrue(failure[0] instanceof BundleException);
+        assertNull(bundle("2.0.0"));
+        assertEquals("3.0.0", execute("m_1.0.0"));
+    }
+
+    @Test
+    public void modulesGetCopiesOfTheirInterest() throws Exception {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put("filter-proto", "udp");
+        headers.put("filter-port", "5060");
+        controller.setupModule("m_1.0.0", jar("1.0.0"), headers);
+        BundleContext context = bundle("1.0.0").getBundleContext();
+        PacketInterest interest = ServiceManager.retrieveInterest(context);
+        interest.setProtocol("tcp");
+        assertEquals("[ proto=17 ports=5060 ]",
+                ServiceManager.retrieveInterest(context).toString());
+        controller.updateModule("m_1.0.0", jar("2.0.0"), new HashMap<String, String>());
+        assertEquals("[ proto=17 ports=5060 ]",
+                ServiceManager.retrieveInterest(bundle("2.0.0").getBundleContext()).toString());
+    }
+
+    @Test
+    public void removeAndStatusFollowUpdate() throws Exception {
+        controller.setupModule("m_1.0.0", jar("1.0.0"), new HashMap<String, String>());
+        controller.updateModule("m_1.0.0", jar("2.0.0"), new HashMap<String, String>());
+        Bundle b = bundle("2.0.0");
+        assertEquals(b.getBundleId() + " ACTIVE m 2.0.0\n",
+                controller.getModuleStatus("m_1.0.0").toString());
+        controller.removeModule("m_1.0.0");
+        assertEquals(Bundle.UNINSTALLED, b.getState());
+        assertNull(execute("m_2.0.0"));
+        assertEquals("", controller.getModuleStatus("m_1.0.0").toString());
+    }
+}
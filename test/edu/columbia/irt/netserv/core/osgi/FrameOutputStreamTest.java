@@ -0,0 +1,58 @@
+package edu.columbia.irt.netserv.core.osgi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FrameOutputStreamTest {
+
+    private final ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+    private String sent() throws IOException {
+        return os.toString("US-ASCII");
+    }
+
+    @Test
+    public void shortResponseIsOneFrame() throws IOException {
+        FrameOutputStream f = new FrameOutputStream(os, "7", 64);
+        f.write("0\n".getBytes("US-ASCII"));
+        f.write('\n');
+        assertEquals("", sent());
+        f.close();
+        assertEquals("7 3\n0\n\n", sent());
+    }
+
+    @Test
+    public void longResponseIsSentAsWritten() throws IOException {
+        FrameOutputStream f = new FrameOutputStream(os, "a", 8);
+        f.write("0123456789".getBytes("US-ASCII"));
+        // the first frame is out before the response is complete
+        assertEquals("a 8 +\n01234567", sent());
+        for (char c = 'A'; c < 'K'; c++) {
+            f.write(c);
+        }
+        assertEquals("a 8 +\n01234567a 8 +\n89ABCDEF", sent());
+        f.close();
+        assertEquals("a 8 +\n01234567a 8 +\n89ABCDEFa 4\nGHIJ", sent());
+    }
+
+    @Test
+    public void lastFrameIsEmptyOnlyForEmptyResponse() throws IOException {
+        FrameOutputStream f = new FrameOutputStream(os, "b", 4);
+        f.write("abcdefgh".getBytes("US-ASCII"));
+        f.close();
+        assertEquals("b 4 +\nabcdb 4\nefgh", sent());
+        os.reset();
+        new FrameOutputStream(os, "c", 4).close();
+        assertEquals("c 0\n", sent());
+    }
+
+    @Test(expected = IOException.class)
+    public void noWritesAfterClose() throws IOException {
+        FrameOutputStream f = new FrameOutputStream(os, "d", 64);
+        f.close();
+        f.write(1);
+    }
+}
@@ -0,0 +1,140 @@
+package edu.columbia.irt.netserv.core.osgi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.eclipse.osgi.launch.EquinoxFactory;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.launch.Framework;
+
+/**
+ * Builds module bundles out of classes on the test class path, and
+ * installs them in an Equinox framework set up as Launch does.  There is
+ * one framework for all tests, as Equinox can only be started once per
+ * JVM; tests uninstall what they install.
+ */
+final class ModuleBundles {
+
+    private static Framework framework = null;
+    private static File dir = null;
+    private static int jars = 0;
+
+    private ModuleBundles() {
+    }
+
+    static synchronized Framework framework() throws Exception {
+        if (framework == null) {
+            dir = File.createTempFile("netserv-test", "");
+            dir.delete();
+            dir.mkdir();
+            dir.deleteOnExit();
+            Map<String, String> config = new HashMap<String, String>();
+            config.put("org.osgi.framework.system.packages.extra",
+                    "edu.columbia.irt.netserv.core.backbone");
+            config.put("org.osgi.framework.storage", new File(dir, "storage").getPath());
+            config.put("org.osgi.framework.storage.clean", "onFirstInit");
+            Framework f = new EquinoxFactory().newFramework(config);
+            f.start();
+            framework = f;
+        }
+        return framework;
+    }
+
+    /**
+     * Writes a bundle holding copies of the given classes, so that each
+     * bundle defines classes of its own, and returns its URL.  A "Version"
+     * resource holds the version, for the classes to tell which bundle
+     * they came from.
+     * @param headers Further manifest headers.
+     */
+    static synchronized String jar(String name, String version,
+            Map<String, String> headers, Class<?>... classes) throws Exception {
+        framework();
+        Manifest m = new Manifest();
+        Attributes a = m.getMainAttributes();
+        a.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        a.putValue("Bundle-ManifestVersion", "2");
+        a.putValue("Bundle-SymbolicName", name);
+        a.putValue("Bundle-Version", version);
+        for (Map.Entry<String, String> e : headers.entrySet()) {
+            a.putValue(e.getKey(), e.getValue());
+        }
+        File f = new File(dir, name + '-' + version + '-' + jars++ + ".jar");
+        f.deleteOnExit();
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(f), m);
+        try {
+            for (Class<?> c : classes) {
+                String path = c.getName().replace('.', '/') + ".class";
+                out.putNextEntry(new JarEntry(path));
+                copy(c.getClassLoader().getResourceAsStream(path), out);
+            }
+            out.putNextEntry(new JarEntry("Version"));
+            out.write(version.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        return f.toURI().toString();
+    }
+
+    /**
+     * Installs and starts the bundle jar() writes.
+     */
+    static Bundle install(String name, String version,
+            Map<String, String> headers, Class<?>... classes) throws Exception {
+        Bundle b = framework().getBundleContext().installBundle(
+                jar(name, version, headers, classes));
+        b.start();
+        return b;
+    }
+
+    /**
+     * Uninstalls every bundle but the system bundle.
+     */
+    static void uninstallAll() throws Exception {
+        for (Bundle b : framework().getBundleContext().getBundles()) {
+            if (b.getBundleId() != 0) {
+                try {
+                    b.uninstall();
+                } catch (BundleException e) {
+                    // already gone
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the Version resource of the bundle that loaded c.
+     */
+    static String version(Class<?> c) throws IOException {
+        InputStream in = c.getResourceAsStream("/Version");
+        try {
+            byte[] b = new byte[32];
+            int n = in.read(b);
+            return new String(b, 0, n, "US-ASCII");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        try {
+            byte[] b = new byte[4096];
+            int n;
+            while ((n = in.read(b)) > 0) {
+                out.write(b, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
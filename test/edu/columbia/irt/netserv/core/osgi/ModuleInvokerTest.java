@@ -0,0 +1,195 @@
+package edu.columbia.irt.netserv.core.osgi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import edu.columbia.irt.netserv.core.backbone.CCNService;
+import edu.columbia.irt.netserv.core.backbone.NetServChannelService;
+import edu.columbia.irt.netserv.core.backbone.NetServService;
+
+import static org.junit.Assert.*;
+
+public class ModuleInvokerTest {
+
+    public static final class DirectCCN implements CCNService {
+
+        @Override
+        public Object execute(Object param) {
+            return "direct " + param;
+        }
+    }
+
+    public static final class HandleCCN {
+
+        private int calls = 0;
+
+        // any return type will do
+        public String execute(Object param) {
+            return "handle " + param + " " + ++calls;
+        }
+    }
+
+    public static final class DirectNetServ implements NetServService {
+
+        @Override
+        public void execute(OutputStream out, Object param) {
+            try {
+                out.write(("direct " + param).getBytes("US-ASCII"));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public Object getInstance() {
+            return this;
+        }
+    }
+
+    public static final class HandleNetServ {
+
+        public void execute(OutputStream out, Object param) throws IOException {
+            out.write(("handle " + param).getBytes("US-ASCII"));
+        }
+    }
+
+    public static final class DirectChannel implements NetServChannelService {
+
+        @Override
+        public void execute(GatheringByteChannel out, Object param) {
+            try {
+                out.write(ByteBuffer.wrap(("direct " + param).getBytes("US-ASCII")));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    public static final class HandleChannel {
+
+        public void execute(WritableByteChannel out, Object param) throws IOException {
+            out.write(ByteBuffer.wrap(("handle " + param).getBytes("US-ASCII")));
+        }
+    }
+
+    public static final class NoExecute {
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ModuleBundles.uninstallAll();
+    }
+
+    private static Bundle install(String header, Class<?> c, String... more) throws Exception {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put(header, c.getName());
+        if (c.getInterfaces().length > 0) {
+            // to implement the interface the Controller sees
+            headers.put("Import-Package", "edu.columbia.irt.netserv.core.backbone");
+        }
+        for (int i = 0; i < more.length; i += 2) {
+            headers.put(more[i], more[i + 1]);
+        }
+        return ModuleBundles.install(c.getSimpleName(), "1.0.0", headers, c);
+    }
+
+    private static String run(ModuleInvoker invoker, Object param) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (invoker.writesToChannel()) {
+            invoker.execute(new StreamChannel(out), param);
+        } else {
+            invoker.execute(out, param);
+        }
+        return out.toString("US-ASCII");
+    }
+
+    @Test
+    public void ccnContracts() throws Exception {
+        ModuleInvoker direct = new ModuleInvoker(install(Controller.CCN_SERVICE, DirectCCN.class), false);
+        assertEquals("DirectCCN_1.0.0 CCN-Service direct", direct.toString());
+        assertEquals("direct x", direct.execute("x"));
+        ModuleInvoker handle = new ModuleInvoker(install(Controller.CCN_SERVICE, HandleCCN.class), false);
+        assertEquals("HandleCCN_1.0.0 CCN-Service handle", handle.toString());
+        assertEquals("handle x 1", handle.execute("x"));
+        // a new instance for each call
+        assertEquals("handle y 1", handle.execute("y"));
+    }
+
+    @Test
+    public void netservContracts() throws Exception {
+        Class<?>[] classes = {DirectNetServ.class, HandleNetServ.class,
+            DirectChannel.class, HandleChannel.class};
+        String[] kinds = {" direct", " handle", " channel direct", " channel handle"};
+        for (int i = 0; i < classes.length; i++) {
+            ModuleInvoker invoker = new ModuleInvoker(
+                    install(Controller.NETSERV_SERVICE, classes[i]), true);
+            assertEquals(classes[i].getSimpleName() + "_1.0.0 Netserv-Service" + kinds[i],
+                    invoker.toString());
+            assertEquals(i % 2 == 0 ? "direct p" : "handle p", run(invoker, "p"));
+        }
+    }
+
+    @Test
+    public void statelessModuleKeepsItsInstance() throws Exception {
+        ModuleInvoker invoker = new ModuleInvoker(install(Controller.CCN_SERVICE,
+                HandleCCN.class, Controller.NETSERV_STATELESS, "True"), false);
+        assertTrue(invoker.isStateless());
+        assertEquals("handle x 1", invoker.execute("x"));
+        assertEquals("handle x 2", invoker.execute("x"));
+    }
+
+    @Test
+    public void cacheTTL() throws Exception {
+        String[] ttls = {"1.5", " 2 ", "-3", "soon"};
+        long[] millis = {1500, 2000, 0, 0};
+        for (int i = 0; i < ttls.length; i++) {
+            ModuleInvoker invoker = new ModuleInvoker(install(Controller.CCN_SERVICE,
+                    HandleCCN.class, Controller.CCN_CACHE_TTL, ttls[i]), false);
+            assertEquals(millis[i], invoker.cacheTTL());
+            ModuleBundles.uninstallAll();
+        }
+        // only for CCN-Services
+        Bundle b = install(Controller.NETSERV_SERVICE, HandleNetServ.class,
+                Controller.CCN_CACHE_TTL, "10");
+        assertEquals(0, new ModuleInvoker(b, true).cacheTTL());
+    }
+
+    @Test
+    public void refusesWhatItCantCall() throws Exception {
+        Bundle b = install(Controller.CCN_SERVICE, NoExecute.class);
+        try {
+            new ModuleInvoker(b, false);
+            fail();
+        } catch (NoSuchMethodException e) {
+            // no execute(Object)
+        }
+        try {
+            new ModuleInvoker(b, true);
+            fail();
+        } catch (Exception e) {
+            // no Netserv-Service header
+            assertTrue(e.getMessage(), e.getMessage().indexOf(Controller.NETSERV_SERVICE) > 0);
+        }
+    }
+
+    @Test
+    public void retiredInvokerRefusesCalls() throws Exception {
+        ModuleInvoker invoker = new ModuleInvoker(install(Controller.CCN_SERVICE, DirectCCN.class), false);
+        assertTrue(invoker.enter());
+        assertEquals(1, invoker.callsInProgress());
+        invoker.retire();
+        assertFalse(invoker.enter());
+        assertEquals(1, invoker.callsInProgress());
+        invoker.exit();
+        assertEquals(0, invoker.callsInProgress());
+    }
+}
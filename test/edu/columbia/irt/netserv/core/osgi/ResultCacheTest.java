@@ -0,0 +1,183 @@
+package edu.columbia.irt.netserv.core.osgi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ResultCacheTest {
+
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void concurrentMissesLoadOnce() throws Exception {
+        final ResultCache cache = new ResultCache(100, 1 << 20);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Object> loader = new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                loads.incrementAndGet();
+                loading.countDown();
+                release.await();
+                return "result";
+            }
+        };
+        Future<?>[] f = new Future<?>[8];
+        f[0] = pool.submit(get(cache, 1, "a", loader));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < f.length; i++) {
+            f[i] = pool.submit(get(cache, 1, "a", loader));
+        }
+        // let the others reach the entry being loaded
+        Thread.sleep(50);
+        release.countDown();
+        for (Future<?> x : f) {
+            assertEquals("result", x.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loads.get());
+        String status = cache.getStatus().toString();
+        assertTrue(status.startsWith("entries=1 "));
+        assertTrue(status.endsWith(" hits=7 misses=1 evictions=0\n"));
+    }
+
+    @Test
+    public void failuresAreNotKept() throws Exception {
+        ResultCache cache = new ResultCache(100, 1 << 20);
+        final AtomicInteger loads = new AtomicInteger();
+        Callable<Object> failing = new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                loads.incrementAndGet();
+                throw new IOException("boom");
+            }
+        };
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.get(1, "a", 60000, failing);
+                fail();
+            } catch (IOException e) {
+                assertEquals("boom", e.getMessage());
+            }
+        }
+        assertEquals(2, loads.get());
+        assertTrue(cache.getStatus().toString().startsWith("entries=0 bytes=0 "));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        ResultCache cache = new ResultCache(2, 1 << 20);
+        Counter loader = new Counter();
+        cache.get(1, "a", 60000, loader);
+        cache.get(1, "b", 60000, loader);
+        // a is now more recently used than b
+        cache.get(1, "a", 60000, loader);
+        cache.get(1, "c", 60000, loader);
+        assertEquals(3, loader.calls);
+        cache.get(1, "a", 60000, loader);
+        cache.get(1, "c", 60000, loader);
+        assertEquals(3, loader.calls);
+        cache.get(1, "b", 60000, loader);
+        assertEquals(4, loader.calls);
+        assertTrue(cache.getStatus().toString().contains(" evictions=2\n"));
+    }
+
+    @Test
+    public void evictsBeyondMaxBytes() throws Exception {
+        ResultCache cache = new ResultCache(100, 1000);
+        Callable<Object> big = new Callable<Object>() {
+
+            @Override
+            public Object call() {
+                return new byte[400];
+            }
+        };
+        cache.get(1, "a", 60000, big);
+        cache.get(1, "b", 60000, big);
+        String status = cache.getStatus().toString();
+        assertTrue(status.startsWith("entries=1 "));
+        assertTrue(status.endsWith(" evictions=1\n"));
+    }
+
+    @Test
+    public void expiredAndInvalidatedResultsAreLoadedAgain() throws Exception {
+        ResultCache cache = new ResultCache(100, 1 << 20);
+        Counter loader = new Counter();
+        cache.get(1, "a", 0, loader);
+        cache.get(1, "a", 0, loader);
+        assertEquals(2, loader.calls);
+        cache.get(2, "a", 60000, loader);
+        cache.get(2, null, 60000, loader);
+        cache.invalidate(2);
+        cache.get(2, "a", 60000, loader);
+        cache.get(2, null, 60000, loader);
+        assertEquals(6, loader.calls);
+    }
+
+    @Test
+    public void callersDontShareMutableResults() throws Exception {
+        ResultCache cache = new ResultCache(100, 1 << 20);
+        Callable<Object> bytes = new Callable<Object>() {
+
+            @Override
+            public Object call() {
+                return new byte[]{1, 2, 3};
+            }
+        };
+        byte[] b = (byte[]) cache.get(1, "b", 60000, bytes);
+        b[0] = 9;
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) cache.get(1, "b", 60000, bytes));
+
+        Callable<Object> buffer = new Callable<Object>() {
+
+            @Override
+            public Object call() {
+                return ByteBuffer.wrap(new byte[]{1, 2, 3});
+            }
+        };
+        ByteBuffer bb = (ByteBuffer) cache.get(1, "bb", 60000, buffer);
+        assertTrue(bb.isReadOnly());
+        bb.get();
+        ByteBuffer again = (ByteBuffer) cache.get(1, "bb", 60000, buffer);
+        assertEquals(0, again.position());
+        assertEquals(3, again.remaining());
+    }
+
+    private static Callable<Object> get(final ResultCache cache, final long bundle,
+            final String args, final Callable<Object> loader) {
+        return new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                return cache.get(bundle, args, 60000, loader);
+            }
+        };
+    }
+
+    private static class Counter implements Callable<Object> {
+
+        int calls = 0;
+
+        @Override
+        public Object call() {
+            return "r" + calls++;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package edu.columbia.irt.netserv.core.osgi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StreamChannelTest {
+
+    private final ByteArrayOutputStream os = new ByteArrayOutputStream();
+    private final StreamChannel channel = new StreamChannel(os);
+
+    private static byte[] bytes(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = (byte) (i * 7);
+        }
+        return b;
+    }
+
+    @Test
+    public void writesHeapBufferFromItsArray() throws IOException {
+        byte[] b = bytes(100);
+        ByteBuffer src = ByteBuffer.wrap(b, 10, 80).slice();
+        src.position(5);
+        assertEquals(75, channel.write(src));
+        assertFalse(src.hasRemaining());
+        byte[] out = os.toByteArray();
+        assertEquals(75, out.length);
+        assertEquals(b[15], out[0]);
+        assertEquals(b[89], out[74]);
+    }
+
+    @Test
+    public void copiesDirectBuffer() throws IOException {
+        // more than the chunk it is copied through
+        byte[] b = bytes(20000);
+        ByteBuffer src = ByteBuffer.allocateDirect(b.length);
+        src.put(b).flip();
+        assertEquals(b.length, channel.write(src));
+        assertFalse(src.hasRemaining());
+        assertArrayEquals(b, os.toByteArray());
+    }
+
+    @Test
+    public void gathers() throws IOException {
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put(new byte[]{'d', 'e', 'f'}).flip();
+        ByteBuffer[] srcs = {ByteBuffer.wrap(new byte[]{'x'}),
+            ByteBuffer.wrap(new byte[]{'a', 'b', 'c'}), direct};
+        assertEquals(6, channel.write(srcs, 1, 2));
+        assertEquals("abcdef", os.toString("US-ASCII"));
+        assertEquals(1, srcs[0].remaining());
+    }
+
+    @Test
+    public void refusesWritesOnceClosed() throws IOException {
+        assertTrue(channel.isOpen());
+        channel.close();
+        assertFalse(channel.isOpen());
+        try {
+            channel.write(ByteBuffer.wrap(new byte[1]));
+            fail();
+        } catch (ClosedChannelException e) {
+            // nothing written
+        }
+        assertEquals(0, os.size());
+    }
+}